@@ -20,6 +20,7 @@ import simpledb.storage.StringField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 public class Parser {
@@ -431,21 +432,28 @@ public class Parser {
                 if (curtrans == null)
                     throw new ParsingException(
                             "No transaction is currently running");
-                curtrans.commit();
+                long committed = curtrans.getId().getId();
+                try {
+                    curtrans.commit();
+                } catch (TransactionAbortedException e) {
+                    curtrans = null;
+                    inUserTrans = false;
+                    System.out.println("Transaction " + committed + " aborted.");
+                    return;
+                }
                 curtrans = null;
                 inUserTrans = false;
-                System.out.println("Transaction " + curtrans.getId().getId()
-                        + " committed.");
+                System.out.println("Transaction " + committed + " committed.");
                 break;
             case "ROLLBACK":
                 if (curtrans == null)
                     throw new ParsingException(
                             "No transaction is currently running");
+                long aborted = curtrans.getId().getId();
                 curtrans.abort();
                 curtrans = null;
                 inUserTrans = false;
-                System.out.println("Transaction " + curtrans.getId().getId()
-                        + " aborted.");
+                System.out.println("Transaction " + aborted + " aborted.");
 
                 break;
             case "SET TRANSACTION":
@@ -112,8 +112,13 @@ public class Aggregate extends Operator {
         } else {
             this.aggregator = new StringAggregator(groupByField, groupByFieldType, aggregateField, aop);
         }
-        while (children[0].hasNext()) {
-            aggregator.mergeTupleIntoGroup(children[0].next());
+        if (children[0] instanceof TupleViewSource && ((TupleViewSource) children[0]).supportsViews()) {
+            // aggregate straight from the pages, without materializing tuples
+            ((TupleViewSource) children[0]).forEachView(aggregator::mergeTupleIntoGroup);
+        } else {
+            while (children[0].hasNext()) {
+                aggregator.mergeTupleIntoGroup(children[0].next());
+            }
         }
         children[0].close();
         super.open();
@@ -2,6 +2,7 @@ package simpledb.execution;
 
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleIterator;
+import simpledb.storage.TupleView;
 
 import java.io.Serializable;
 
@@ -79,6 +80,15 @@ public interface Aggregator extends Serializable {
      */
     void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge a new tuple, given as a view, into the aggregate.  The view is
+     * only read during the call.
+     *
+     * @param tup the tuple containing an aggregate field and a group-by field
+     * @see #mergeTupleIntoGroup(Tuple)
+     */
+    void mergeTupleIntoGroup(TupleView tup);
+
     /**
      * Create a OpIterator over group aggregate results.
      * @see TupleIterator for a possible helper
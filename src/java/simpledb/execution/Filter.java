@@ -4,13 +4,14 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleView;
 
 import java.util.*;
 
 /**
  * Filter is an operator that implements a relational select.
  */
-public class Filter extends Operator {
+public class Filter extends Operator implements TupleViewSource {
 
     private static final long serialVersionUID = 1L;
 
@@ -82,6 +83,18 @@ public class Filter extends Operator {
         return null;
     }
 
+    public boolean supportsViews() {
+        return children[0] instanceof TupleViewSource && ((TupleViewSource) children[0]).supportsViews();
+    }
+
+    public void forEachView(TupleView.Visitor visitor) throws DbException, TransactionAbortedException {
+        ((TupleViewSource) children[0]).forEachView(t -> {
+            if (predicate.filter(t)) {
+                visitor.visit(t);
+            }
+        });
+    }
+
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
@@ -0,0 +1,110 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.*;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * The groups of an aggregate, found by the group-by field of a TupleView.
+ * A group is looked up with the view's typed accessors, so nothing is
+ * allocated per tuple; the group's Field key is made only when a new group
+ * is added.
+ *
+ * @param <G> the running aggregate kept per group
+ */
+class GroupTable<G> {
+
+    private static class Entry<G> {
+        final int hash;
+        final Field key;
+        final G group;
+        Entry<G> next;
+
+        Entry(int hash, Field key, G group, Entry<G> next) {
+            this.hash = hash;
+            this.key = key;
+            this.group = group;
+            this.next = next;
+        }
+    }
+
+    private final int field;
+    private final Type type;
+    private final Supplier<G> create;
+    private Entry<G>[] buckets;
+    private int size;
+    /** The groups by key in the order they were added; the key is null without grouping. */
+    private final Map<Field, G> groups;
+
+    /**
+     * @param field the group-by field, or NO_GROUPING
+     * @param type the type of the group-by field, or null without grouping
+     * @param create makes the aggregate of a new group
+     */
+    @SuppressWarnings("unchecked")
+    GroupTable(int field, Type type, Supplier<G> create) {
+        this.field = field;
+        this.type = type;
+        this.create = create;
+        this.buckets = (Entry<G>[]) new Entry[16];
+        this.groups = new LinkedHashMap<>();
+    }
+
+    /** Return the group of a tuple, adding a new one if the tuple starts it. */
+    G get(TupleView tup) {
+        if (field == Aggregator.NO_GROUPING) {
+            G group = groups.get(null);
+            if (group == null) {
+                group = create.get();
+                groups.put(null, group);
+            }
+            return group;
+        }
+        int hash = type == Type.INT_TYPE ? tup.getInt(field) : tup.hashString(field);
+        for (Entry<G> e = buckets[hash & (buckets.length - 1)]; e != null; e = e.next) {
+            if (e.hash == hash && matches(tup, e.key)) {
+                return e.group;
+            }
+        }
+        G group = create.get();
+        Field key = tup.getField(field);
+        int index = hash & (buckets.length - 1);
+        buckets[index] = new Entry<>(hash, key, group, buckets[index]);
+        groups.put(key, group);
+        if (++size > buckets.length * 3 / 4) {
+            resize();
+        }
+        return group;
+    }
+
+    private boolean matches(TupleView tup, Field key) {
+        if (type == Type.INT_TYPE) {
+            return tup.getInt(field) == ((IntField) key).getValue();
+        }
+        return tup.compareString(field, ((StringField) key).getValue()) == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void resize() {
+        Entry<G>[] old = buckets;
+        buckets = (Entry<G>[]) new Entry[old.length * 2];
+        for (Entry<G> head : old) {
+            Entry<G> e = head;
+            while (e != null) {
+                Entry<G> next = e.next;
+                int index = e.hash & (buckets.length - 1);
+                e.next = buckets[index];
+                buckets[index] = e;
+                e = next;
+            }
+        }
+    }
+
+    /** @return the groups by key, in the order they were added */
+    Map<Field, G> groups() {
+        return groups;
+    }
+}
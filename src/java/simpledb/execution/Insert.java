@@ -11,6 +11,8 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Inserts tuples read from the child operator into the tableId specified in the
@@ -20,6 +22,9 @@ public class Insert extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /** Number of child tuples handed to the buffer pool at once. */
+    static final int BATCH_SIZE = 1024;
+
     private TransactionId tid;
     private OpIterator[] children;
     private int tableId;
@@ -83,6 +88,9 @@ public class Insert extends Operator {
      * instances of BufferPool is available via Database.getBufferPool(). Note
      * that insert DOES NOT need check to see if a particular tuple is a
      * duplicate before inserting it.
+     * <p>
+     * Child tuples are inserted in batches of {@link #BATCH_SIZE}, so that
+     * the table fills each page in one go.
      *
      * @return A 1-field tuple containing the number of inserted records, or
      *         null if called more than once.
@@ -94,13 +102,17 @@ public class Insert extends Operator {
         if (!inserted) {
             inserted = true;
             int cnt = 0;
+            List<Tuple> batch = new ArrayList<>(BATCH_SIZE);
             while (children[0].hasNext()) {
-                Tuple tuple = children[0].next();
-                try {
-                    Database.getBufferPool().insertTuple(tid, tableId, tuple);
-                    cnt++;
-                } catch (IOException e) {
-                    e.printStackTrace();
+                batch.add(children[0].next());
+                if (batch.size() == BATCH_SIZE || !children[0].hasNext()) {
+                    try {
+                        Database.getBufferPool().insertTuples(tid, tableId, batch);
+                        cnt += batch.size();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    batch.clear();
                 }
             }
             Tuple tuple = new Tuple(tupleDesc);
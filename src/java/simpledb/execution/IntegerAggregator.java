@@ -18,7 +18,8 @@ public class IntegerAggregator implements Aggregator {
     private Type groupByFieldType;
     private int aggregateField;
     private Op what;
-    private Map<String, List<Integer>> groupFieldMap;
+    /** Running aggregate per group value. */
+    private GroupTable<Group> groups;
 
     /**
      * Aggregate constructor
@@ -41,7 +42,7 @@ public class IntegerAggregator implements Aggregator {
         this.groupByFieldType = gbfieldtype;
         this.aggregateField = afield;
         this.what = what;
-        this.groupFieldMap = new HashMap<>();
+        this.groups = new GroupTable<>(gbfield, gbfieldtype, Group::new);
     }
 
     /**
@@ -53,20 +54,11 @@ public class IntegerAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        if (groupByField == Aggregator.NO_GROUPING) {
-            Integer aggregateValue = ((IntField) tup.getField(aggregateField)).getValue();
-            if (!groupFieldMap.containsKey("")) {
-                groupFieldMap.put("", new ArrayList<>());
-            }
-            groupFieldMap.get("").add(aggregateValue);
-        } else {
-            String groupByKey = tup.getField(groupByField).toString();
-            Integer aggregateValue = ((IntField) tup.getField(aggregateField)).getValue();
-            if (!groupFieldMap.containsKey(groupByKey)) {
-                groupFieldMap.put(groupByKey, new ArrayList<>());
-            }
-            groupFieldMap.get(groupByKey).add(aggregateValue);
-        }
+        mergeTupleIntoGroup((TupleView) tup);
+    }
+
+    public void mergeTupleIntoGroup(TupleView tup) {
+        groups.get(tup).add(tup.getInt(aggregateField));
     }
 
     /**
@@ -88,52 +80,19 @@ public class IntegerAggregator implements Aggregator {
 
         public IntegerAggregatorOpIterator() {
             res = new ArrayList<>();
-            if (groupByField == Aggregator.NO_GROUPING) {
+            for (Map.Entry<Field, Group> entry : groups.groups().entrySet()) {
                 Tuple t = new Tuple(getTupleDesc());
-                Field aggregateValue = new IntField(calculate(groupFieldMap.get("")));
-                t.setField(0, aggregateValue);
-                res.add(t);
-            } else {
-                for (Map.Entry<String, List<Integer>> entry: groupFieldMap.entrySet()) {
-                    Tuple t = new Tuple(getTupleDesc());
-                    Field groupValue = null;
-                    if (groupByFieldType == Type.INT_TYPE) {
-                        groupValue = new IntField(Integer.parseInt(entry.getKey()));
-                    } else {
-                        groupValue = new StringField(entry.getKey(), entry.getKey().length());
-                    }
-                    Field aggregateValue = new IntField(calculate(entry.getValue()));
-                    t.setField(0, groupValue);
+                Field aggregateValue = new IntField(entry.getValue().result());
+                if (groupByField == Aggregator.NO_GROUPING) {
+                    t.setField(0, aggregateValue);
+                } else {
+                    t.setField(0, entry.getKey());
                     t.setField(1, aggregateValue);
-                    res.add(t);
                 }
+                res.add(t);
             }
         }
 
-        private int calculate(List<Integer> values) {
-            int res = 0;
-            switch (what) {
-                case MIN:
-                    res = values.stream().mapToInt(x -> x).min().getAsInt();
-                    break;
-                case MAX:
-                    res = values.stream().mapToInt(x -> x).max().getAsInt();
-                    break;
-                case SUM:
-                    res = values.stream().mapToInt(x -> x).sum();
-                    break;
-                case AVG:
-                    res = (int) values.stream().mapToInt(x -> x).average().getAsDouble();
-                    break;
-                case COUNT:
-                    res = (int) values.stream().mapToInt(x -> x).count();
-                    break;
-                default:
-                    throw new UnsupportedOperationException("unsupported aggregate operator");
-            }
-            return res;
-        }
-
         @Override
         public void open() throws DbException, TransactionAbortedException {
             it = res.iterator();
@@ -177,4 +136,39 @@ public class IntegerAggregator implements Aggregator {
             it = null;
         }
     }
+
+    /**
+     * The running state of the aggregate of one group, so that values need
+     * not be kept until the result is computed.
+     */
+    private class Group {
+        private int min = Integer.MAX_VALUE;
+        private int max = Integer.MIN_VALUE;
+        private long sum = 0;
+        private int count = 0;
+
+        void add(int value) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+            count++;
+        }
+
+        int result() {
+            switch (what) {
+                case MIN:
+                    return min;
+                case MAX:
+                    return max;
+                case SUM:
+                    return (int) sum;
+                case AVG:
+                    return (int) ((double) sum / count);
+                case COUNT:
+                    return count;
+                default:
+                    throw new UnsupportedOperationException("unsupported aggregate operator");
+            }
+        }
+    }
 }
@@ -1,7 +1,9 @@
 package simpledb.execution;
 
+import simpledb.common.Type;
 import simpledb.storage.Field;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleView;
 
 import java.io.Serializable;
 
@@ -49,6 +51,20 @@ public class JoinPredicate implements Serializable {
         // some code goes here
         return t1.getField(field1).compare(op, t2.getField(field2));
     }
+
+    /**
+     * Apply the predicate to two tuple views.  Integer fields are compared
+     * without creating Field objects.
+     * 
+     * @return true if the tuples satisfy the predicate.
+     */
+    public boolean filter(TupleView t1, TupleView t2) {
+        if (t1.getTupleDesc().getFieldType(field1) == Type.INT_TYPE) {
+            Predicate.Op intOp = op == Predicate.Op.LIKE ? Predicate.Op.EQUALS : op;
+            return Predicate.holds(intOp, Integer.compare(t1.getInt(field1), t2.getInt(field2)));
+        }
+        return t1.getField(field1).compare(op, t2.getField(field2));
+    }
     
     public int getField1()
     {
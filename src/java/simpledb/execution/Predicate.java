@@ -1,7 +1,11 @@
 package simpledb.execution;
 
+import simpledb.common.Type;
 import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleView;
 
 import java.io.Serializable;
 
@@ -110,6 +114,48 @@ public class Predicate implements Serializable {
         return t.getField(field).compare(op, operand);
     }
 
+    /**
+     * Compares a field of a tuple view to the operand, like
+     * {@link #filter(Tuple)}, without creating a Field for it.
+     *
+     * @param t
+     *            The tuple to compare against
+     * @return true if the comparison is true, false otherwise.
+     */
+    public boolean filter(TupleView t) {
+        if (operand.getType() == Type.INT_TYPE) {
+            int value = ((IntField) operand).getValue();
+            return holds(op == Op.LIKE ? Op.EQUALS : op, Integer.compare(t.getInt(field), value));
+        }
+        String value = ((StringField) operand).getValue();
+        if (op == Op.LIKE) {
+            return t.containsString(field, value);
+        }
+        return holds(op, t.compareString(field, value));
+    }
+
+    /**
+     * Return true if a comparison whose result is cmp (as returned by
+     * compareTo) satisfies op, which must not be LIKE.
+     */
+    static boolean holds(Op op, int cmp) {
+        switch (op) {
+            case EQUALS:
+                return cmp == 0;
+            case NOT_EQUALS:
+                return cmp != 0;
+            case GREATER_THAN:
+                return cmp > 0;
+            case GREATER_THAN_OR_EQ:
+                return cmp >= 0;
+            case LESS_THAN:
+                return cmp < 0;
+            case LESS_THAN_OR_EQ:
+                return cmp <= 0;
+        }
+        return false;
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string"
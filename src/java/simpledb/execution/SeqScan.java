@@ -7,8 +7,10 @@ import simpledb.transaction.TransactionId;
 import simpledb.common.Type;
 import simpledb.common.DbException;
 import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleView;
 
 import java.util.*;
 
@@ -16,8 +18,11 @@ import java.util.*;
  * SeqScan is an implementation of a sequential scan access method that reads
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
+ * <p>
+ * Scans of heap files can also hand out their tuples as views over the page
+ * bytes (see {@link TupleViewSource}).
  */
-public class SeqScan implements OpIterator {
+public class SeqScan implements OpIterator, TupleViewSource {
 
     private static final long serialVersionUID = 1L;
 
@@ -140,10 +145,20 @@ public class SeqScan implements OpIterator {
         return null;
     }
 
+    public boolean supportsViews() {
+        return iterator instanceof HeapFile.HeapFileIterator;
+    }
+
+    public void forEachView(TupleView.Visitor visitor) throws DbException, TransactionAbortedException {
+        ((HeapFile.HeapFileIterator) iterator).forEachView(visitor);
+    }
+
     public void close() {
         // some code goes here
-        iterator.close();
-        iterator = null;
+        if (iterator != null) {
+            iterator.close();
+            iterator = null;
+        }
     }
 
     public void rewind() throws DbException, NoSuchElementException,
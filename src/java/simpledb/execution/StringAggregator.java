@@ -18,7 +18,8 @@ public class StringAggregator implements Aggregator {
     private Type groupByFieldType;
     private int aggregateField;
     private Op what;
-    private Map<String, List<String>> groupFieldMap;
+    /** Number of tuples per group value. */
+    private GroupTable<Count> counts;
 
     /**
      * Aggregate constructor
@@ -35,7 +36,7 @@ public class StringAggregator implements Aggregator {
         this.groupByFieldType = gbfieldtype;
         this.aggregateField = afield;
         this.what = what;
-        this.groupFieldMap = new HashMap<>();
+        this.counts = new GroupTable<>(gbfield, gbfieldtype, Count::new);
     }
 
     /**
@@ -44,20 +45,11 @@ public class StringAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        if (groupByField == Aggregator.NO_GROUPING) {
-            String aggregateValue = ((StringField) tup.getField(aggregateField)).getValue();
-            if (!groupFieldMap.containsKey("")) {
-                groupFieldMap.put("", new ArrayList<>());
-            }
-            groupFieldMap.get("").add(aggregateValue);
-        } else {
-            String groupByKey = tup.getField(groupByField).toString();
-            String aggregateValue = ((StringField) tup.getField(aggregateField)).getValue();
-            if (!groupFieldMap.containsKey(groupByKey)) {
-                groupFieldMap.put(groupByKey, new ArrayList<>());
-            }
-            groupFieldMap.get(groupByKey).add(aggregateValue);
-        }
+        mergeTupleIntoGroup((TupleView) tup);
+    }
+
+    public void mergeTupleIntoGroup(TupleView tup) {
+        counts.get(tup).n++;
     }
 
     /**
@@ -80,38 +72,26 @@ public class StringAggregator implements Aggregator {
 
         public StringAggregatorOpIterator() {
             res = new ArrayList<>();
-            if (groupByField == Aggregator.NO_GROUPING) {
+            for (Map.Entry<Field, Count> entry : counts.groups().entrySet()) {
                 Tuple t = new Tuple(getTupleDesc());
-                Field aggregateValue = new IntField(calculate(groupFieldMap.get("")));
-                t.setField(0, aggregateValue);
-                res.add(t);
-            } else {
-                for (Map.Entry<String, List<String>> entry: groupFieldMap.entrySet()) {
-                    Tuple t = new Tuple(getTupleDesc());
-                    Field groupValue = null;
-                    if (groupByFieldType == Type.INT_TYPE) {
-                        groupValue = new IntField(Integer.parseInt(entry.getKey()));
-                    } else {
-                        groupValue = new StringField(entry.getKey(), entry.getKey().length());
-                    }
-                    Field aggregateValue = new IntField(calculate(entry.getValue()));
-                    t.setField(0, groupValue);
+                Field aggregateValue = new IntField(calculate(entry.getValue().n));
+                if (groupByField == Aggregator.NO_GROUPING) {
+                    t.setField(0, aggregateValue);
+                } else {
+                    t.setField(0, entry.getKey());
                     t.setField(1, aggregateValue);
-                    res.add(t);
                 }
+                res.add(t);
             }
         }
 
-        private int calculate(List<String> values) {
-            int res = 0;
+        private int calculate(int count) {
             switch (what) {
                 case COUNT:
-                    res = (int) values.stream().count();
-                    break;
+                    return count;
                 default:
                     throw new UnsupportedOperationException("unsupported aggregate operator");
             }
-            return res;
         }
 
         @Override
@@ -158,4 +138,9 @@ public class StringAggregator implements Aggregator {
         }
     }
 
+    /** Number of tuples in a group. */
+    private static class Count {
+        private int n;
+    }
+
 }
@@ -0,0 +1,27 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.TupleView;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * An operator that can hand its tuples to a consumer as {@link TupleView}s
+ * instead of returning them from next(), so that the consumer can evaluate
+ * them without materializing a Tuple per row.  Aggregate uses this to
+ * aggregate a filtered scan without allocating per tuple.
+ */
+public interface TupleViewSource {
+
+    /**
+     * @return true if {@link #forEachView} can be used on this operator; e.g.
+     *         a scan can only provide views over a heap file
+     */
+    boolean supportsViews();
+
+    /**
+     * Visit all tuples of this operator.  Must be called right after the
+     * operator is opened, instead of next(); the operator is exhausted
+     * afterwards.
+     */
+    void forEachView(TupleView.Visitor visitor) throws DbException, TransactionAbortedException;
+}
@@ -1,6 +1,7 @@
 package simpledb.index;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import simpledb.common.Database;
@@ -19,6 +20,8 @@ import simpledb.transaction.TransactionId;
  * a set of internal pages, and a set of leaf pages, which contain a collection of tuples
  * in sorted order. BTreeFile works closely with BTreeLeafPage, BTreeInternalPage,
  * and BTreeRootPtrPage. The format of these pages is described in their constructors.
+ * Pages are read and written with positional I/O through a handle on the file
+ * that stays open between accesses (see {@link FileHandleCache}).
  * 
  * @see BTreeLeafPage#BTreeLeafPage
  * @see BTreeInternalPage#BTreeInternalPage
@@ -32,6 +35,7 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private final int keyField;
+	private final FileHandleCache.Handle handle;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -46,6 +50,7 @@ public class BTreeFile implements DbFile {
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		this.handle = Database.getFileHandles().open(f);
 	}
 
 	/**
@@ -87,49 +92,51 @@ public class BTreeFile implements DbFile {
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
 
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f))) {
-            if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-                byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BTreeRootPtrPage.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                return new BTreeRootPtrPage(id, pageBuf);
-            } else {
-                byte[] pageBuf = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
-                        BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BufferPool.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                if (id.pgcateg() == BTreePageId.INTERNAL) {
-                    return new BTreeInternalPage(id, pageBuf, keyField);
-                } else if (id.pgcateg() == BTreePageId.LEAF) {
-                    return new BTreeLeafPage(id, pageBuf, keyField);
-                } else { // id.pgcateg() == BTreePageId.HEADER
-                    return new BTreeHeaderPage(id, pageBuf);
-                }
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        // Close the file on success or error
-        // Ignore failures closing the file
-    }
+		int pageSize;
+		long offset;
+		if (id.pgcateg() == BTreePageId.ROOT_PTR) {
+			pageSize = BTreeRootPtrPage.getPageSize();
+			offset = 0;
+		} else {
+			pageSize = BufferPool.getPageSize();
+			offset = BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize();
+		}
+		byte[] pageBuf = new byte[pageSize];
+		int retval;
+		try {
+			retval = handle.read(ByteBuffer.wrap(pageBuf), offset);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		if (retval == -1) {
+			throw new IllegalArgumentException("Read past end of table");
+		}
+		if (retval < pageSize) {
+			throw new IllegalArgumentException("Unable to read "
+					+ pageSize + " bytes from BTreeFile");
+		}
+		Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
+		try {
+			return createPage(id, pageBuf);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Create a page of this file from its data, according to its category
+	 */
+	private Page createPage(BTreePageId id, byte[] data) throws IOException {
+		if (id.pgcateg() == BTreePageId.ROOT_PTR) {
+			return new BTreeRootPtrPage(id, data);
+		} else if (id.pgcateg() == BTreePageId.INTERNAL) {
+			return new BTreeInternalPage(id, data, keyField);
+		} else if (id.pgcateg() == BTreePageId.LEAF) {
+			return new BTreeLeafPage(id, data, keyField);
+		} else { // id.pgcateg() == BTreePageId.HEADER
+			return new BTreeHeaderPage(id, data);
+		}
+	}
 
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
@@ -141,15 +148,11 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			handle.write(ByteBuffer.wrap(data), 0);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			handle.write(ByteBuffer.wrap(data), BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
 		}
 	}
 	
@@ -1017,13 +1020,10 @@ public class BTreeFile implements DbFile {
 		synchronized(this) {
 			if(f.length() == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
 				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				handle.append(ByteBuffer.wrap(emptyRootPtrData));
+				handle.append(ByteBuffer.wrap(emptyLeafData));
 			}
 		}
 
@@ -1079,11 +1079,8 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				handle.append(ByteBuffer.wrap(emptyData));
 				emptyPageNo = numPages();
 			}
 		}
@@ -1093,8 +1090,10 @@ public class BTreeFile implements DbFile {
 	
 	/**
 	 * Method to encapsulate the process of creating a new page.  It reuses old pages if possible,
-	 * and creates a new page if none are available.  It wipes the page on disk and in the cache and 
-	 * returns a clean copy locked with read-write permission
+	 * and creates a new page if none are available.  It wipes the page in the cache and returns
+	 * an empty copy locked with read-write permission.  The page on disk is only replaced when
+	 * the transaction commits: it may be a page the transaction deleted, which is read back from
+	 * disk if the transaction aborts
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
@@ -1113,17 +1112,18 @@ public class BTreeFile implements DbFile {
 		int emptyPageNo = getEmptyPageNo(tid, dirtypages);
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
-		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
-		
-		// make sure the page is not in the buffer pool	or in the local cache		
-		Database.getBufferPool().discardPage(newPageId);
-		dirtypages.remove(newPageId);
+		// make sure the page is not in the buffer pool or in the local cache, in any category,
+		// so that only the new page is written back
+		for(int categ : new int[] { BTreePageId.INTERNAL, BTreePageId.LEAF, BTreePageId.HEADER }) {
+			BTreePageId oldPageId = new BTreePageId(tableid, emptyPageNo, categ);
+			Database.getBufferPool().discardPage(oldPageId);
+			dirtypages.remove(oldPageId);
+		}
 		
-		return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
+		Page newPage = createPage(newPageId, BTreePage.createEmptyPageData());
+		Database.getBufferPool().installNewPage(tid, newPage);
+		dirtypages.put(newPageId, newPage);
+		return newPage;
 	}
 
 	/**
@@ -1247,6 +1247,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	PageHandle pinned = null;
 
 	final TransactionId tid;
 	final BTreeFile f;
@@ -1269,9 +1270,26 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
 		BTreePageId root = rootPtr.getRootId();
 		curp = f.findLeafPage(tid, root, null);
+		pin(curp.getId());
 		it = curp.iterator();
 	}
 
+	/**
+	 * Pin the leaf page the iterator is on, unpinning the previous one
+	 */
+	private void pin(BTreePageId pid) throws DbException, TransactionAbortedException {
+		unpin();
+		pinned = Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+		curp = (BTreeLeafPage) pinned.getPage();
+	}
+
+	private void unpin() {
+		if (pinned != null) {
+			pinned.close();
+			pinned = null;
+		}
+	}
+
 	/**
 	 * Read the next tuple either from the current page if it has more tuples or
 	 * from the next page by following the right sibling pointer.
@@ -1287,10 +1305,10 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 			BTreePageId nextp = curp.getRightSiblingId();
 			if(nextp == null) {
 				curp = null;
+				unpin();
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+				pin(nextp);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1315,6 +1333,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
+		unpin();
 		it = null;
 		curp = null;
 	}
@@ -1328,6 +1347,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	PageHandle pinned = null;
 
 	final TransactionId tid;
 	final BTreeFile f;
@@ -1360,9 +1380,26 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		else {
 			curp = f.findLeafPage(tid, root, null);
 		}
+		pin(curp.getId());
 		it = curp.iterator();
 	}
 
+	/**
+	 * Pin the leaf page the iterator is on, unpinning the previous one
+	 */
+	private void pin(BTreePageId pid) throws DbException, TransactionAbortedException {
+		unpin();
+		pinned = Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+		curp = (BTreeLeafPage) pinned.getPage();
+	}
+
+	private void unpin() {
+		if (pinned != null) {
+			pinned.close();
+			pinned = null;
+		}
+	}
+
 	/**
 	 * Read the next tuple either from the current page if it has more tuples matching
 	 * the predicate or from the next page by following the right sibling pointer.
@@ -1382,12 +1419,14 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
 					// if the predicate was not satisfied and the operation is less than, we have
 					// hit the end
+					unpin();
 					return null;
 				}
 				else if(ipred.getOp() == Op.EQUALS && 
 						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
 					// if the tuple is now greater than the field passed in and the operation
 					// is equals, we have reached the end
+					unpin();
 					return null;
 				}
 			}
@@ -1395,11 +1434,11 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			BTreePageId nextp = curp.getRightSiblingId();
 			// if there are no more pages to the right, end the iteration
 			if(nextp == null) {
+				unpin();
 				return null;
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+				pin(nextp);
 				it = curp.iterator();
 			}
 		}
@@ -1420,6 +1459,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
+		unpin();
 		it = null;
 	}
 }
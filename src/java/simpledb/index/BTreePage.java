@@ -20,6 +20,7 @@ import simpledb.transaction.TransactionId;
 public abstract class BTreePage implements Page {
 	protected volatile boolean dirty = false;
 	protected volatile TransactionId dirtier = null;
+	protected volatile long pageLsn = 0;
 
 	protected final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -134,6 +135,14 @@ public abstract class BTreePage implements Page {
 			return null;
 	}
 
+	public long getPageLsn() {
+		return pageLsn;
+	}
+
+	public void setPageLsn(long lsn) {
+		this.pageLsn = lsn;
+	}
+
 	/**
 	 * Returns the number of empty slots on this page.
 	 */
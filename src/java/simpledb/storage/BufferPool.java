@@ -3,12 +3,18 @@ package simpledb.storage;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.DbException;
+import simpledb.transaction.OccValidator;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -18,6 +24,35 @@ import java.util.*;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Resident pages are kept in a concurrent page table of {@link Frame}s.
+ * Lookups of different pages never contend: each frame has its own latch,
+ * which is only held while the page is read from disk, and hits are handed
+ * to the replacement policy through a buffer that is drained in batches.
+ * <p>
+ * Sequential scans of HeapFiles are read ahead by a background thread; see
+ * {@link ReadAhead}.
+ * <p>
+ * By default dirty pages stay in the pool until their transaction commits
+ * (NO STEAL), so a transaction can dirty at most as many pages as the pool
+ * holds.  In STEAL mode (see {@link #setStealMode}) a dirty page may be
+ * written out to make room: its update record is logged first, and the page
+ * is written only once the log is durable up to the page's LSN (the WAL
+ * rule).  If the transaction aborts, the stolen pages are restored from the
+ * before images in the log.
+ * <p>
+ * A background {@link PageCleaner} can be started to write dirty pages
+ * out ahead of eviction and to take fuzzy checkpoints.
+ * <p>
+ * In MVCC mode (see {@link #setMvccMode}) read-only transactions read a
+ * snapshot of the database without taking locks, from the prior versions
+ * of pages kept in a {@link VersionStore}.  Writers still lock pages; the
+ * committed contents of each page are saved before it is first locked for
+ * writing.
+ * <p>
+ * Transactions may also run under optimistic concurrency control (see
+ * {@link OccValidator}): they take no locks, write private copies of
+ * pages, and are validated by {@link #commitOptimistic} when they commit.
  * 
  * @Threadsafe, all fields are final
  */
@@ -32,22 +67,87 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
-    private int numPages;
-    private Map<PageId, Page> pageMap;
-    private LockManager lockManager;
-    private DependencyGraph dependencyGraph;
+    /** Number of buffered hits that triggers a drain into the replacement policy. */
+    private static final int ACCESS_BUFFER_DRAIN_THRESHOLD = 64;
+
+    private final int numPages;
+    private final Map<PageId, Frame> frames;
+    /** The number of frames in the page table, counting slots reserved for frames being added. */
+    private final AtomicInteger frameCount;
+    private final LockManager lockManager;
+
+    /** Guards replacementPolicy, which is not thread-safe. */
+    private final ReentrantLock policyLock;
+    private final ReplacementPolicy replacementPolicy;
+    private final Queue<PageId> accessBuffer;
+    private final AtomicInteger bufferedAccesses;
+
+    private final Map<TransactionId, Set<PageHandle>> pinsByTransaction;
+    /** Pages each transaction fetched for writing; they may be changed before they are marked dirty. */
+    private final Map<TransactionId, Set<PageId>> writtenPages;
+
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+
+    private final ReadAhead readAhead;
+
+    private volatile boolean stealMode;
+    /** Pages written to disk before their transaction completed, by transaction. */
+    private final Map<TransactionId, Set<PageId>> stolenPages;
+    private final AtomicLong steals;
+
+    private final PageCleaner cleaner;
+
+    private volatile boolean mvccMode;
+    private final VersionStore versionStore;
+
+    private final OccValidator occ;
+
+    private volatile boolean recordLocking;
+
+    /** Transactions declared read-only; they have nothing to flush or roll back. */
+    private final Set<TransactionId> readOnly;
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages, replacing pages
+     * with the 2Q policy.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, new TwoQueuePolicy(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param replacementPolicy decides which page to evict when the pool is full
+     */
+    public BufferPool(int numPages, ReplacementPolicy replacementPolicy) {
         // some code goes here
         this.numPages = numPages;
-        pageMap = new LinkedHashMap<>();
+        this.replacementPolicy = replacementPolicy;
+        frames = new ConcurrentHashMap<>();
+        frameCount = new AtomicInteger(0);
         lockManager = new LockManager();
-        dependencyGraph = new DependencyGraph();
+        policyLock = new ReentrantLock();
+        accessBuffer = new ConcurrentLinkedQueue<>();
+        bufferedAccesses = new AtomicInteger(0);
+        pinsByTransaction = new ConcurrentHashMap<>();
+        writtenPages = new ConcurrentHashMap<>();
+        hits = new AtomicLong(0);
+        misses = new AtomicLong(0);
+        readAhead = new ReadAhead(numPages);
+        stealMode = false;
+        stolenPages = new ConcurrentHashMap<>();
+        steals = new AtomicLong(0);
+        cleaner = new PageCleaner(this);
+        mvccMode = false;
+        versionStore = new VersionStore();
+        occ = new OccValidator();
+        recordLocking = false;
+        readOnly = ConcurrentHashMap.newKeySet();
     }
     
     public static int getPageSize() {
@@ -82,41 +182,717 @@ public class BufferPool {
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
+        checkWritable(tid, pid, perm);
+        if (versionStore.isSnapshot(tid)) {
+            return snapshotPage(tid, pid, perm);
+        }
+        if (occ.isOptimistic(tid)) {
+            return optimisticPage(tid, pid, perm);
+        }
+        acquireLock(tid, pid, perm);
+        recordWrite(tid, pid, perm);
+        Frame frame = pinFrame(pid);
+        Page page;
+        try {
+            synchronized (frame) {
+                page = frame.getPage();
+            }
+        } finally {
+            frame.unpin();
+        }
+        beforeWrite(tid, page, perm);
+        return page;
+    }
 
-        boolean acquired = false;
-        boolean blocked = false;
-        Set<TransactionId> holding = null;
-        while (!acquired) {
-            holding = lockManager.peekLock(pid);
-            if (!holding.isEmpty()) {
-                for (TransactionId t: holding) {
-                    if (!t.equals(tid)) {
-                        if (!dependencyGraph.addDependency(tid, t)) {
-                            throw new TransactionAbortedException();
-                        }
-                        blocked = true;
-                    }
+    /**
+     * Remember a page a locking transaction fetched for writing, so that
+     * rollback discards it even if the transaction aborts after changing
+     * it but before marking it dirty.
+     */
+    private void recordWrite(TransactionId tid, PageId pid, Permissions perm) {
+        if (tid != null && perm.equals(Permissions.READ_WRITE)) {
+            writtenPages.computeIfAbsent(tid, t -> ConcurrentHashMap.newKeySet()).add(pid);
+        }
+    }
+
+    /** Refuse write access to the pages for a transaction declared read-only. */
+    private void checkWritable(TransactionId tid, PageId pid, Permissions perm) throws DbException {
+        if (perm.equals(Permissions.READ_WRITE) && tid != null && readOnly.contains(tid)) {
+            throw new DbException("read-only transaction " + tid.getId() + " cannot write page " + pid);
+        }
+    }
+
+    /** Return the version of a page the snapshot of a read-only transaction reads. */
+    private Page snapshotPage(TransactionId tid, PageId pid, Permissions perm) throws DbException {
+        if (perm.equals(Permissions.READ_WRITE)) {
+            throw new DbException("read-only transaction " + tid.getId() + " cannot write page " + pid);
+        }
+        Frame frame = pinFrame(pid);
+        try {
+            Page current;
+            synchronized (frame) {
+                current = frame.getPage();
+            }
+            return versionStore.read(tid, current);
+        } finally {
+            frame.unpin();
+        }
+    }
+
+    /** Return the page currently in the pool, reading it from disk if needed. */
+    private Page residentPage(PageId pid) throws DbException {
+        Frame frame = pinFrame(pid);
+        try {
+            synchronized (frame) {
+                return frame.getPage();
+            }
+        } finally {
+            frame.unpin();
+        }
+    }
+
+    /**
+     * Return a page for an optimistic transaction, without locking it:
+     * its private copy if it writes the page, else the shared page, whose
+     * version joins its read set.  Asking for write permission copies the
+     * page into its write set.
+     */
+    private Page optimisticPage(TransactionId tid, PageId pid, Permissions perm) throws DbException {
+        Page own = occ.getWrite(tid, pid);
+        if (own != null) {
+            return own;
+        }
+        long version = occ.version(pid);
+        Page shared = residentPage(pid);
+        occ.recordRead(tid, pid, version);
+        if (perm.equals(Permissions.READ_ONLY)) {
+            return shared;
+        }
+        Page copy = VersionStore.copy(shared);
+        occ.putWrite(tid, copy);
+        return copy;
+    }
+
+    /** In MVCC mode, save the committed contents of a page before it is first written. */
+    private void beforeWrite(TransactionId tid, Page page, Permissions perm) throws DbException {
+        if (mvccMode && tid != null && perm.equals(Permissions.READ_WRITE)) {
+            versionStore.beforeWrite(tid, page);
+        }
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage} and pin it, so it
+     * stays in the buffer pool until the returned handle is closed.  Access
+     * methods that keep working on a page (e.g. iterators) should use this
+     * instead of looking the page up again.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @return a handle on the pinned page; close it to unpin the page
+     */
+    public PageHandle pinPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        checkWritable(tid, pid, perm);
+        if (versionStore.isSnapshot(tid)) {
+            // a snapshot page is a copy, not pinned in the pool
+            return new PageHandle(this, null, snapshotPage(tid, pid, perm), null);
+        }
+        if (occ.isOptimistic(tid)) {
+            return new PageHandle(this, null, optimisticPage(tid, pid, perm), null);
+        }
+        acquireLock(tid, pid, perm);
+        recordWrite(tid, pid, perm);
+        return pin(tid, pid, perm);
+    }
+
+    /** Pin a page a transaction has locked, like {@link #pinPage}. */
+    private PageHandle pin(TransactionId tid, PageId pid, Permissions perm) throws DbException {
+        Frame frame = pinFrame(pid);
+        Page page;
+        synchronized (frame) {
+            page = frame.getPage();
+        }
+        try {
+            beforeWrite(tid, page, perm);
+        } catch (DbException e) {
+            frame.unpin();
+            throw e;
+        }
+        PageHandle handle = new PageHandle(this, frame, page, tid);
+        if (tid != null) {
+            pinsByTransaction.computeIfAbsent(tid, t -> ConcurrentHashMap.newKeySet()).add(handle);
+        }
+        return handle;
+    }
+
+    /**
+     * Pin a heap page to read some of its tuples, locking the tuples
+     * rather than the page in record locking mode (see
+     * {@link #setRecordLocking}): the transaction takes an IS lock on the
+     * page and an S lock on each tuple it reads, after waiting for the
+     * transactions writing tuples of the page.  Writers may meanwhile
+     * insert into other slots of the page.
+     * <p>
+     * Otherwise, the page is pinned like with {@link #pinPage} and all its
+     * tuples may be read.
+     *
+     * @param tid the ID of the transaction reading the page
+     * @param pid the ID of the page
+     * @param slots set to the slots of the page the transaction may read
+     * @return a handle on the pinned page; close it to unpin the page
+     */
+    public PageHandle pinTuples(TransactionId tid, HeapPageId pid, BitSet slots)
+        throws TransactionAbortedException, DbException {
+        slots.clear();
+        if (!locksRecords(tid)) {
+            PageHandle handle = pinPage(tid, pid, Permissions.READ_ONLY);
+            slots.or(((HeapPage) handle.getPage()).usedSlots());
+            return handle;
+        }
+        while (true) {
+            lockManager.acquirePageLock(tid, pid, LockManager.LockMode.IS);
+            // wait for the writers of the page: a slot they emptied looks unused
+            for (RecordId rid : lockManager.getRecordsWrittenByOthers(tid, pid)) {
+                lockManager.acquireRecordLock(tid, rid, Permissions.READ_ONLY);
+            }
+            PageHandle handle = pin(tid, pid, Permissions.READ_ONLY);
+            HeapPage page = (HeapPage) handle.getPage();
+            BitSet used = page.usedSlots();
+            try {
+                for (int i = used.nextSetBit(0); i >= 0; i = used.nextSetBit(i + 1)) {
+                    lockManager.acquireRecordLock(tid, new RecordId(pid, i), Permissions.READ_ONLY);
                 }
+            } catch (TransactionAbortedException e) {
+                handle.close();
+                throw e;
+            }
+            // a writer that came meanwhile may have emptied a slot, and an
+            // aborted one has its page discarded: read the page again then
+            if (lockManager.getRecordsWrittenByOthers(tid, pid).isEmpty() && residentPage(pid) == page) {
+                used.and(page.usedSlots());
+                slots.or(used);
+                return handle;
+            }
+            handle.close();
+        }
+    }
+
+    /**
+     * In record locking mode, lock a tuple for a transaction that already
+     * holds the lock on its page: S for READ_ONLY, X for READ_WRITE.  Does
+     * nothing otherwise.
+     */
+    public void lockRecord(TransactionId tid, RecordId rid, Permissions perm)
+        throws TransactionAbortedException {
+        if (locksRecords(tid)) {
+            lockManager.acquireRecordLock(tid, rid, perm);
+        }
+    }
+
+    /** Return true if tid takes record locks on heap pages. */
+    private boolean locksRecords(TransactionId tid) {
+        return recordLocking && tid != null && !versionStore.isSnapshot(tid) && !occ.isOptimistic(tid);
+    }
+
+    /** Called when a handle is closed; it no longer needs to be closed on transaction completion. */
+    void forgetHandle(PageHandle handle) {
+        Set<PageHandle> handles = pinsByTransaction.get(handle.getTransactionId());
+        if (handles != null) {
+            handles.remove(handle);
+        }
+    }
+
+    /** Close the handles a transaction left open. */
+    private void unpinAll(TransactionId tid) {
+        Set<PageHandle> handles = pinsByTransaction.remove(tid);
+        if (handles != null) {
+            for (PageHandle handle : handles) {
+                handle.close();
             }
-            acquired = lockManager.acquireLock(tid, pid, perm);
         }
-        if (blocked) {
-            for (TransactionId t: holding) {
-                if (!t.equals(tid)) {
-                    dependencyGraph.removeDependency(tid, t);
+    }
+
+    /**
+     * Acquire the lock on a page for a transaction, waiting for other
+     * transactions if needed (see {@link LockManager}).
+     */
+    private void acquireLock(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException {
+        if (perm.equals(Permissions.READ_WRITE) && pid instanceof HeapPageId && locksRecords(tid)) {
+            // the tuples written are locked exclusive by the heap file; SIX
+            // rather than IX keeps out other writers of the page, whose
+            // changes a commit or rollback of the whole page would take along
+            lockManager.acquirePageLock(tid, pid, LockManager.LockMode.SIX);
+        } else {
+            lockManager.acquireLock(tid, pid, perm);
+        }
+    }
+
+    /**
+     * Return the frame holding a page, reading the page from disk if needed.
+     * Concurrent misses on the same page wait on the frame latch and the
+     * page is read only once.  The frame is returned pinned; the caller must
+     * unpin it.
+     */
+    private Frame pinFrame(PageId pid) throws DbException {
+        while (true) {
+            Frame frame = frames.get(pid);
+            if (frame == null) {
+                reserveFrame();
+                Frame fresh = new Frame(pid);
+                frame = frames.putIfAbsent(pid, fresh);
+                if (frame == null) {
+                    frame = fresh;
+                } else {
+                    frameCount.decrementAndGet();
                 }
             }
+            frame.pin();
+            boolean loaded = false;
+            try {
+                synchronized (frame) {
+                    if (frame.isEvicted()) {
+                        frame.unpin();
+                        continue;
+                    }
+                    if (frame.getPage() == null) {
+                        DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                        frame.setPage(dbFile.readPage(pid));
+                        loaded = true;
+                    }
+                }
+            } catch (RuntimeException e) {
+                frame.unpin();
+                removeFrame(frame);
+                throw e;
+            }
+            if (loaded && frame.getPage() == null) {
+                // past the end of the file: don't keep a slot for nothing
+                removeFrame(frame);
+                return frame;
+            }
+            if (loaded) {
+                misses.incrementAndGet();
+                admit(frame);
+            } else {
+                hits.incrementAndGet();
+                recordAccess(pid);
+            }
+            return frame;
         }
+    }
 
-        Page retrievedPage = pageMap.get(pid);
-        if(retrievedPage == null){
-            DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-            retrievedPage = dbFile.readPage(pid);
-            if(pageMap.size() == numPages)
+    /**
+     * Reserve a slot in the page table for a new frame, evicting a page
+     * while the pool is full.  The slot is given back when the frame is
+     * removed.
+     */
+    private void reserveFrame() throws DbException {
+        while (true) {
+            int n = frameCount.get();
+            if (n >= numPages) {
                 evictPage();
-            pageMap.put(pid, retrievedPage);
+            } else if (frameCount.compareAndSet(n, n + 1)) {
+                return;
+            }
+        }
+    }
+
+    /** Tell the replacement policy about a newly resident frame. */
+    private void admit(Frame frame) {
+        policyLock.lock();
+        try {
+            // the frame may have been discarded while it was being read
+            if (frames.get(frame.pid) == frame) {
+                replacementPolicy.pageAdmitted(frame.pid);
+            }
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    /**
+     * Record a hit without blocking; hits are applied to the replacement
+     * policy in batches by whichever thread gets the policy lock.
+     */
+    private void recordAccess(PageId pid) {
+        accessBuffer.add(pid);
+        if (bufferedAccesses.incrementAndGet() >= ACCESS_BUFFER_DRAIN_THRESHOLD
+                && policyLock.tryLock()) {
+            try {
+                drainAccessBuffer();
+            } finally {
+                policyLock.unlock();
+            }
+        }
+    }
+
+    /** Caller holds policyLock. */
+    private void drainAccessBuffer() {
+        PageId pid;
+        while ((pid = accessBuffer.poll()) != null) {
+            bufferedAccesses.decrementAndGet();
+            if (frames.containsKey(pid)) {
+                replacementPolicy.pageAccessed(pid);
+            }
+        }
+    }
+
+    /**
+     * Put a page that was modified outside of getPage (e.g. a page appended
+     * to a file) into the page table, replacing any resident copy.  A dirty
+     * page cannot be dropped, so a new frame takes a slot even if the pool
+     * is full; the next miss evicts a page to make up for it.
+     */
+    private void installPage(Page page) {
+        PageId pid = page.getId();
+        while (true) {
+            Frame frame = frames.get(pid);
+            if (frame == null) {
+                Frame fresh = new Frame(pid);
+                fresh.setPage(page);
+                if (frames.putIfAbsent(pid, fresh) == null) {
+                    frameCount.incrementAndGet();
+                    admit(fresh);
+                    return;
+                }
+                continue;
+            }
+            synchronized (frame) {
+                if (!frame.isEvicted()) {
+                    frame.setPage(page);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Put a page a transaction creates into the buffer pool, locked
+     * READ_WRITE and dirty, without reading it from disk; it replaces any
+     * resident copy.  The page is written to disk when the transaction
+     * commits and discarded if it aborts, so the page on disk, e.g. a page
+     * the transaction deleted and now reuses, stays intact until then.
+     *
+     * @param tid the ID of the transaction creating the page
+     * @param page the new page
+     */
+    public void installNewPage(TransactionId tid, Page page)
+        throws TransactionAbortedException, DbException {
+        PageId pid = page.getId();
+        checkWritable(tid, pid, Permissions.READ_WRITE);
+        if (versionStore.isSnapshot(tid)) {
+            throw new DbException("read-only transaction " + tid.getId() + " cannot write page " + pid);
+        }
+        if (occ.isOptimistic(tid)) {
+            occ.putWrite(tid, page);
+            return;
+        }
+        acquireLock(tid, pid, Permissions.READ_WRITE);
+        page.markDirty(true, tid);
+        installPage(page);
+    }
+
+    /**
+     * Tell the read-ahead engine that a scan is about to read a page of a
+     * HeapFile.
+     *
+     * @param file the file being scanned
+     * @param pageNo the number of the page the scan reads next
+     */
+    void readAhead(HeapFile file, int pageNo) {
+        readAhead.pageRequested(file, pageNo);
+    }
+
+    /** Return the contents of a page read ahead of a scan, or null if it was not read ahead. */
+    byte[] takeReadAhead(PageId pid) {
+        return readAhead.take(pid);
+    }
+
+    /** Called after a HeapFile page has been written to disk. */
+    void pageWritten(PageId pid) {
+        readAhead.pageWritten(pid);
+    }
+
+    /** Return the number of pages read by read-ahead */
+    public long getReadAheadPages() {
+        return readAhead.getPagesRead();
+    }
+
+    /** Return the number of page reads served by read-ahead */
+    public long getReadAheadHits() {
+        return readAhead.getHits();
+    }
+
+    /** Return the number of lock requests that waited for another transaction */
+    public long getLockWaitCount() {
+        return lockManager.getWaitCount();
+    }
+
+    /** Return the total time lock requests waited, in milliseconds */
+    public double getLockWaitMillis() {
+        return lockManager.getWaitMillis();
+    }
+
+    /** Return the number of deadlocks broken by aborting a transaction */
+    public long getDeadlockCount() {
+        return lockManager.getDeadlockCount();
+    }
+
+    /** Return the number of transactions aborted by their lock policy instead of waiting */
+    public long getLockPolicyAbortCount() {
+        return lockManager.getPolicyAbortCount();
+    }
+
+    /**
+     * Set how a transaction avoids or breaks deadlocks when its lock
+     * requests conflict (see {@link LockManager.LockPolicy}); it applies
+     * until the transaction completes.
+     */
+    public void setLockPolicy(TransactionId tid, LockManager.LockPolicy policy) {
+        lockManager.setPolicy(tid, policy);
+    }
+
+    /** Set how long a transaction with a lock timeout waits for a lock, in milliseconds. */
+    public void setLockTimeout(long millis) {
+        lockManager.setLockTimeout(millis);
+    }
+
+    /** Return the number of times page locks were escalated to a table lock */
+    public long getLockEscalationCount() {
+        return lockManager.getEscalationCount();
+    }
+
+    /**
+     * Set the number of page locks a transaction may hold on one table
+     * before they are escalated to a table lock (see {@link LockManager}).
+     */
+    public void setLockEscalationThreshold(int threshold) {
+        lockManager.setEscalationThreshold(threshold);
+    }
+
+    /** Remove a frame from the page table and from the replacement policy. */
+    private void removeFrame(Frame frame) {
+        synchronized (frame) {
+            frame.markEvicted();
+        }
+        if (frames.remove(frame.pid, frame)) {
+            frameCount.decrementAndGet();
+            policyLock.lock();
+            try {
+                replacementPolicy.pageRemoved(frame.pid);
+            } finally {
+                policyLock.unlock();
+            }
+        }
+    }
+
+    /** Return the resident, loaded pages; a snapshot of the page table. */
+    private List<Page> residentPages() {
+        List<Page> pages = new ArrayList<>();
+        for (Frame frame : frames.values()) {
+            synchronized (frame) {
+                if (!frame.isEvicted() && frame.getPage() != null) {
+                    pages.add(frame.getPage());
+                }
+            }
+        }
+        return pages;
+    }
+
+    /**
+     * Set whether dirty pages of running transactions may be written to disk
+     * to make room in the pool (STEAL), or only clean pages are evicted
+     * (NO STEAL, the default).
+     */
+    public void setStealMode(boolean steal) {
+        this.stealMode = steal;
+    }
+
+    public boolean isStealMode() {
+        return stealMode;
+    }
+
+    /**
+     * Set whether read-only transactions read snapshots instead of taking
+     * locks (MVCC), or lock pages like other transactions (the default).
+     * Set it before starting transactions.
+     */
+    public void setMvccMode(boolean mvcc) {
+        this.mvccMode = mvcc;
+    }
+
+    public boolean isMvccMode() {
+        return mvccMode;
+    }
+
+    /**
+     * Begin the snapshot a read-only transaction reads in MVCC mode; it
+     * sees the transactions committed before it began.
+     */
+    public void beginSnapshot(TransactionId tid) {
+        versionStore.beginSnapshot(tid);
+    }
+
+    /**
+     * Set whether tuples of heap files are locked one by one (record
+     * locking), with intention locks on their pages, or whole pages are
+     * locked (the default).  Readers of a page then only wait for the
+     * writers of the tuples they read, and writers only for the readers of
+     * the tuples they write.
+     * <p>
+     * Writers of different tuples of one page do not run concurrently: a
+     * writer holds SIX on the page rather than IX, since a page has a
+     * single dirtying transaction and is logged, forced and rolled back
+     * as a whole.  Set it before starting transactions.
+     */
+    public void setRecordLocking(boolean recordLocking) {
+        this.recordLocking = recordLocking;
+    }
+
+    public boolean isRecordLocking() {
+        return recordLocking;
+    }
+
+    /**
+     * Declare a transaction read-only: it may not write pages, and when it
+     * completes no pages are flushed or rolled back for it.
+     */
+    public void beginReadOnly(TransactionId tid) {
+        readOnly.add(tid);
+    }
+
+    /** Start running a transaction under optimistic concurrency control. */
+    public void beginOptimistic(TransactionId tid) {
+        occ.begin(tid);
+    }
+
+    /**
+     * Validate an optimistic transaction and make its writes visible: take
+     * write locks on the pages it wrote, so that locking transactions see
+     * none of them before it commits, then check that the pages it read
+     * are unchanged and install its private copies in the pool.
+     *
+     * @throws TransactionAbortedException if the transaction conflicts
+     *         with another one, or its pages cannot be installed; it must
+     *         abort
+     */
+    public void commitOptimistic(TransactionId tid) throws TransactionAbortedException {
+        List<Page> writes = occ.getWrites(tid);
+        for (Page page : writes) {
+            lockManager.acquireLock(tid, page.getId(), Permissions.READ_WRITE);
+        }
+        synchronized (occ) {
+            if (!occ.validate(tid, pid -> lockManager.isWriteLockedByOther(tid, pid))) {
+                throw new TransactionAbortedException();
+            }
+            try {
+                for (Page page : writes) {
+                    if (mvccMode) {
+                        versionStore.beforeWrite(tid, residentPage(page.getId()));
+                    }
+                    page.markDirty(true, tid);
+                    installPage(page);
+                    occ.bump(page.getId());
+                }
+            } catch (DbException e) {
+                TransactionAbortedException abort = new TransactionAbortedException();
+                abort.initCause(e);
+                throw abort;
+            }
         }
-        return retrievedPage;
+    }
+
+    /** Return the number of optimistic transactions validated */
+    public long getOptimisticValidationCount() {
+        return occ.getValidationCount();
+    }
+
+    /** Return the number of optimistic transactions that failed validation */
+    public long getOptimisticConflictCount() {
+        return occ.getConflictCount();
+    }
+
+    /** Return the number of prior page versions kept for snapshots */
+    public int getPageVersionCount() {
+        return versionStore.getVersionCount();
+    }
+
+    /** Return the number of prior page versions garbage collected */
+    public long getCollectedVersionCount() {
+        return versionStore.getCollectedCount();
+    }
+
+    /** Return the number of dirty pages written out to make room in the pool */
+    public long getStolenPageCount() {
+        return steals.get();
+    }
+
+    /**
+     * Start the background page cleaner, or change the settings of the
+     * running one.  In STEAL mode it writes dirty pages out in page number
+     * order so that eviction finds clean pages; in either mode it takes
+     * fuzzy checkpoints of the log.
+     *
+     * @param intervalMillis time between cleaning rounds
+     * @param checkpointMillis time between checkpoints, or 0 for none
+     */
+    public void startPageCleaner(long intervalMillis, long checkpointMillis) {
+        cleaner.start(intervalMillis, checkpointMillis);
+    }
+
+    /** Stop the page cleaner, waiting for its current round to finish. */
+    public void stopPageCleaner() {
+        cleaner.stop();
+    }
+
+    /**
+     * Limit the page cleaner to a number of pages per second, so that it
+     * leaves the disk to foreground work.  0, the default, means no limit.
+     */
+    public void setPageCleanerRate(int pagesPerSecond) {
+        cleaner.setPagesPerSecond(pagesPerSecond);
+    }
+
+    /** Return the number of pages written by the page cleaner */
+    public long getCleanedPageCount() {
+        return cleaner.getPagesWritten();
+    }
+
+    /** Return the number of writes issued by the page cleaner; adjacent pages share a write */
+    public long getCleanerWriteCount() {
+        return cleaner.getWrites();
+    }
+
+    /** Return the number of fuzzy checkpoints taken by the page cleaner */
+    public long getCheckpointCount() {
+        return cleaner.getCheckpoints();
+    }
+
+    /** Return the time the page cleaner has spent waiting to stay under its rate limit, in milliseconds */
+    public long getCleanerThrottledMillis() {
+        return cleaner.getThrottledNanos() / 1000000;
+    }
+
+    /** Return the number of getPage calls that found the page in the pool */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /** Return the number of getPage calls that had to read the page from disk */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Return the fraction of getPage calls served from the pool, or 0 if no
+     * page has been requested yet.
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0.0 : (double) h / total;
     }
 
     /**
@@ -131,6 +907,10 @@ public class BufferPool {
     public  void unsafeReleasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
+        if (occ.isOptimistic(tid)) {
+            occ.dropWrite(tid, pid);
+            return;
+        }
         lockManager.releaseLock(tid, pid);
     }
 
@@ -142,12 +922,16 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid) {
         // some code goes here
         // not necessary for lab1|lab2
+        transactionComplete(tid, true);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for lab1|lab2
+        if (occ.isOptimistic(tid)) {
+            return occ.getWrite(tid, p) != null;
+        }
         return lockManager.holdsLock(tid, p);
     }
 
@@ -161,40 +945,91 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid, boolean commit) {
         // some code goes here
         // not necessary for lab1|lab2
+        unpinAll(tid);
+        Set<PageId> written = writtenPages.remove(tid);
+        if (readOnly.remove(tid)) {
+            // it dirtied no page: skip looking for its pages in the pool
+            versionStore.endSnapshot(tid);
+            occ.end(tid);
+            lockManager.releaseAllLock(tid);
+            return;
+        }
         if (commit) {
             try {
                 flushPages(tid);
             } catch (IOException e) {
                 e.printStackTrace();
             }
+            committedStolenPages(tid);
+            versionStore.commit(tid);
         } else {
-            rollback(tid);
+            rollback(tid, written);
+            versionStore.abort(tid);
         }
+        versionStore.endSnapshot(tid);
+        occ.end(tid);
         lockManager.releaseAllLock(tid);
     }
 
-    private void rollback(TransactionId tid) {
-        Iterator<PageId> it = pageMap.keySet().iterator();
-        List<PageId> toBeRemoved = new ArrayList<>();
-        while (it.hasNext()) {
-            PageId cur = it.next();
-            Page page = pageMap.get(cur);
-            if (page != null && page.isDirty() != null && page.isDirty().equals(tid)) {
-                toBeRemoved.add(cur);
-            }
-        }
-        for (PageId pageId: toBeRemoved) {
-            Page page = pageMap.remove(pageId);
-            Page page1 = null;
+    /**
+     * Discard the pages an aborting transaction dirtied or fetched for
+     * writing, so that they are read back from disk as last committed.
+     *
+     * @param written the pages the transaction fetched for writing, or null
+     */
+    private void rollback(TransactionId tid, Set<PageId> written) {
+        if (stolenPages.remove(tid) != null) {
+            // undo the pages already written to disk, unless the log has
+            // rolled the transaction back already; the ABORT record keeps
+            // recovery from undoing it again
             try {
-                page1 = Database.getBufferPool().getPage(tid, page.getId(), Permissions.READ_ONLY);
-                page1.markDirty(false, null);
-            } catch (TransactionAbortedException e) {
-                e.printStackTrace();
-            } catch (DbException e) {
+                LogFile log = Database.getLogFile();
+                if (log.isActive(tid)) {
+                    log.logAbort(tid);
+                }
+            } catch (IOException e) {
                 e.printStackTrace();
             }
         }
+        Set<PageId> toBeRemoved = new HashSet<>();
+        for (Page page: residentPages()) {
+            if (page.isDirty() != null && page.isDirty().equals(tid)) {
+                toBeRemoved.add(page.getId());
+            }
+        }
+        // an abort in the middle of an operation leaves the pages changed
+        // so far unmarked
+        if (written != null) {
+            toBeRemoved.addAll(written);
+        }
+        // the pages are read back when they are next needed: a page created
+        // by the transaction need not parse as its category on disk
+        for (PageId pid: toBeRemoved) {
+            discardPage(pid);
+        }
+    }
+
+    /**
+     * The committed contents of pages stolen from a transaction that are
+     * still resident (and were not dirtied again) become their before image.
+     */
+    private void committedStolenPages(TransactionId tid) {
+        Set<PageId> stolen = stolenPages.remove(tid);
+        if (stolen == null) {
+            return;
+        }
+        for (PageId pid: stolen) {
+            Frame frame = frames.get(pid);
+            if (frame == null) {
+                continue;
+            }
+            synchronized (frame) {
+                Page page = frame.getPage();
+                if (!frame.isEvicted() && page != null && page.isDirty() == null) {
+                    page.setBeforeImage();
+                }
+            }
+        }
     }
 
     /**
@@ -218,10 +1053,25 @@ public class BufferPool {
         // not necessary for lab1
         DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
         List<Page> pages = dbFile.insertTuple(tid, t);
-        for(Page page: pages) {
-            page.markDirty(true, tid);
-            pageMap.put(page.getId(), page);
-        }
+        markDirty(tid, pages);
+    }
+
+    /**
+     * Add a batch of tuples to the specified table on behalf of transaction
+     * tid, like {@link #insertTuple} for each tuple.  The file places the
+     * whole batch at once (see {@link DbFile#insertTuples}), so each page
+     * that is filled is locked, dirtied and installed once per batch rather
+     * than once per tuple.
+     *
+     * @param tid the transaction adding the tuples
+     * @param tableId the table to add the tuples to
+     * @param tuples the tuples to add
+     */
+    public void insertTuples(TransactionId tid, int tableId, List<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
+        List<Page> pages = dbFile.insertTuples(tid, tuples);
+        markDirty(tid, pages);
     }
 
     /**
@@ -243,8 +1093,25 @@ public class BufferPool {
         // not necessary for lab1
         DbFile dbFile = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
         List<Page> pages = dbFile.deleteTuple(tid, t);
+        markDirty(tid, pages);
+    }
+
+    /**
+     * Mark the pages a transaction changed dirty and install them in the
+     * pool: a page changed in place may have been evicted as clean, and
+     * read back without the change, before it is marked dirty.  The
+     * private copies of an optimistic transaction stay private until it
+     * commits; other changes bump the page versions that optimistic
+     * transactions validate against.
+     */
+    private void markDirty(TransactionId tid, List<Page> pages) {
+        boolean optimistic = occ.isOptimistic(tid);
         for (Page page: pages) {
             page.markDirty(true, tid);
+            if (!optimistic) {
+                installPage(page);
+                occ.bump(page.getId());
+            }
         }
     }
 
@@ -256,12 +1123,17 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        for (Map.Entry<PageId, Page> entry: pageMap.entrySet()) {
-            Page page = entry.getValue();
+        List<Page> dirty = new ArrayList<>();
+        for (Page page: residentPages()) {
             if (page.isDirty() != null) {
-                flushPage(entry.getKey());
+                dirty.add(page);
             }
         }
+        logPages(dirty);
+        Database.getLogFile().force();
+        for (Page page: dirty) {
+            writePage(page);
+        }
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -275,7 +1147,12 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        pageMap.remove(pid);
+        Frame frame = frames.get(pid);
+        if (frame != null) {
+            removeFrame(frame);
+        }
+        // the page may be read back with different contents, e.g. rolled back
+        occ.bump(pid);
     }
 
     /**
@@ -285,53 +1162,263 @@ public class BufferPool {
     private synchronized void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        Page page = pageMap.get(pid);
+        Frame frame = frames.get(pid);
+        Page page = null;
+        if (frame != null) {
+            synchronized (frame) {
+                page = frame.getPage();
+            }
+        }
         if (page != null) {
             if (page.isDirty() != null) {
-                DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-                Database.getLogFile().logWrite(page.isDirty(), page.getBeforeImage(), page);
+                logPages(Collections.singletonList(page));
                 Database.getLogFile().force();
-                dbFile.writePage(page);
+                writePage(page);
             }
         }
     }
 
+    /**
+     * Write update records for dirty pages to the log.  The log must be
+     * forced before the pages are written.
+     */
+    private void logPages(List<Page> pages) throws IOException {
+        for (Page page: pages) {
+            Database.getLogFile().logWrite(page.isDirty(), page.getBeforeImage(), page);
+        }
+    }
+
+    /** Write a page to disk once the log is durable up to its LSN (the WAL rule). */
+    private void writePage(Page page) throws IOException {
+        Database.getLogFile().forceTo(page.getPageLsn());
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
+        dbFile.writePage(page);
+        Database.getLogFile().pageWritten(page.getId());
+    }
+
     /** Write all pages of the specified transaction to disk.
+     * The update records of all pages are forced to the log together.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        Iterator<PageId> it = pageMap.keySet().iterator();
-        while (it.hasNext()) {
-            Page page = pageMap.get(it.next());
-            if (page != null && page.isDirty() != null && page.isDirty().equals(tid)) {
-                DbFile dbFile = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
-                Database.getLogFile().logWrite(page.isDirty(), page.getBeforeImage(), page);
-                Database.getLogFile().force();
+        List<Page> dirty = new ArrayList<>();
+        synchronized (this) {
+            for (Page page: residentPages()) {
+                if (page.isDirty() != null && page.isDirty().equals(tid)) {
+                    dirty.add(page);
+                }
+            }
+            logPages(dirty);
+        }
+        if (dirty.isEmpty()) {
+            return;
+        }
+        // one force for all pages, outside the monitor so that concurrent
+        // commits can share it
+        Database.getLogFile().force();
+        synchronized (this) {
+            for (Page page: dirty) {
                 page.markDirty(false, null);
-                dbFile.writePage(page);
+                writePage(page);
                 page.setBeforeImage();
             }
         }
     }
 
+    /**
+     * Return the pages the page cleaner may write out, ordered by table and
+     * page number: the dirty, unpinned pages under STEAL, and none under NO
+     * STEAL, where every dirty page must stay until its transaction ends.
+     */
+    List<Page> cleanablePages() {
+        if (!stealMode) {
+            return Collections.emptyList();
+        }
+        List<Page> pages = new ArrayList<>();
+        for (Frame frame : frames.values()) {
+            synchronized (frame) {
+                Page page = frame.getPage();
+                if (!frame.isEvicted() && !frame.isPinned() && page != null && page.isDirty() != null) {
+                    pages.add(page);
+                }
+            }
+        }
+        pages.sort(Comparator.comparingInt((Page p) -> p.getId().getTableId())
+                .thenComparingInt(p -> p.getId().getPageNumber()));
+        return pages;
+    }
+
+    /**
+     * Write out dirty pages for the page cleaner, like pages stolen on
+     * eviction.  The update records of all pages are forced together, and
+     * runs of adjacent HeapFile pages are written with one write.  Pages
+     * that were written, rolled back or discarded since they were chosen
+     * are skipped.
+     *
+     * @param pages dirty pages in the order of {@link #cleanablePages}
+     */
+    void cleanPages(List<Page> pages) throws IOException {
+        List<Page> logged = new ArrayList<>();
+        synchronized (this) {
+            for (Page page: pages) {
+                if (page.isDirty() != null && isResident(page)) {
+                    logged.add(page);
+                }
+            }
+            logPages(logged);
+        }
+        if (logged.isEmpty()) {
+            return;
+        }
+        long lsn = 0;
+        for (Page page: logged) {
+            lsn = Math.max(lsn, page.getPageLsn());
+        }
+        // one force for the batch, outside the monitor like a commit
+        Database.getLogFile().forceTo(lsn);
+        synchronized (this) {
+            List<Page> run = new ArrayList<>();
+            for (Page page: logged) {
+                TransactionId tid = page.isDirty();
+                if (tid == null || !isResident(page)) {
+                    continue;
+                }
+                if (!run.isEmpty() && !extendsRun(run, page)) {
+                    writeRun(run);
+                    run.clear();
+                }
+                run.add(page);
+                stolenPages.computeIfAbsent(tid, t -> ConcurrentHashMap.newKeySet()).add(page.getId());
+            }
+            writeRun(run);
+        }
+    }
+
+    /** Return true if page is the page in the pool for its id. */
+    private boolean isResident(Page page) {
+        Frame frame = frames.get(page.getId());
+        if (frame == null) {
+            return false;
+        }
+        synchronized (frame) {
+            return !frame.isEvicted() && frame.getPage() == page;
+        }
+    }
+
+    /** Return true if page directly follows the pages of run in the same file. */
+    private static boolean extendsRun(List<Page> run, Page page) {
+        Page last = run.get(run.size() - 1);
+        return run.size() < PageCleaner.MAX_RUN
+                && last.getId().getTableId() == page.getId().getTableId()
+                && last.getId().getPageNumber() + 1 == page.getId().getPageNumber();
+    }
+
+    /** Write a run of pages for the page cleaner and mark them clean. Caller holds this. */
+    private void writeRun(List<Page> run) throws IOException {
+        if (run.isEmpty()) {
+            return;
+        }
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(run.get(0).getId().getTableId());
+        if (run.size() > 1 && dbFile instanceof HeapFile) {
+            ((HeapFile) dbFile).writePages(run);
+            for (Page page: run) {
+                Database.getLogFile().pageWritten(page.getId());
+            }
+            cleaner.wrote(run.size());
+        } else {
+            for (Page page: run) {
+                writePage(page);
+                cleaner.wrote(1);
+            }
+        }
+        for (Page page: run) {
+            page.markDirty(false, null);
+        }
+    }
+
     /**
      * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * The victim is chosen by the replacement policy among the clean,
+     * unpinned pages; pinned pages are skipped.  Under NO STEAL dirty pages
+     * are never evicted.  Under STEAL, if every unpinned page is dirty, the
+     * first dirty candidate is written out instead, and evicted by a later
+     * call once it is clean.
      */
-    private synchronized void evictPage() throws DbException {
+    private void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
-        Iterator<PageId> it = pageMap.keySet().iterator();
-        PageId pageId = it.next();
-        while (pageMap.get(pageId) == null
-                || pageMap.get(pageId).isDirty() != null) {
-            if (it.hasNext()) {
-                pageId = it.next();
-            } else {
-                throw new DbException("dirty page");
+        final boolean steal = stealMode;
+        final List<PageId> dirtyVictims = new ArrayList<>(1);
+        policyLock.lock();
+        try {
+            drainAccessBuffer();
+            PageId pageId = replacementPolicy.evict(pid -> {
+                Frame frame = frames.get(pid);
+                if (frame == null) {
+                    return true;
+                }
+                // claim the frame under its latch, so that a thread that
+                // pinned it first keeps it and later ones look it up again
+                synchronized (frame) {
+                    if (frame.isPinned() || frame.getPage() == null) {
+                        return false;
+                    }
+                    if (frame.getPage().isDirty() != null) {
+                        // the log must not be written under the policy
+                        // lock, so the page is stolen after it is released
+                        if (steal && dirtyVictims.isEmpty()) {
+                            dirtyVictims.add(pid);
+                        }
+                        return false;
+                    }
+                    frame.markEvicted();
+                }
+                if (frames.remove(pid, frame)) {
+                    frameCount.decrementAndGet();
+                }
+                return true;
+            });
+            if (pageId != null) {
+                return;
             }
+        } finally {
+            policyLock.unlock();
+        }
+        if (dirtyVictims.isEmpty()) {
+            throw new DbException("all pages in the buffer pool are dirty or pinned");
+        }
+        try {
+            stealPage(dirtyVictims.get(0));
+        } catch (IOException e) {
+            throw new DbException("could not write out dirty page: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write a dirty page of a running transaction to disk and mark it clean,
+     * so that it can be evicted.  Its update record is logged and forced
+     * first, and the transaction is remembered so that aborting it undoes
+     * the write.
+     */
+    private synchronized void stealPage(PageId pid) throws IOException {
+        Frame frame = frames.get(pid);
+        if (frame == null) {
+            return;
+        }
+        Page page;
+        synchronized (frame) {
+            page = frame.isEvicted() ? null : frame.getPage();
+        }
+        TransactionId tid = page == null ? null : page.isDirty();
+        if (tid == null) {
+            // written or discarded since it was chosen
+            return;
         }
-        pageMap.remove(pageId);
+        logPages(Collections.singletonList(page));
+        writePage(page);
+        stolenPages.computeIfAbsent(tid, t -> ConcurrentHashMap.newKeySet()).add(pid);
+        page.markDirty(false, null);
+        steals.incrementAndGet();
     }
 }
@@ -0,0 +1,233 @@
+package simpledb.storage;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * The CLOCK-Pro replacement policy (Jiang, Chen and Zhang, USENIX '05).
+ * <p>
+ * Resident pages are either hot or cold.  A newly admitted page is cold and
+ * starts a test period; if it is referenced again before the test period ends
+ * it becomes hot, even when that second reference happens shortly after it
+ * was evicted (evicted pages in their test period are remembered as
+ * non-resident entries).  Only cold pages are evicted, so a sequential scan
+ * keeps recycling cold frames while the hot working set survives.  The share
+ * of frames given to cold pages adapts: re-references of non-resident pages
+ * grow it, test periods that expire unused shrink it.
+ * <p>
+ * All entries live on one clock.  The cold hand looks for victims and the hot
+ * hand demotes hot pages and ends test periods.  Hits only set a reference
+ * bit, and the hands move a bounded amount per admitted page, so the cost is
+ * O(1) amortized.
+ */
+public class ClockProPolicy implements ReplacementPolicy {
+
+    private static class Entry {
+        final PageId pid;
+        boolean hot;
+        boolean resident;
+        boolean referenced;
+        boolean inTest;
+        Entry prev;
+        Entry next;
+
+        Entry(PageId pid) {
+            this.pid = pid;
+        }
+    }
+
+    private final int numPages;
+    private int coldTarget;
+
+    private final Map<PageId, Entry> entries;
+    private final LinkedHashSet<Entry> nonResident;
+    private Entry coldHand;
+    private Entry hotHand;
+    private int hotCount;
+    private int coldCount;
+
+    /**
+     * @param numPages the number of frames in the buffer pool
+     */
+    public ClockProPolicy(int numPages) {
+        this.numPages = Math.max(2, numPages);
+        this.coldTarget = Math.max(1, numPages / 4);
+        entries = new HashMap<>();
+        nonResident = new LinkedHashSet<>();
+    }
+
+    public void pageAdmitted(PageId pid) {
+        Entry e = entries.get(pid);
+        if (e != null && e.resident) {
+            e.referenced = true;
+            return;
+        }
+        if (e != null) {
+            // re-referenced during its test period: cold pages deserve more room
+            coldTarget = Math.min(coldTarget + 1, numPages - 1);
+            forgetNonResident(e);
+            e.hot = true;
+            e.resident = true;
+            e.referenced = false;
+            e.inTest = false;
+            entries.put(pid, e);
+            link(e);
+            hotCount++;
+            balanceHot();
+        } else {
+            e = new Entry(pid);
+            e.resident = true;
+            e.inTest = true;
+            entries.put(pid, e);
+            link(e);
+            coldCount++;
+        }
+    }
+
+    public void pageAccessed(PageId pid) {
+        Entry e = entries.get(pid);
+        if (e == null || !e.resident) {
+            pageAdmitted(pid);
+        } else {
+            e.referenced = true;
+        }
+    }
+
+    public void pageRemoved(PageId pid) {
+        Entry e = entries.get(pid);
+        if (e == null) {
+            return;
+        }
+        if (!e.resident) {
+            forgetNonResident(e);
+            return;
+        }
+        entries.remove(pid);
+        unlink(e);
+        if (e.hot) {
+            hotCount--;
+        } else {
+            coldCount--;
+        }
+    }
+
+    public PageId evict(Predicate<PageId> evictable) {
+        int steps = 2 * entries.size() + 2;
+        while (coldCount > 0 && steps-- > 0) {
+            Entry e = coldHand;
+            if (e.hot || !e.resident) {
+                coldHand = e.next;
+                continue;
+            }
+            if (e.referenced) {
+                e.referenced = false;
+                coldHand = e.next;
+                if (e.inTest) {
+                    e.hot = true;
+                    e.inTest = false;
+                    coldCount--;
+                    hotCount++;
+                    balanceHot();
+                } else {
+                    // start a new test period at the tail of the clock
+                    e.inTest = true;
+                    unlink(e);
+                    link(e);
+                }
+                continue;
+            }
+            if (!evictable.test(e.pid)) {
+                coldHand = e.next;
+                continue;
+            }
+            coldCount--;
+            if (e.inTest) {
+                e.resident = false;
+                nonResident.add(e);
+                if (nonResident.size() > numPages) {
+                    forgetNonResident(nonResident.iterator().next());
+                }
+            } else {
+                entries.remove(e.pid);
+                unlink(e);
+            }
+            return e.pid;
+        }
+
+        // every cold page is pinned down; fall back to any evictable page
+        PageId victim = null;
+        for (Entry e : entries.values()) {
+            if (e.resident && evictable.test(e.pid)) {
+                victim = e.pid;
+                break;
+            }
+        }
+        if (victim != null) {
+            pageRemoved(victim);
+        }
+        return victim;
+    }
+
+    /** Run the hot hand until the hot pages fit in their share of the frames. */
+    private void balanceHot() {
+        int steps = 2 * entries.size() + 2;
+        while (hotCount > numPages - coldTarget && steps-- > 0) {
+            Entry e = hotHand;
+            hotHand = e.next;
+            if (e.hot) {
+                if (e.referenced) {
+                    e.referenced = false;
+                } else {
+                    e.hot = false;
+                    hotCount--;
+                    coldCount++;
+                }
+            } else if (e.resident) {
+                e.inTest = false;
+            } else {
+                // test period expired without a re-reference
+                coldTarget = Math.max(1, coldTarget - 1);
+                forgetNonResident(e);
+            }
+        }
+    }
+
+    private void forgetNonResident(Entry e) {
+        nonResident.remove(e);
+        entries.remove(e.pid);
+        unlink(e);
+    }
+
+    /** Insert e just behind the cold hand, so the cold hand reaches it last. */
+    private void link(Entry e) {
+        if (coldHand == null) {
+            e.prev = e;
+            e.next = e;
+            coldHand = e;
+            hotHand = e;
+            return;
+        }
+        e.next = coldHand;
+        e.prev = coldHand.prev;
+        coldHand.prev.next = e;
+        coldHand.prev = e;
+    }
+
+    private void unlink(Entry e) {
+        if (e.next == e) {
+            coldHand = null;
+            hotHand = null;
+        } else {
+            if (coldHand == e) {
+                coldHand = e.next;
+            }
+            if (hotHand == e) {
+                hotHand = e.next;
+            }
+            e.prev.next = e.next;
+            e.next.prev = e.prev;
+        }
+        e.prev = null;
+        e.next = null;
+    }
+}
@@ -48,6 +48,29 @@ public interface DbFile {
     List<Page> insertTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException;
 
+    /**
+     * Inserts a batch of tuples to the file on behalf of transaction, like
+     * {@link #insertTuple} for each of them.  Files that can place many
+     * tuples at once (e.g. by filling one page after another) should
+     * override this.
+     *
+     * @param tid The transaction performing the update
+     * @param tuples The tuples to add
+     * @return The pages that were modified, each listed once
+     * @throws DbException if a tuple cannot be added
+     * @throws IOException if the needed file can't be read/written
+     */
+    default List<Page> insertTuples(TransactionId tid, List<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        Map<PageId, Page> pages = new LinkedHashMap<>();
+        for (Tuple t : tuples) {
+            for (Page p : insertTuple(tid, t)) {
+                pages.put(p.getId(), p);
+            }
+        }
+        return new ArrayList<>(pages.values());
+    }
+
     /**
      * Removes the specified tuple from the file on behalf of the specified
      * transaction.
@@ -4,52 +4,81 @@ import simpledb.transaction.TransactionId;
 
 import java.util.*;
 
+/**
+ * DependencyGraph is the waits-for graph of the transactions waiting for
+ * locks: an edge from u to v means that u waits for a lock v holds, or
+ * for a request of v queued ahead of it.
+ * <p>
+ * Deadlocks are detected incrementally: when a transaction starts or
+ * goes on waiting, only the transactions reachable from it are searched
+ * for a cycle back to it, instead of the whole graph.
+ */
 public class DependencyGraph {
-    private Map<TransactionId, Set<TransactionId>> graph;
+    private final Map<TransactionId, Set<TransactionId>> graph;
 
     public DependencyGraph() {
         graph = new HashMap<>();
     }
 
-    public synchronized boolean addDependency(TransactionId u, TransactionId v) {
-        if (u == null || v == null) {
-            return false;
+    /**
+     * Make waiter wait for the given transactions, replacing what it
+     * waited for before.
+     *
+     * @return the youngest transaction on a cycle through waiter, or null
+     *         if waiter is not deadlocked
+     */
+    public synchronized TransactionId setWaits(TransactionId waiter, Collection<TransactionId> holders) {
+        Set<TransactionId> edges = new HashSet<>(holders);
+        edges.remove(waiter);
+        if (edges.isEmpty()) {
+            graph.remove(waiter);
+            return null;
         }
-        if (u.equals(v)) {
-            return true;
+        graph.put(waiter, edges);
+        List<TransactionId> cycle = find(waiter);
+        if (cycle == null) {
+            return null;
         }
-        if (graph.get(u) == null){
-            graph.put(u, new HashSet<>());
-        }
-        if (find(v, u)) {
-            return false;
-        } else {
-            if (!graph.get(u).contains(v)) {
-                graph.get(u).add(v);
+        TransactionId youngest = waiter;
+        for (TransactionId tid : cycle) {
+            if (tid.getId() > youngest.getId()) {
+                youngest = tid;
             }
-            return true;
         }
+        return youngest;
     }
 
-    public synchronized void removeDependency(TransactionId u, TransactionId v) {
-        if (graph.get(u) != null && graph.get(u).contains(v)) {
-            graph.get(u).remove(v);
-        }
+    /** The waiter got its lock or gave up. */
+    public synchronized void removeWaits(TransactionId waiter) {
+        graph.remove(waiter);
     }
 
-    private boolean find(TransactionId u, TransactionId v) {
-        Queue<TransactionId>  queue = new LinkedList<>();
-        queue.add(u);
+    /** Return the transactions on a path from waiter back to itself, or null. */
+    private List<TransactionId> find(TransactionId waiter) {
+        Map<TransactionId, TransactionId> parent = new HashMap<>();
+        Queue<TransactionId> queue = new ArrayDeque<>();
+        queue.add(waiter);
         while (!queue.isEmpty()) {
             TransactionId tid = queue.remove();
-            if (tid.equals(v))
-                return true;
-            if (graph.get(tid) != null) {
-                for (TransactionId neigh: graph.get(tid)) {
+            Set<TransactionId> next = graph.get(tid);
+            if (next == null) {
+                continue;
+            }
+            for (TransactionId neigh : next) {
+                if (neigh.equals(waiter)) {
+                    List<TransactionId> cycle = new ArrayList<>();
+                    for (TransactionId t = tid; !t.equals(waiter); t = parent.get(t)) {
+                        cycle.add(t);
+                    }
+                    cycle.add(waiter);
+                    return cycle;
+                }
+                if (!parent.containsKey(neigh)) {
+                    parent.put(neigh, tid);
                     queue.add(neigh);
                 }
             }
         }
-        return false;
+        return null;
     }
 }
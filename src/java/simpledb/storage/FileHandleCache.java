@@ -0,0 +1,286 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * FileHandleCache keeps the FileChannels that DbFiles read and write pages
+ * through open between page accesses, and bounds how many of them are open
+ * at once.
+ * <p>
+ * Each DbFile gets a {@link Handle} from {@link #open}.  A handle opens its
+ * channel on first use and keeps it open; when more than
+ * <code>maxOpen</code> channels are open, the least recently used idle ones
+ * are closed, and reopened if their file is accessed again.  Reads and
+ * writes are positional, so any number of threads can use the same handle
+ * without sharing a file pointer.
+ * <p>
+ * Page reads and writes only take the cache monitor to open or close a
+ * channel.  A channel closed under a running access, e.g. by the interrupt
+ * of another thread using it, is reopened and the access retried.
+ *
+ * @Threadsafe
+ * @see simpledb.common.Database#getFileHandles
+ */
+public class FileHandleCache {
+    /** Default bound on the number of open files. */
+    public static final int DEFAULT_MAX_OPEN = 256;
+
+    /** Value of {@link Handle#users} while the cache closes the channel. */
+    private static final int CLOSING = -1;
+
+    private final int maxOpen;
+    /** Handles with an open channel. Guarded by this. */
+    private final Set<Handle> open;
+    /** The size of open, read without the monitor. */
+    private volatile int openCount;
+    /** Orders the uses of the handles, to close the least recently used first. */
+    private final AtomicLong clock;
+
+    /**
+     * Create a cache that keeps at most maxOpen files open.
+     *
+     * @param maxOpen the maximum number of open files
+     */
+    public FileHandleCache(int maxOpen) {
+        this.maxOpen = maxOpen;
+        this.open = new HashSet<>();
+        this.openCount = 0;
+        this.clock = new AtomicLong(0);
+    }
+
+    /**
+     * Return a handle on a file.  The file is not opened until the handle is
+     * first used.
+     *
+     * @param f the file the handle reads and writes
+     */
+    public Handle open(File f) {
+        return new Handle(f);
+    }
+
+    /** Return the number of files currently open */
+    public synchronized int openCount() {
+        return open.size();
+    }
+
+    /** Close every open file; handles reopen their file when used again. */
+    public synchronized void closeAll() {
+        for (Handle handle : open) {
+            handle.closeChannel();
+        }
+        open.clear();
+        openCount = 0;
+    }
+
+    /**
+     * Return the open channel of a handle, opening it if needed, and count
+     * the caller as a user until {@link #release}.
+     */
+    private FileChannel acquire(Handle handle, boolean create) throws IOException {
+        while (true) {
+            int users = handle.users.get();
+            if (users == CLOSING) {
+                break;
+            }
+            if (handle.users.compareAndSet(users, users + 1)) {
+                FileChannel ch = handle.channel;
+                if (ch != null && ch.isOpen()) {
+                    handle.lastUsed = clock.incrementAndGet();
+                    return ch;
+                }
+                handle.users.decrementAndGet();
+                break;
+            }
+        }
+        return acquireOpening(handle, create);
+    }
+
+    /** Like {@link #acquire}, for a handle whose channel is not open or being closed. */
+    private synchronized FileChannel acquireOpening(Handle handle, boolean create) throws IOException {
+        FileChannel ch = handle.channel;
+        if (ch == null || !ch.isOpen()) {
+            ch = openChannel(handle.file, create);
+            handle.channel = ch;
+            open.add(handle);
+            openCount = open.size();
+        }
+        handle.users.incrementAndGet();
+        handle.lastUsed = clock.incrementAndGet();
+        closeIdle();
+        return ch;
+    }
+
+    private void release(Handle handle) {
+        handle.users.decrementAndGet();
+        if (openCount > maxOpen) {
+            synchronized (this) {
+                closeIdle();
+            }
+        }
+    }
+
+    /** Close least recently used idle channels while too many are open. Caller holds the monitor. */
+    private void closeIdle() {
+        while (open.size() > maxOpen) {
+            Handle victim = null;
+            for (Handle handle : open) {
+                if (handle.users.get() == 0 && (victim == null || handle.lastUsed < victim.lastUsed)) {
+                    victim = handle;
+                }
+            }
+            if (victim == null) {
+                return;
+            }
+            // a thread that acquires the handle meanwhile keeps it open
+            if (victim.users.compareAndSet(0, CLOSING)) {
+                victim.closeChannel();
+                open.remove(victim);
+                openCount = open.size();
+                victim.users.set(0);
+            }
+        }
+    }
+
+    private static FileChannel openChannel(File f, boolean create) throws IOException {
+        try {
+            if (create) {
+                return FileChannel.open(f.toPath(), StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            }
+            return FileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (AccessDeniedException e) {
+            // read-only file
+            return FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        }
+    }
+
+    /** An access to a file through an open channel. */
+    private interface ChannelAccess<T> {
+        T apply(FileChannel ch) throws IOException;
+    }
+
+    /**
+     * A Handle reads and writes one file through a channel managed by the
+     * cache.
+     */
+    public class Handle {
+        private final File file;
+        /** Replaced under the cache monitor. */
+        private volatile FileChannel channel;
+        /** Threads using the channel, or CLOSING. */
+        private final AtomicInteger users;
+        /** When the handle was last used, by the cache clock. */
+        private volatile long lastUsed;
+
+        private Handle(File file) {
+            this.file = file;
+            this.channel = null;
+            this.users = new AtomicInteger(0);
+            this.lastUsed = 0;
+        }
+
+        /**
+         * Run an access on the open channel, retrying it on a reopened
+         * channel if the channel is closed under it.  Accesses must be
+         * positional and pick up where a failed attempt left off.
+         */
+        private <T> T access(boolean create, ChannelAccess<T> access) throws IOException {
+            while (true) {
+                FileChannel ch = acquire(this, create);
+                try {
+                    return access.apply(ch);
+                } catch (ClosedByInterruptException e) {
+                    // this thread was interrupted; the next access reopens the channel
+                    throw e;
+                } catch (ClosedChannelException e) {
+                    // closed by another thread's interrupt or by closeAll: retry
+                } finally {
+                    release(this);
+                }
+            }
+        }
+
+        /**
+         * Read from the file at position until dst is full or the end of
+         * the file is reached.
+         *
+         * @return the number of bytes read, or -1 if position is at or past
+         *     the end of the file
+         */
+        public int read(ByteBuffer dst, long position) throws IOException {
+            int start = dst.position();
+            return access(false, ch -> {
+                while (dst.hasRemaining()) {
+                    int n = ch.read(dst, position + dst.position() - start);
+                    if (n < 0) {
+                        break;
+                    }
+                }
+                int total = dst.position() - start;
+                return total == 0 && dst.hasRemaining() ? -1 : total;
+            });
+        }
+
+        /** Write all of src to the file at position, creating the file if needed. */
+        public void write(ByteBuffer src, long position) throws IOException {
+            int start = src.position();
+            access(true, ch -> {
+                while (src.hasRemaining()) {
+                    ch.write(src, position + src.position() - start);
+                }
+                return null;
+            });
+        }
+
+        /**
+         * Append src to the end of the file, creating the file if needed.
+         * Callers that append concurrently must synchronize.
+         *
+         * @return the position src was written at
+         */
+        public long append(ByteBuffer src) throws IOException {
+            int start = src.position();
+            long[] position = { -1 };
+            return access(true, ch -> {
+                if (position[0] < 0) {
+                    position[0] = ch.size();
+                }
+                while (src.hasRemaining()) {
+                    ch.write(src, position[0] + src.position() - start);
+                }
+                return position[0];
+            });
+        }
+
+        /**
+         * Map the first size bytes of the file into memory, read-only.  The
+         * mapping stays valid after the file is closed, and reflects later
+         * writes to the file.
+         */
+        public MappedByteBuffer map(long size) throws IOException {
+            return access(false, ch -> ch.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+
+        /** Caller holds the cache monitor. */
+        private void closeChannel() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing was buffered, so nothing is lost
+            }
+            channel = null;
+        }
+    }
+}
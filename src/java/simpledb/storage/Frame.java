@@ -0,0 +1,58 @@
+package simpledb.storage;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A Frame is one slot of the BufferPool page table.  It holds a resident
+ * page together with the bookkeeping needed to share it between threads:
+ * <ul>
+ * <li> the frame's monitor is the page latch; it is held while the page is
+ *      read from disk, so concurrent misses on the same page read it once
+ * <li> the pin count keeps the frame from being evicted while it is in use
+ * <li> a frame that has been evicted or discarded is marked, and must be
+ *      looked up again
+ * </ul>
+ */
+class Frame {
+    final PageId pid;
+    private Page page;
+    private boolean evicted;
+    private final AtomicInteger pinCount;
+
+    Frame(PageId pid) {
+        this.pid = pid;
+        this.pinCount = new AtomicInteger(0);
+    }
+
+    /** Return the page in this frame, or null if it has not been read yet. Caller holds the latch. */
+    Page getPage() {
+        return page;
+    }
+
+    /** Caller holds the latch. */
+    void setPage(Page page) {
+        this.page = page;
+    }
+
+    /** Return true if this frame has left the page table. Caller holds the latch. */
+    boolean isEvicted() {
+        return evicted;
+    }
+
+    /** Caller holds the latch. */
+    void markEvicted() {
+        evicted = true;
+    }
+
+    void pin() {
+        pinCount.incrementAndGet();
+    }
+
+    void unpin() {
+        pinCount.decrementAndGet();
+    }
+
+    boolean isPinned() {
+        return pinCount.get() > 0;
+    }
+}
@@ -0,0 +1,84 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap records which pages of a HeapFile have a free slot, so that
+ * inserts can go straight to a page with room instead of reading and
+ * locking every page in front of it.
+ * <p>
+ * The map is not stored; it is rebuilt from the page headers on disk the
+ * first time it is used, which reads only the header bytes of each page and
+ * takes no locks.  After that it is kept up to date by the HeapFile as
+ * tuples are inserted and deleted and as pages are read from disk.
+ * <p>
+ * The map is a hint: a page it says has room may have been filled by
+ * another transaction, so callers check the page and report it full with
+ * {@link #update}.  A page rolled back to a version with more room than
+ * the map says is corrected the next time it is read from disk.
+ *
+ * @Threadsafe
+ */
+class FreeSpaceMap {
+    private final HeapFile file;
+    /** Bit n is set if page n may have a free slot; null until built. */
+    private BitSet hasRoom;
+
+    FreeSpaceMap(HeapFile file) {
+        this.file = file;
+        this.hasRoom = null;
+    }
+
+    /**
+     * Return the number of the first page at or after from that has a free
+     * slot, or -1 if there is none.
+     */
+    synchronized int nextPageWithRoom(int from) throws IOException {
+        build();
+        int pageNo = hasRoom.nextSetBit(from);
+        return pageNo < file.numPages() ? pageNo : -1;
+    }
+
+    /** Record whether a page has a free slot. */
+    synchronized void update(int pageNo, boolean room) throws IOException {
+        build();
+        hasRoom.set(pageNo, room);
+    }
+
+    /**
+     * Record the free space of a page just read from disk.  Ignored until the
+     * map is built, since building it reads the same information.
+     */
+    synchronized void pageRead(HeapPage page) {
+        if (hasRoom != null) {
+            hasRoom.set(page.getId().getPageNumber(), page.getNumEmptySlots() > 0);
+        }
+    }
+
+    /** Read the header of every page, if the map has not been built yet. Caller holds the monitor. */
+    private void build() throws IOException {
+        if (hasRoom != null) {
+            return;
+        }
+        int pageSize = BufferPool.getPageSize();
+        int slots = file.slotsPerPage();
+        ByteBuffer header = ByteBuffer.allocate((slots + 7) / 8);
+        int pages = file.numPages();
+        BitSet map = new BitSet(pages);
+        for (int n = 0; n < pages; n++) {
+            header.clear();
+            if (file.handle.read(header, (long) n * pageSize) < header.capacity()) {
+                break;
+            }
+            for (int slot = 0; slot < slots; slot++) {
+                if ((header.get(slot / 8) & (1 << (slot % 8))) == 0) {
+                    map.set(n);
+                    break;
+                }
+            }
+        }
+        hasRoom = map;
+    }
+}
@@ -0,0 +1,167 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * GroupCommit forces the log to disk on behalf of many threads at once.
+ * <p>
+ * A thread that needs its log records on disk (e.g. a committing
+ * transaction) calls {@link #forceTo} with the LSN of the end of its last
+ * record and waits.  One flusher thread forces the log, and every waiter
+ * whose LSN is at or below the log end at the time of that force is
+ * released by it.  Threads that arrive while a force is in progress are
+ * served together by the next one, so under load the number of fsyncs
+ * grows much more slowly than the number of commits.  A batch window can
+ * be set to make the flusher wait for more requests before each force.
+ *
+ * @Threadsafe
+ * @see LogFile#setGroupCommitWindow
+ */
+class GroupCommit {
+    private final LogFile log;
+
+    /** Everything before this LSN is on disk. Guarded by this. */
+    private long durableLsn;
+    /** Highest LSN a waiter has asked for. Guarded by this. */
+    private long requestedLsn;
+    /** True while a flush round is queued or running. Guarded by this. */
+    private boolean flushing;
+    /** Set when a force fails; the log cannot be made durable after that. */
+    private IOException failure;
+    private ThreadPoolExecutor executor;
+
+    private volatile long windowMicros;
+
+    private final AtomicLong forces;
+    private final AtomicLong commits;
+    private final AtomicLong commitNanos;
+
+    GroupCommit(LogFile log) {
+        this.log = log;
+        this.durableLsn = 0;
+        this.requestedLsn = 0;
+        this.flushing = false;
+        this.failure = null;
+        this.windowMicros = 0;
+        this.forces = new AtomicLong(0);
+        this.commits = new AtomicLong(0);
+        this.commitNanos = new AtomicLong(0);
+    }
+
+    /**
+     * Block until the log is on disk up to lsn.
+     *
+     * @throws IOException if the log could not be forced
+     */
+    synchronized void forceTo(long lsn) throws IOException {
+        if (lsn > requestedLsn) {
+            requestedLsn = lsn;
+        }
+        if (durableLsn < lsn && !flushing && failure == null) {
+            flushing = true;
+            executor().execute(this::flush);
+        }
+        boolean interrupted = false;
+        while (durableLsn < lsn && failure == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (durableLsn < lsn) {
+            throw new IOException("could not force log", failure);
+        }
+    }
+
+    /**
+     * Record that the log was forced up to lsn by someone other than the
+     * flusher (e.g. when it was rewritten).
+     */
+    synchronized void forced(long lsn) {
+        if (lsn > durableLsn) {
+            durableLsn = lsn;
+            notifyAll();
+        }
+    }
+
+    /** Force the log until no waiter is left. Runs on the flusher thread. */
+    private void flush() {
+        while (true) {
+            long window = windowMicros;
+            if (window > 0) {
+                try {
+                    TimeUnit.MICROSECONDS.sleep(window);
+                } catch (InterruptedException e) {
+                    // force now
+                }
+            }
+            long target = log.getEndLsn();
+            IOException error = null;
+            try {
+                log.forceChannel();
+            } catch (IOException e) {
+                error = e;
+            }
+            forces.incrementAndGet();
+            synchronized (this) {
+                if (error != null) {
+                    failure = error;
+                } else if (target > durableLsn) {
+                    durableLsn = target;
+                }
+                notifyAll();
+                if (failure != null || requestedLsn <= durableLsn) {
+                    flushing = false;
+                    return;
+                }
+            }
+        }
+    }
+
+    private ThreadPoolExecutor executor() {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), r -> {
+                        Thread t = new Thread(r, "simpledb-log-flusher");
+                        t.setDaemon(true);
+                        return t;
+                    });
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /** Record the latency of a commit, from its commit record to its force. */
+    void committed(long nanos) {
+        commits.incrementAndGet();
+        commitNanos.addAndGet(nanos);
+    }
+
+    synchronized long getDurableLsn() {
+        return durableLsn;
+    }
+
+    void setWindowMicros(long micros) {
+        windowMicros = micros;
+    }
+
+    long getForces() {
+        return forces.get();
+    }
+
+    long getCommits() {
+        return commits.get();
+    }
+
+    long getCommitNanos() {
+        return commitNanos.get();
+    }
+}
@@ -8,6 +8,7 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -16,14 +17,23 @@ import java.util.*;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * Pages are read and written with positional I/O through a handle on the
+ * file that stays open between accesses (see {@link FileHandleCache}).
+ * Inserts find a page with a free slot through a {@link FreeSpaceMap}.
  * 
  * @see HeapPage#HeapPage
  * @author Sam Madden
  */
 public class HeapFile implements DbFile {
 
+    /** Maximum number of pages appended to the file at once. */
+    static final int EXTENT_PAGES = 8;
+
     File file;
     TupleDesc tupleDesc;
+    final FileHandleCache.Handle handle;
+    final FreeSpaceMap freeSpace;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -36,6 +46,8 @@ public class HeapFile implements DbFile {
         // some code goes here
         file = f;
         tupleDesc = td;
+        handle = Database.getFileHandles().open(f);
+        freeSpace = new FreeSpaceMap(this);
     }
 
     /**
@@ -77,31 +89,80 @@ public class HeapFile implements DbFile {
         // some code goes here
         HeapPage page = null;
         int pageSize = BufferPool.getPageSize();
-        byte[] buf = new byte[pageSize];
+        byte[] buf = Database.getBufferPool().takeReadAhead(pid);
+        if (buf != null) {
+            try {
+                page = new HeapPage((HeapPageId) pid, buf);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            freeSpace.pageRead(page);
+            return page;
+        }
+        buf = new byte[pageSize];
 
-        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
-            randomAccessFile.seek((long) pid.getPageNumber() * pageSize);
-            if (randomAccessFile.read(buf) == -1){
+        try {
+            if (handle.read(ByteBuffer.wrap(buf), (long) pid.getPageNumber() * pageSize) == -1) {
                 return null;
             }
             page = new HeapPage((HeapPageId) pid, buf);
-        } catch (FileNotFoundException e) {
-            throw new RuntimeException(e);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        freeSpace.pageRead(page);
         return page;
     }
 
+    /**
+     * Return true if sequential scans of this file should be read ahead by
+     * the buffer pool.
+     */
+    boolean readsAhead() {
+        return true;
+    }
+
+    /**
+     * Read count consecutive pages, starting at page first, with a single
+     * read.  Used to read ahead of sequential scans; pages past the end of
+     * the file are not returned.
+     *
+     * @return the contents of the pages that were read, in page number order
+     */
+    byte[][] readBlock(int first, int count) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        byte[] buf = new byte[count * pageSize];
+        int read = handle.read(ByteBuffer.wrap(buf), (long) first * pageSize);
+        int n = Math.max(0, read / pageSize);
+        byte[][] pages = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            pages[i] = Arrays.copyOfRange(buf, i * pageSize, (i + 1) * pageSize);
+        }
+        return pages;
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
         int pageSize = BufferPool.getPageSize();
         PageId pageId = page.getId();
-        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
-            randomAccessFile.seek((long) pageId.getPageNumber() * pageSize);
-            randomAccessFile.write(page.getPageData());
+        handle.write(ByteBuffer.wrap(page.getPageData()), (long) pageId.getPageNumber() * pageSize);
+        Database.getBufferPool().pageWritten(pageId);
+    }
+
+    /**
+     * Write a run of pages with consecutive page numbers with one write.
+     */
+    void writePages(List<Page> run) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        ByteBuffer data = ByteBuffer.allocate(run.size() * pageSize);
+        for (Page page : run) {
+            data.put(page.getPageData());
+        }
+        data.flip();
+        handle.write(data, (long) run.get(0).getId().getPageNumber() * pageSize);
+        for (Page page : run) {
+            Database.getBufferPool().pageWritten(page.getId());
         }
     }
 
@@ -118,28 +179,98 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
+        return insertTuples(tid, Collections.singletonList(t));
+    }
+
+    /**
+     * Inserts tuples by filling one page with room after another, so that
+     * each page is locked and returned once per batch.  When no page has
+     * room, new pages are appended in extents of up to {@link #EXTENT_PAGES}
+     * pages with a single write.
+     */
+    @Override
+    public List<Page> insertTuples(TransactionId tid, List<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
         if (!file.canRead() || !file.canWrite()) {
             throw new IOException("the needed file can't be read/written");
         }
         List<Page> res = new ArrayList<>();
-        for (int i = 0; i < numPages(); i++) {
-            HeapPageId pageId = new HeapPageId(getId(), i);
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
-            if (page.getNumEmptySlots() == 0) {
+        BufferPool pool = Database.getBufferPool();
+        int next = 0;
+        int pageNo = 0;
+        while (next < tuples.size()) {
+            pageNo = freeSpace.nextPageWithRoom(pageNo);
+            if (pageNo == -1) {
+                int needed = (tuples.size() - next + slotsPerPage() - 1) / slotsPerPage();
+                pageNo = appendEmptyPages(Math.min(needed, EXTENT_PAGES));
+            }
+            HeapPageId pageId = new HeapPageId(getId(), pageNo);
+            boolean held = pool.holdsLock(tid, pageId);
+            // probe for room under a shared lock, so that a full page is not
+            // locked (or copied) for writing
+            HeapPage page = (HeapPage) pool.getPage(tid, pageId, Permissions.READ_ONLY);
+            if (page.getNumEmptySlots() > 0) {
+                if (!held) {
+                    // give the shared lock back rather than upgrade it: inserters
+                    // that probed the same page would deadlock upgrading
+                    pool.unsafeReleasePage(tid, pageId);
+                }
+                page = (HeapPage) pool.getPage(tid, pageId, Permissions.READ_WRITE);
+            }
+            int free = page.getNumEmptySlots();
+            if (free == 0) {
+                // filled since the map was updated; don't keep a lock on a page we don't modify
+                freeSpace.update(pageNo, false);
+                if (!held) {
+                    pool.unsafeReleasePage(tid, pageId);
+                }
+                pageNo++;
                 continue;
             }
-            page.insertTuple(t);
+            // dirty before it changes, so that rollback discards the page if
+            // the batch aborts on a later lock
+            page.markDirty(true, tid);
+            int n = Math.min(free, tuples.size() - next);
+            for (int i = 0; i < n; i++) {
+                pool.lockRecord(tid, new RecordId(pageId, page.firstEmptySlot()), Permissions.READ_WRITE);
+                page.insertTuple(tuples.get(next++));
+            }
+            freeSpace.update(pageNo, free > n);
             res.add(page);
-            return res;
+            pageNo++;
         }
-        HeapPageId pageId = new HeapPageId(getId(), numPages());
-        HeapPage page = new HeapPage(pageId, HeapPage.createEmptyPageData());
-        page.insertTuple(t);
-        writePage(page);
-        res.add(page);
         return res;
     }
 
+    /** Return the number of tuples that fit on a page of this file. */
+    int slotsPerPage() {
+        return (BufferPool.getPageSize() * 8) / (tupleDesc.getSize() * 8 + 1);
+    }
+
+    /**
+     * Add count empty pages to the end of the file with one write.  The
+     * pages are written to disk right away, so concurrent inserts each get
+     * pages of their own.
+     *
+     * @return the number of the first new page
+     */
+    private int appendEmptyPages(int count) throws IOException {
+        synchronized (freeSpace) {
+            int first = numPages();
+            int pageSize = BufferPool.getPageSize();
+            ByteBuffer pages = ByteBuffer.allocate(count * pageSize);
+            for (int i = 0; i < count; i++) {
+                pages.put(HeapPage.createEmptyPageData());
+            }
+            pages.flip();
+            handle.write(pages, (long) first * pageSize);
+            for (int i = 0; i < count; i++) {
+                freeSpace.update(first + i, true);
+            }
+            return first;
+        }
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
@@ -151,7 +282,13 @@ public class HeapFile implements DbFile {
         if (page == null) {
             throw new DbException("page is null");
         } else {
+            Database.getBufferPool().lockRecord(tid, t.getRecordId(), Permissions.READ_WRITE);
             page.deleteTuple(t);
+            try {
+                freeSpace.update(pageId.getPageNumber(), true);
+            } catch (IOException e) {
+                throw new DbException("could not read free space map: " + e.getMessage());
+            }
             res.add(page);
             return res;
         }
@@ -163,10 +300,20 @@ public class HeapFile implements DbFile {
         return new HeapFileIterator(tid, Permissions.READ_ONLY);
     }
 
+    /**
+     * Iterates over the tuples of a HeapFile page by page.  The page being
+     * read is pinned in the buffer pool until the iterator moves past it.
+     * Each page is reported to the buffer pool before it is read, so that
+     * sequential scans are read ahead.  In record locking mode, a read-only
+     * iterator locks the tuples it reads rather than their pages.
+     */
     public class HeapFileIterator implements DbFileIterator{
         TransactionId tid;
         Permissions permissions;
         Iterator<Tuple> iterator;
+        PageHandle current;
+        /** The slots of the current page to read, or null for all of them. */
+        BitSet slots;
         int num;
 
 
@@ -174,6 +321,7 @@ public class HeapFile implements DbFile {
             this.tid = tid;
             this.permissions = permissions;
             iterator = null;
+            current = null;
             num = 0;
         }
 
@@ -184,12 +332,53 @@ public class HeapFile implements DbFile {
         }
 
         private void nextPage() throws TransactionAbortedException, DbException {
+            unpin();
             HeapPageId heapPageId = new HeapPageId(getId(), num);
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, heapPageId, permissions);
+            if (readsAhead()) {
+                Database.getBufferPool().readAhead(HeapFile.this, num);
+            }
+            BufferPool pool = Database.getBufferPool();
+            if (pool.isRecordLocking() && permissions.equals(Permissions.READ_ONLY)) {
+                slots = new BitSet();
+                current = pool.pinTuples(tid, heapPageId, slots);
+            } else {
+                slots = null;
+                current = pool.pinPage(tid, heapPageId, permissions);
+            }
+            HeapPage page = (HeapPage) current.getPage();
             if (page == null){
                 throw new DbException("page is null");
             } else {
-                iterator = page.iterator();
+                iterator = page.iterator(slots);
+            }
+        }
+
+        private void unpin() {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+        }
+
+        /**
+         * Visit the tuples from the start of the current page to the end of
+         * the file as views over the page bytes, without materializing them.
+         * Meant to be called right after {@link #open}, instead of next();
+         * the iterator is exhausted afterwards.
+         */
+        public void forEachView(TupleView.Visitor visitor) throws DbException, TransactionAbortedException {
+            while (current != null) {
+                HeapPage.Cursor cursor = ((HeapPage) current.getPage()).cursor(slots);
+                while (cursor.advance()) {
+                    visitor.visit(cursor);
+                }
+                num++;
+                if (num >= numPages()) {
+                    unpin();
+                    iterator = null;
+                    return;
+                }
+                nextPage();
             }
         }
 
@@ -203,6 +392,7 @@ public class HeapFile implements DbFile {
                 while(true) {
                     num++;
                     if (num >= numPages()) {
+                        unpin();
                         return false;
                     }
                     nextPage();
@@ -226,6 +416,7 @@ public class HeapFile implements DbFile {
 
         @Override
         public void close() {
+            unpin();
             iterator = null;
         }
     }
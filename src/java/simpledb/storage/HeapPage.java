@@ -8,6 +8,7 @@ import simpledb.transaction.TransactionId;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -22,14 +23,23 @@ public class HeapPage implements Page {
     final HeapPageId pid;
     final TupleDesc td;
     final byte[] header;
+    /** The page as it was read; tuples in it are decoded when they are asked for. */
+    final ByteBuffer data;
+    /** Tuples inserted since the page was read; null for slots still held in data. */
     final Tuple[] tuples;
     final int numSlots;
+    /** Offset of each field from the start of a tuple. */
+    private final int[] fieldOffsets;
+    /** True once a tuple has been inserted or deleted. */
+    private boolean modified;
 
+    /** The before image, or null if it is still the data the page was read from. */
     byte[] oldData;
-    private final Byte oldDataLock= (byte) 0;
+    private final Object oldDataLock = new Object();
 
     private boolean dirty;
     private TransactionId dirtyBy;
+    private volatile long pageLsn;
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -43,32 +53,47 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * Tuples are not parsed here: the page keeps <code>data</code> and
+     * decodes a tuple each time it is read, so <code>data</code> must not
+     * be modified afterwards.
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage over a buffer holding the page as it is on disk,
+     * e.g. a slice of a memory-mapped file.  Nothing is copied but the
+     * header; tuples are decoded straight from the buffer when they are
+     * read.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        if (data.remaining() < BufferPool.getPageSize()) {
+            // a short page is padded with zeroes
+            byte[] padded = new byte[BufferPool.getPageSize()];
+            data.duplicate().get(padded, 0, data.remaining());
+            data = ByteBuffer.wrap(padded);
+        }
+        this.data = data.slice();
 
-        // allocate and read the header slots of this page
+        // read the header slots of this page
         header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+        this.data.duplicate().get(header);
 
-        setBeforeImage();
+        tuples = new Tuple[numSlots];
+        fieldOffsets = new int[td.numFields()];
+        for (int j = 1; j < fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j - 1] + td.getFieldType(j - 1).getLen();
+        modified = false;
+        oldData = null;
     }
 
     /** Retrieve the number of tuples on this page.
@@ -98,6 +123,9 @@ public class HeapPage implements Page {
             {
                 oldDataRef = oldData;
             }
+            if (oldDataRef == null) {
+                oldDataRef = copyData();
+            }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
             e.printStackTrace();
@@ -110,7 +138,43 @@ public class HeapPage implements Page {
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = getPageData();
+        }
+    }
+
+    /**
+     * Called before the first change to this page.  Pages over a mapped
+     * file see later writes of the page to disk, so their before image is
+     * copied out now.
+     */
+    private void beginModification() {
+        if (modified) {
+            return;
+        }
+        if (!data.hasArray()) {
+            synchronized (oldDataLock) {
+                if (oldData == null) {
+                    oldData = copyData();
+                }
+            }
+        }
+        modified = true;
+    }
+
+    /** Return a copy of the data this page was read from. */
+    private byte[] copyData() {
+        byte[] copy = new byte[BufferPool.getPageSize()];
+        copyData(0, copy, 0, copy.length);
+        return copy;
+    }
+
+    private void copyData(int from, byte[] dst, int to, int len) {
+        if (data.hasArray()) {
+            System.arraycopy(data.array(), data.arrayOffset() + from, dst, to, len);
+        } else {
+            ByteBuffer view = data.duplicate();
+            view.position(from);
+            view.get(dst, to, len);
         }
     }
 
@@ -122,40 +186,55 @@ public class HeapPage implements Page {
         return pid;
     }
 
+    /** Return the offset of a tuple slot from the start of the page. */
+    private int slotOffset(int slotId) {
+        return header.length + slotId * td.getSize();
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * Return the tuple in a used slot, decoding it from the page data if it
+     * was not inserted since the page was read.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
+    private Tuple readTuple(int slotId) {
+        if (tuples[slotId] != null) {
+            return tuples[slotId];
         }
-
-        // read fields in the tuple
         Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
+        t.setRecordId(new RecordId(pid, slotId));
+        int offset = slotOffset(slotId);
         try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
+            for (int j=0; j<td.numFields(); j++)
+                t.setField(j, td.getFieldType(j).parse(data, offset + fieldOffsets[j]));
         } catch (java.text.ParseException e) {
             e.printStackTrace();
             throw new NoSuchElementException("parsing error!");
         }
-
         return t;
     }
 
+    /**
+     * Return one field of the tuple in a slot, without decoding the rest of
+     * the tuple.
+     *
+     * @param slotId the slot of the tuple
+     * @param i the index of the field
+     * @throws NoSuchElementException if the slot is empty
+     */
+    public Field getField(int slotId, int i) {
+        if (!isSlotUsed(slotId)) {
+            throw new NoSuchElementException("slot " + slotId + " is empty");
+        }
+        if (tuples[slotId] != null) {
+            return tuples[slotId].getField(i);
+        }
+        try {
+            return td.getFieldType(i).parse(data, slotOffset(slotId) + fieldOffsets[i]);
+        } catch (java.text.ParseException e) {
+            e.printStackTrace();
+            throw new NoSuchElementException("parsing error!");
+        }
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -163,42 +242,35 @@ public class HeapPage implements Page {
      * The invariant here is that it should be possible to pass the byte
      * array generated by getPageData to the HeapPage constructor and
      * have it produce an identical HeapPage object.
+     * <p>
+     * An unmodified page is returned as a copy of the data it was read
+     * from; otherwise only the tuples inserted since are serialized.
      *
      * @see #HeapPage
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
+        if (!modified) {
+            return copyData();
+        }
         int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
+        byte[] page = new byte[len];
 
         // create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
+        System.arraycopy(header, 0, page, 0, header.length);
 
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
+        // create the tuples; empty slots and padding stay zero
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        for (int i=0; i<numSlots; i++) {
             if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
                 continue;
             }
-
-            // non-empty slot
+            if (tuples[i] == null) {
+                copyData(slotOffset(i), page, slotOffset(i), td.getSize());
+                continue;
+            }
+            baos.reset();
             for (int j=0; j<td.numFields(); j++) {
                 Field f = tuples[i].getField(j);
                 try {
@@ -207,24 +279,10 @@ public class HeapPage implements Page {
                     e.printStackTrace();
                 }
             }
+            System.arraycopy(baos.toByteArray(), 0, page, slotOffset(i), td.getSize());
         }
 
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        return page;
     }
 
     /**
@@ -255,6 +313,7 @@ public class HeapPage implements Page {
         if (t.getRecordId().getPageId() != pid || tupleNo > getNumTuples() || !isSlotUsed(tupleNo)) {
             throw new DbException("this tuple is not on this page, or tuple slot is already empty");
         }
+        beginModification();
         markSlotUsed(tupleNo, false);
         tuples[tupleNo] = null;
     }
@@ -274,6 +333,7 @@ public class HeapPage implements Page {
         }
         for (int i = 0; i < getNumTuples(); i++) {
             if (!isSlotUsed(i)) {
+                beginModification();
                 markSlotUsed(i, true);
                 tuples[i] = t;
                 t.setRecordId(new RecordId(pid, i));
@@ -306,6 +366,14 @@ public class HeapPage implements Page {
         return dirtyBy;
     }
 
+    public long getPageLsn() {
+        return pageLsn;
+    }
+
+    public void setPageLsn(long lsn) {
+        this.pageLsn = lsn;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
@@ -328,6 +396,27 @@ public class HeapPage implements Page {
         return bit == 1;
     }
 
+    /**
+     * Returns the used slots of this page.
+     */
+    public BitSet usedSlots() {
+        BitSet res = new BitSet(numSlots);
+        for (int i = nextUsedSlot(0); i < numSlots; i = nextUsedSlot(i + 1))
+            res.set(i);
+        return res;
+    }
+
+    /**
+     * Returns the slot the next tuple inserted goes to, or -1 if the page
+     * is full.
+     */
+    public int firstEmptySlot() {
+        for (int i = 0; i < numSlots; i++)
+            if (!isSlotUsed(i))
+                return i;
+        return -1;
+    }
+
     /**
      * Abstraction to fill or clear a slot on this page.
      */
@@ -347,10 +436,185 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        return Arrays.stream(tuples)
-                .filter(t -> t != null)
-                .iterator();
+        return iterator(null);
     }
 
-}
+    /**
+     * @param only the slots to visit, or null for all of them
+     * @return an iterator over the tuples in the used slots of only
+     */
+    public Iterator<Tuple> iterator(BitSet only) {
+        return new Iterator<Tuple>() {
+            private final BitSet slots = only;
+            private int next = nextUsedSlot(0, slots);
+
+            @Override
+            public boolean hasNext() {
+                return next < numSlots;
+            }
+
+            @Override
+            public Tuple next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Tuple t = readTuple(next);
+                next = nextUsedSlot(next + 1, slots);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * @return a cursor over the tuples on this page, positioned before the
+     * first one
+     */
+    public Cursor cursor() {
+        return new Cursor(null);
+    }
+
+    /**
+     * @param only the slots to visit, or null for all of them
+     * @return a cursor over the tuples in the used slots of only,
+     * positioned before the first one
+     */
+    public Cursor cursor(BitSet only) {
+        return new Cursor(only);
+    }
+
+    /**
+     * A Cursor moves over the used slots of a page and reads the fields of
+     * the current slot straight from the page bytes.  Nothing is allocated
+     * per tuple unless {@link #getField} or {@link #getTuple} is called.
+     * Strings are compared byte by byte with the operand; only strings
+     * with non-ASCII characters are decoded.
+     */
+    public class Cursor implements TupleView {
+        private final BitSet only;
+        private int slot = -1;
+
+        private Cursor(BitSet only) {
+            this.only = only;
+        }
+
+        /**
+         * Move to the next used slot.
+         *
+         * @return false if there are no more tuples on the page
+         */
+        public boolean advance() {
+            slot = nextUsedSlot(slot + 1, only);
+            return slot < numSlots;
+        }
+
+        /** @return the slot the cursor is on */
+        public int getSlot() {
+            return slot;
+        }
+
+        /** @return the tuple the cursor is on, as a Tuple */
+        public Tuple getTuple() {
+            return readTuple(slot);
+        }
 
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        /** Return the offset of field i of the current tuple in data. */
+        private int fieldOffset(int i) {
+            return slotOffset(slot) + fieldOffsets[i];
+        }
+
+        public int getInt(int i) {
+            if (tuples[slot] != null) {
+                return tuples[slot].getInt(i);
+            }
+            return data.getInt(fieldOffset(i));
+        }
+
+        public int compareString(int i, String s) {
+            if (tuples[slot] != null) {
+                return tuples[slot].compareString(i, s);
+            }
+            int offset = fieldOffset(i);
+            int len = data.getInt(offset);
+            int n = Math.min(len, s.length());
+            for (int k = 0; k < n; k++) {
+                byte b = data.get(offset + 4 + k);
+                if (b < 0) {
+                    return ((StringField) getField(i)).getValue().compareTo(s);
+                }
+                if (b != s.charAt(k)) {
+                    return b - s.charAt(k);
+                }
+            }
+            return len - s.length();
+        }
+
+        public boolean containsString(int i, String s) {
+            if (tuples[slot] != null) {
+                return tuples[slot].containsString(i, s);
+            }
+            int offset = fieldOffset(i) + 4;
+            int len = data.getInt(offset - 4);
+            for (int k = 0; k < len; k++) {
+                if (data.get(offset + k) < 0) {
+                    return ((StringField) getField(i)).getValue().contains(s);
+                }
+            }
+            for (int start = 0; start + s.length() <= len; start++) {
+                int k = 0;
+                while (k < s.length() && data.get(offset + start + k) == s.charAt(k))
+                    k++;
+                if (k == s.length()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public int hashString(int i) {
+            if (tuples[slot] != null) {
+                return tuples[slot].hashString(i);
+            }
+            int offset = fieldOffset(i) + 4;
+            int len = data.getInt(offset - 4);
+            int h = 0;
+            for (int k = 0; k < len; k++) {
+                byte b = data.get(offset + k);
+                if (b < 0) {
+                    return ((StringField) getField(i)).getValue().hashCode();
+                }
+                h = 31 * h + b;
+            }
+            return h;
+        }
+
+        public Field getField(int i) {
+            return HeapPage.this.getField(slot, i);
+        }
+    }
+
+    /** Return the first used slot at or after slotId, or numSlots if there is none. */
+    private int nextUsedSlot(int slotId) {
+        while (slotId < numSlots && !isSlotUsed(slotId))
+            slotId++;
+        return slotId;
+    }
+
+    /**
+     * Return the first used slot at or after slotId that is in only, or
+     * numSlots if there is none; a null only allows every slot.
+     */
+    private int nextUsedSlot(int slotId, BitSet only) {
+        if (only == null) {
+            return nextUsedSlot(slotId);
+        }
+        slotId = only.nextSetBit(slotId);
+        while (slotId >= 0 && slotId < numSlots && !isSlotUsed(slotId))
+            slotId = only.nextSetBit(slotId + 1);
+        return slotId < 0 ? numSlots : Math.min(slotId, numSlots);
+    }
+
+}
@@ -2,134 +2,897 @@ package simpledb.storage;
 
 import simpledb.common.Permissions;
 import simpledb.storage.PageId;
+import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * LockManager keeps the locks of transactions on tables, pages and
+ * records.
+ * <p>
+ * Locks are hierarchical: before a transaction locks a page shared (S,
+ * for READ_ONLY) or exclusive (X, for READ_WRITE), it takes an intention
+ * lock (IS or IX) on the table of the page, and before it locks a record
+ * (see {@link #acquireRecordLock}) it takes intention locks on both the
+ * table and the page.  A table lock in S, SIX or X mode covers the pages
+ * and records of the table, and a page lock the records of the page, so
+ * no finer locks are needed for what it allows.  See {@link LockMode} for
+ * the modes and which of them are compatible.
+ * <p>
+ * When a transaction holds more page and record locks on one table than
+ * the escalation threshold (see {@link #setEscalationThreshold}), they
+ * are escalated: the transaction takes an S lock on the table, or an X
+ * lock if it has written some of its pages or records, and drops the
+ * locks the table lock covers.  Escalation does not wait; if the table lock cannot be
+ * granted right away the transaction keeps its page locks and tries again
+ * on its next page lock.
+ * <p>
+ * Each locked table, page or record has the transactions holding it and
+ * a FIFO queue of requests waiting for it.  A request that conflicts with a
+ * holder, or with a request queued ahead of it, parks in the queue until
+ * a release signals it; a holder upgrading its lock queues at the front.
+ * <p>
+ * The lock table is split into stripes by the hash of the locked object,
+ * each with its own monitor, so requests for objects in different stripes
+ * never contend, and waiters are only signalled by releases in their
+ * stripe.  Records are in the stripe of their page, whose entry lists its
+ * locked records.  The objects each transaction has locked are kept as
+ * well, so releasing the locks of a transaction only visits those, with
+ * the modes of its table locks, so that its page and record requests on
+ * a table it holds an intention lock on leave the table's stripe alone.
+ * <p>
+ * Before a request parks, the transactions it waits for are added to the
+ * waits-for graph (see {@link DependencyGraph}), which is searched for a
+ * cycle through it.  The youngest transaction on a cycle is the victim:
+ * its request is woken and fails with a TransactionAbortedException, and
+ * the transaction is expected to abort and release its locks.  The graph
+ * is searched, and the victim signalled, without holding a stripe.
+ * <p>
+ * A transaction may instead be given a {@link LockPolicy} that avoids
+ * deadlocks without the graph: it never waits (NO_WAIT), waits at most
+ * the lock timeout (TIMEOUT), or lets only the older of two conflicting
+ * transactions wait (WAIT_DIE, WOUND_WAIT; the transaction with the
+ * smaller id is the older).  A deadlock among transactions of different
+ * policies is broken by the lock timeout: a transaction that avoids
+ * deadlocks waits at most that long for one of another policy.
+ */
 public class LockManager {
+    /** How a transaction whose lock request conflicts avoids or breaks deadlocks. */
+    public enum LockPolicy {
+        /** Wait, and abort the youngest transaction on a cycle of the waits-for graph (the default). */
+        DETECT,
+        /** Abort instead of waiting. */
+        NO_WAIT,
+        /** Wait at most the lock timeout, then abort. */
+        TIMEOUT,
+        /** Wait for younger transactions only; abort rather than wait for an older one. */
+        WAIT_DIE,
+        /** Wait for older transactions only; abort the younger ones in the way. */
+        WOUND_WAIT
+    }
+
+    /** Lock modes, from weakest to strongest. */
+    public enum LockMode {
+        /** Intention to lock pages of a table shared. */
+        IS,
+        /** Intention to lock pages of a table exclusive. */
+        IX,
+        /** Shared. */
+        S,
+        /** Shared, with the intention to lock pages exclusive. */
+        SIX,
+        /** Exclusive. */
+        X;
+
+        private static final boolean[][] COMPATIBLE = {
+                //            IS     IX     S      SIX    X
+                /* IS  */ { true,  true,  true,  true,  false },
+                /* IX  */ { true,  true,  false, false, false },
+                /* S   */ { true,  false, true,  false, false },
+                /* SIX */ { true,  false, false, false, false },
+                /* X   */ { false, false, false, false, false },
+        };
+
+        /** Return true if locks in this mode and other can be held by different transactions. */
+        public boolean isCompatible(LockMode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /** Return the weakest mode allowing what both this mode and other allow. */
+        public LockMode combine(LockMode other) {
+            if ((this == S && other == IX) || (this == IX && other == S)) {
+                return SIX;
+            }
+            return ordinal() >= other.ordinal() ? this : other;
+        }
+
+        /** Return true if a lock in this mode allows what a lock in mode other does. */
+        public boolean covers(LockMode other) {
+            return combine(other) == this;
+        }
+
+        static LockMode of(Permissions perm) {
+            return perm.equals(Permissions.READ_ONLY) ? S : X;
+        }
+
+        /** Return the intention mode to take on a table or page before locking what it contains in this mode. */
+        LockMode intention() {
+            return this == S || this == IS ? IS : IX;
+        }
+    }
+
     public class SimpleDBLock {
         private TransactionId transactionId;
-        private Permissions permissions;
+        private LockMode mode;
 
-        public SimpleDBLock(TransactionId transactionId, Permissions permissions) {
+        public SimpleDBLock(TransactionId transactionId, LockMode mode) {
             this.transactionId = transactionId;
-            this.permissions = permissions;
+            this.mode = mode;
         }
 
         public TransactionId getTransactionId() {
             return transactionId;
         }
 
-        public Permissions getPermissions() {
-            return permissions;
+        public LockMode getMode() {
+            return mode;
         }
 
-        public void setPermissions(Permissions permissions) {
-            this.permissions = permissions;
+        public void setMode(LockMode mode) {
+            this.mode = mode;
         }
 
         @Override
         public String toString() {
-            return new StringBuilder().append("Lock{permissions=").append(permissions.toString())
+            return new StringBuilder().append("Lock{mode=").append(mode.toString())
                     .append(", transactionId=").append(transactionId.toString()).append("}").toString();
         }
     }
 
-    private Map<PageId, Set<SimpleDBLock>> lockCache;
+    /** The key of the lock on a whole table. */
+    private static final class TableKey {
+        final int tableId;
+
+        TableKey(int tableId) {
+            this.tableId = tableId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TableKey && ((TableKey) o).tableId == tableId;
+        }
+
+        @Override
+        public int hashCode() {
+            return Integer.hashCode(tableId) * 0x9E3779B9;
+        }
+    }
+
+    /** A request waiting in the queue of a table, page or record. */
+    private static class Request {
+        final TransactionId tid;
+        final LockMode mode;
+        final Stripe stripe;
+        /** Set when the request is chosen as a deadlock victim. Guarded by stripe. */
+        boolean aborted;
+        /** The blockers last added to the waits-for graph. Guarded by stripe. */
+        Set<TransactionId> blocking;
+
+        Request(TransactionId tid, LockMode mode, Stripe stripe) {
+            this.tid = tid;
+            this.mode = mode;
+            this.stripe = stripe;
+            this.aborted = false;
+            this.blocking = null;
+        }
+    }
+
+    /** The holders and waiters of one table, page or record. */
+    private static class LockEntry {
+        final Map<TransactionId, SimpleDBLock> holders = new HashMap<>();
+        final LinkedList<Request> queue = new LinkedList<>();
+        /** For a page, the records of the page that have entries. */
+        final Set<RecordId> records = new HashSet<>();
+    }
+
+    /** A part of the lock table; its monitor guards its entries and their requests. */
+    private static class Stripe {
+        final Map<Object, LockEntry> lockCache = new HashMap<>();
+    }
+
+    /** The tables, pages and records a transaction holds a lock on. */
+    private static class Held {
+        /**
+         * The mode of each table lock, so that a request covered by it is
+         * answered without the table's stripe.  Only grants to the
+         * transaction change it, under the stripe of the table.
+         */
+        final Map<Integer, LockMode> tables = new ConcurrentHashMap<>();
+        /** The pages and records locked, by table. */
+        final Map<Integer, Set<Object>> keys = new ConcurrentHashMap<>();
+        /** Tables with pages or records locked exclusive. */
+        final Set<Integer> written = ConcurrentHashMap.newKeySet();
+
+        Set<Object> keys(int tableId) {
+            return keys.computeIfAbsent(tableId, t -> ConcurrentHashMap.newKeySet());
+        }
+    }
+
+    /** Number of stripes of the lock table; a power of two. */
+    static final int STRIPES = 64;
+
+    /** Default lock timeout, in milliseconds. */
+    public static final long DEFAULT_LOCK_TIMEOUT_MILLIS = 1000;
+
+    /** Default number of page and record locks on one table that triggers escalation. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+
+    private final Stripe[] stripes;
+    private final Map<TransactionId, Held> held;
+    /** The waiting request of each transaction. */
+    private final Map<TransactionId, Request> waiting;
+    private final DependencyGraph waitsFor;
+    /** The policies of transactions that don't use the default one. */
+    private final Map<TransactionId, LockPolicy> policies;
+    /** Transactions to abort at their next lock request, wounded by an older one. */
+    private final Set<TransactionId> wounded;
+
+    private volatile int escalationThreshold;
+    private volatile long lockTimeoutMillis;
+
+    private final AtomicLong waits;
+    private final AtomicLong waitNanos;
+    private final AtomicLong deadlocks;
+    private final AtomicLong escalations;
+    private final AtomicLong policyAborts;
+    private final AtomicLong tableRequests;
 
     public LockManager() {
-        this.lockCache = new ConcurrentHashMap<>();
+        this.stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+        this.held = new ConcurrentHashMap<>();
+        this.waiting = new ConcurrentHashMap<>();
+        this.waitsFor = new DependencyGraph();
+        this.policies = new ConcurrentHashMap<>();
+        this.wounded = ConcurrentHashMap.newKeySet();
+        this.escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+        this.lockTimeoutMillis = DEFAULT_LOCK_TIMEOUT_MILLIS;
+        this.waits = new AtomicLong(0);
+        this.waitNanos = new AtomicLong(0);
+        this.deadlocks = new AtomicLong(0);
+        this.escalations = new AtomicLong(0);
+        this.policyAborts = new AtomicLong(0);
+        this.tableRequests = new AtomicLong(0);
+    }
+
+    /** Set how tid avoids or breaks deadlocks, until its locks are all released. */
+    public void setPolicy(TransactionId tid, LockPolicy policy) {
+        if (policy == LockPolicy.DETECT) {
+            policies.remove(tid);
+        } else {
+            policies.put(tid, policy);
+        }
+    }
+
+    public LockPolicy getPolicy(TransactionId tid) {
+        return policies.getOrDefault(tid, LockPolicy.DETECT);
+    }
+
+    /** Set how long transactions with a timeout wait for a lock, in milliseconds. */
+    public void setLockTimeout(long millis) {
+        this.lockTimeoutMillis = millis;
     }
 
-    public synchronized Boolean acquireLock(TransactionId tid, PageId pid, Permissions permissions) {
+    public long getLockTimeout() {
+        return lockTimeoutMillis;
+    }
+
+    /**
+     * Set the number of page and record locks a transaction may hold on
+     * one table before they are escalated to a table lock.
+     */
+    public void setEscalationThreshold(int threshold) {
+        this.escalationThreshold = threshold;
+    }
+
+    public int getEscalationThreshold() {
+        return escalationThreshold;
+    }
+
+    private Stripe stripe(Object key) {
+        if (key instanceof RecordId) {
+            key = ((RecordId) key).getPageId();
+        }
+        int h = key.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    private static int tableOf(Object key) {
+        if (key instanceof RecordId) {
+            return ((RecordId) key).getPageId().getTableId();
+        }
+        return ((PageId) key).getTableId();
+    }
+
+    /**
+     * Return the entry of a locked object, creating it if needed; a new
+     * record entry is listed in the entry of its page.  Caller holds the
+     * stripe of key.
+     */
+    private LockEntry entry(Stripe stripe, Object key) {
+        LockEntry entry = stripe.lockCache.get(key);
+        if (entry == null) {
+            entry = new LockEntry();
+            stripe.lockCache.put(key, entry);
+            if (key instanceof RecordId) {
+                RecordId rid = (RecordId) key;
+                entry(stripe, rid.getPageId()).records.add(rid);
+            }
+        }
+        return entry;
+    }
+
+    /** Drop the entry of a locked object once it is unused.  Caller holds the stripe of key. */
+    private void prune(Stripe stripe, Object key, LockEntry entry) {
+        if (!entry.holders.isEmpty() || !entry.queue.isEmpty() || !entry.records.isEmpty()) {
+            return;
+        }
+        stripe.lockCache.remove(key);
+        if (key instanceof RecordId) {
+            RecordId rid = (RecordId) key;
+            LockEntry page = stripe.lockCache.get(rid.getPageId());
+            if (page != null) {
+                page.records.remove(rid);
+                prune(stripe, rid.getPageId(), page);
+            }
+        }
+    }
+
+    /**
+     * Return the transactions that keep a request from being granted: the
+     * holders whose locks conflict with the mode the requester would hold
+     * and, unless the transaction holds a lock already, the conflicting
+     * requests queued ahead of it.
+     */
+    private Set<TransactionId> blockers(LockEntry entry, TransactionId tid, LockMode mode, Request req) {
+        Set<TransactionId> res = new HashSet<>();
+        SimpleDBLock own = entry.holders.get(tid);
+        LockMode wanted = own == null ? mode : own.getMode().combine(mode);
+        for (SimpleDBLock lock : entry.holders.values()) {
+            if (!lock.getTransactionId().equals(tid) && !lock.getMode().isCompatible(wanted)) {
+                res.add(lock.getTransactionId());
+            }
+        }
+        if (own != null) {
+            return res;
+        }
+        for (Request ahead : entry.queue) {
+            if (ahead == req) {
+                break;
+            }
+            if (!ahead.tid.equals(tid) && !ahead.mode.isCompatible(mode)) {
+                res.add(ahead.tid);
+            }
+        }
+        return res;
+    }
+
+    /** Caller holds the stripe of key. */
+    private void grant(LockEntry entry, TransactionId tid, Object key, LockMode mode) {
+        Held h = held.computeIfAbsent(tid, t -> new Held());
+        SimpleDBLock lock = entry.holders.get(tid);
+        if (lock != null) {
+            lock.setMode(lock.getMode().combine(mode));
+        } else {
+            lock = new SimpleDBLock(tid, mode);
+            entry.holders.put(tid, lock);
+        }
+        if (key instanceof TableKey) {
+            h.tables.put(((TableKey) key).tableId, lock.getMode());
+        } else {
+            int tableId = tableOf(key);
+            h.keys(tableId).add(key);
+            if (mode == LockMode.X) {
+                h.written.add(tableId);
+            }
+        }
+    }
+
+    /** Return the mode tid holds on a table, or null, from the state of the transaction. */
+    private LockMode tableModeOf(TransactionId tid, int tableId) {
+        Held h = held.get(tid);
+        return h == null ? null : h.tables.get(tableId);
+    }
+
+    /** Return the mode tid holds on key, or null. */
+    private LockMode modeOf(TransactionId tid, Object key) {
+        Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            LockEntry entry = stripe.lockCache.get(key);
+            SimpleDBLock lock = entry == null ? null : entry.holders.get(tid);
+            return lock == null ? null : lock.getMode();
+        }
+    }
+
+    /**
+     * Acquire a lock on a page, after the intention lock on its table,
+     * waiting until both are granted.  Nothing is locked if a lock the
+     * transaction holds on the table covers the page already, and the
+     * table is not locked again if the transaction holds the intention
+     * lock already: only the first request of a transaction on a table
+     * goes through the table's stripe.
+     *
+     * @throws TransactionAbortedException if the transaction is chosen as
+     *         the victim of a deadlock, or interrupted while waiting
+     */
+    public void acquireLock(TransactionId tid, PageId pid, Permissions permissions)
+            throws TransactionAbortedException {
+        acquirePageLock(tid, pid, LockMode.of(permissions));
+    }
+
+    /**
+     * Acquire a lock on a page in any mode, like {@link #acquireLock}.
+     *
+     * @throws TransactionAbortedException if the transaction is chosen as
+     *         the victim of a deadlock, or interrupted while waiting
+     */
+    public void acquirePageLock(TransactionId tid, PageId pid, LockMode mode)
+            throws TransactionAbortedException {
         if (tid == null) {
-            return true;
+            return;
+        }
+        LockMode tableMode = tableModeOf(tid, pid.getTableId());
+        if (tableMode != null && tableMode.covers(mode)) {
+            return;
         }
-        SimpleDBLock lock = new SimpleDBLock(tid, permissions);
-        Set<SimpleDBLock> locks = lockCache.get(pid);
+        if (tableMode == null || !tableMode.covers(mode.intention())) {
+            acquire(tid, new TableKey(pid.getTableId()), mode.intention());
+        }
+        acquire(tid, pid, mode);
+        checkEscalation(tid, pid.getTableId());
+    }
 
-        if (locks == null) {
-            locks = new HashSet<>();
-            locks.add(lock);
-            lockCache.put(pid, locks);
-            return true;
-        } else if (locks.isEmpty()) {
-            locks.add(lock);
-            return true;
+    /**
+     * Acquire a lock on a record, after the intention locks on its table
+     * and page, waiting until all are granted.  Nothing is locked if a
+     * lock the transaction holds on the table or page covers the record
+     * already.
+     *
+     * @throws TransactionAbortedException if the transaction is chosen as
+     *         the victim of a deadlock, or interrupted while waiting
+     */
+    public void acquireRecordLock(TransactionId tid, RecordId rid, Permissions permissions)
+            throws TransactionAbortedException {
+        if (tid == null) {
+            return;
+        }
+        LockMode mode = LockMode.of(permissions);
+        PageId pid = rid.getPageId();
+        LockMode tableMode = tableModeOf(tid, pid.getTableId());
+        if (tableMode != null && tableMode.covers(mode)) {
+            return;
+        }
+        LockMode pageMode = modeOf(tid, pid);
+        if (pageMode != null && pageMode.covers(mode)) {
+            return;
         }
+        if (tableMode == null || !tableMode.covers(mode.intention())) {
+            acquire(tid, new TableKey(pid.getTableId()), mode.intention());
+        }
+        acquire(tid, pid, mode.intention());
+        acquire(tid, rid, mode);
+        checkEscalation(tid, pid.getTableId());
+    }
+
+    private void checkEscalation(TransactionId tid, int tableId) {
+        Held h = held.get(tid);
+        if (h != null && h.keys(tableId).size() > escalationThreshold) {
+            escalate(tid, tableId, h);
+        }
+    }
+
+    /**
+     * Acquire a lock on a whole table, waiting until it is granted.
+     *
+     * @throws TransactionAbortedException if the transaction is chosen as
+     *         the victim of a deadlock, or interrupted while waiting
+     */
+    public void acquireTableLock(TransactionId tid, int tableId, LockMode mode)
+            throws TransactionAbortedException {
+        if (tid == null) {
+            return;
+        }
+        acquire(tid, new TableKey(tableId), mode);
+    }
 
-        if (lock.getPermissions().equals(Permissions.READ_ONLY)) {
-            for (SimpleDBLock cur: locks) {
-                if (cur.getTransactionId().equals(tid)) {
-                    return true;
-                } else if (cur.getPermissions().equals(Permissions.READ_WRITE)) {
-                    return false;
+    /**
+     * Acquire a lock on a table, page or record, waiting until it is
+     * granted as the policy of the transaction allows.
+     */
+    private void acquire(TransactionId tid, Object key, LockMode mode)
+            throws TransactionAbortedException {
+        LockPolicy policy = getPolicy(tid);
+        Stripe stripe = stripe(key);
+        if (key instanceof TableKey) {
+            tableRequests.incrementAndGet();
+        }
+        Request req = null;
+        long start = 0;
+        try {
+            while (true) {
+                Set<TransactionId> blocking;
+                Set<TransactionId> wound;
+                synchronized (stripe) {
+                    if ((req != null && req.aborted) || wounded.contains(tid)) {
+                        throw new TransactionAbortedException();
+                    }
+                    LockEntry entry = entry(stripe, key);
+                    blocking = blockers(entry, tid, mode, req);
+                    if (blocking.isEmpty()) {
+                        grant(entry, tid, key, mode);
+                        return;
+                    }
+                    if (policy == LockPolicy.NO_WAIT
+                            || (policy == LockPolicy.WAIT_DIE && !isOlderThanAll(tid, blocking))) {
+                        policyAborts.incrementAndGet();
+                        throw new TransactionAbortedException();
+                    }
+                    if (req == null) {
+                        req = new Request(tid, mode, stripe);
+                        if (entry.holders.containsKey(tid)) {
+                            entry.queue.addFirst(req);
+                        } else {
+                            entry.queue.addLast(req);
+                        }
+                        waiting.put(tid, req);
+                        waits.incrementAndGet();
+                        start = System.nanoTime();
+                    }
+                    if (policy != LockPolicy.DETECT) {
+                        wound = policy == LockPolicy.WOUND_WAIT ? younger(tid, blocking) : Collections.emptySet();
+                        if (wound.isEmpty()) {
+                            long timeout = 0;
+                            if (policy == LockPolicy.TIMEOUT || hasOtherPolicy(policy, blocking)) {
+                                timeout = start + TimeUnit.MILLISECONDS.toNanos(lockTimeoutMillis) - System.nanoTime();
+                                if (timeout <= 0) {
+                                    policyAborts.incrementAndGet();
+                                    throw new TransactionAbortedException();
+                                }
+                            }
+                            park(stripe, timeout);
+                            continue;
+                        }
+                    } else if (blocking.equals(req.blocking)) {
+                        // the graph is up to date: park until signalled
+                        park(stripe, 0);
+                        continue;
+                    } else {
+                        wound = null;
+                        req.blocking = blocking;
+                    }
+                }
+                if (wound != null) {
+                    for (TransactionId younger : wound) {
+                        wound(younger);
+                    }
+                    continue;
+                }
+                TransactionId victim = waitsFor.setWaits(tid, blocking);
+                if (victim != null) {
+                    Request other = waiting.get(victim);
+                    if (victim.equals(tid) || other == null) {
+                        deadlocks.incrementAndGet();
+                        throw new TransactionAbortedException();
+                    }
+                    abort(other, deadlocks);
                 }
             }
-            locks.add(lock);
-            return true;
-        } else {
-            SimpleDBLock first = locks.iterator().next();
-            if (locks.size() == 1 && first.getTransactionId().equals(tid)) {
-                if (first.getPermissions().equals(Permissions.READ_ONLY)) {
-                    locks = new HashSet<>();
-                    locks.add(lock);
-                    lockCache.put(pid, locks);
-                    return true;
-                } else {
-                    return true;
+        } finally {
+            if (req != null) {
+                synchronized (stripe) {
+                    LockEntry entry = stripe.lockCache.get(key);
+                    entry.queue.remove(req);
+                    prune(stripe, key, entry);
+                    // the requests queued behind this one may go ahead now
+                    stripe.notifyAll();
+                }
+                waiting.remove(tid, req);
+                if (policy == LockPolicy.DETECT) {
+                    waitsFor.removeWaits(tid);
                 }
+                waitNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Wait on a stripe until signalled, or for at most nanos if it is
+     * positive.  An interrupt aborts the transaction and is consumed: its
+     * abort writes to the log, and an interrupted thread would close the
+     * log's FileChannel.
+     */
+    private static void park(Stripe stripe, long nanos) throws TransactionAbortedException {
+        try {
+            if (nanos > 0) {
+                TimeUnit.NANOSECONDS.timedWait(stripe, nanos);
             } else {
+                stripe.wait();
+            }
+        } catch (InterruptedException e) {
+            throw new TransactionAbortedException();
+        }
+    }
+
+    private static boolean isOlderThanAll(TransactionId tid, Set<TransactionId> others) {
+        for (TransactionId other : others) {
+            if (other.getId() < tid.getId()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Return the transactions of others younger than tid that are not wounded yet. */
+    private Set<TransactionId> younger(TransactionId tid, Set<TransactionId> others) {
+        Set<TransactionId> res = new HashSet<>();
+        for (TransactionId other : others) {
+            if (other.getId() > tid.getId() && !wounded.contains(other)) {
+                res.add(other);
+            }
+        }
+        return res;
+    }
+
+    private boolean hasOtherPolicy(LockPolicy policy, Set<TransactionId> others) {
+        for (TransactionId other : others) {
+            if (getPolicy(other) != policy) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Make a transaction abort: its lock request fails if it is waiting,
+     * else its next one does.
+     */
+    private void wound(TransactionId tid) {
+        if (!held.containsKey(tid) || !wounded.add(tid)) {
+            return;
+        }
+        policyAborts.incrementAndGet();
+        Request req = waiting.get(tid);
+        if (req != null) {
+            abort(req, null);
+        }
+    }
+
+    /** Grant a lock on a table if no one is in the way, without waiting. */
+    private boolean tryAcquire(TransactionId tid, Object key, LockMode mode) {
+        Stripe stripe = stripe(key);
+        tableRequests.incrementAndGet();
+        synchronized (stripe) {
+            LockEntry entry = entry(stripe, key);
+            if (!blockers(entry, tid, mode, null).isEmpty()) {
+                prune(stripe, key, entry);
                 return false;
             }
+            grant(entry, tid, key, mode);
+            return true;
         }
     }
 
-    public synchronized void releaseLock(TransactionId tid, PageId pid) {
-        Set<SimpleDBLock> locks = lockCache.get(pid);
-        if (locks.contains(tid)) {
-            locks.remove(tid);
-            if (locks.isEmpty()) {
-                lockCache.remove(pid);
+    /**
+     * Replace the page and record locks of a transaction on a table by a
+     * table lock, if it can be granted right away.
+     */
+    private void escalate(TransactionId tid, int tableId, Held h) {
+        Set<Object> keys = h.keys(tableId);
+        LockMode mode = h.written.contains(tableId) ? LockMode.X : LockMode.S;
+        TableKey table = new TableKey(tableId);
+        if (!tryAcquire(tid, table, mode)) {
+            return;
+        }
+        escalations.incrementAndGet();
+        LockMode tableMode = tableModeOf(tid, tableId);
+        for (Object key : new ArrayList<>(keys)) {
+            LockMode keyMode = modeOf(tid, key);
+            if (keyMode == null || tableMode.covers(keyMode)) {
+                keys.remove(key);
+                release(tid, key);
             }
         }
     }
 
-    public synchronized void releaseAllLock(TransactionId tid) {
-        for (Map.Entry<PageId, Set<SimpleDBLock>> entry: lockCache.entrySet()) {
-            Set<SimpleDBLock> locks = entry.getValue();
-            List<SimpleDBLock> toBeRemoved = new ArrayList<>();
-            for (SimpleDBLock lock: locks) {
-                if (lock.getTransactionId().equals(tid)) {
-                    toBeRemoved.add(lock);
+    /** Wake a victim, so that its request fails; counted in counter, if any. */
+    private void abort(Request victim, AtomicLong counter) {
+        synchronized (victim.stripe) {
+            if (!victim.aborted) {
+                if (counter != null) {
+                    counter.incrementAndGet();
                 }
+                victim.aborted = true;
+                victim.stripe.notifyAll();
             }
-            for (SimpleDBLock r : toBeRemoved) {
-                locks.remove(r);
+        }
+    }
+
+    /** Release the lock of tid on a table, page or record, waking its waiters. */
+    private void release(TransactionId tid, Object key) {
+        Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            LockEntry entry = stripe.lockCache.get(key);
+            if (entry == null || entry.holders.remove(tid) == null) {
+                return;
             }
+            if (!entry.queue.isEmpty()) {
+                stripe.notifyAll();
+            }
+            prune(stripe, key, entry);
         }
     }
 
-    public synchronized Boolean holdsLock(TransactionId tid, PageId pid) {
-        for (SimpleDBLock l: lockCache.get(pid)) {
-            if (l.getTransactionId().equals(tid)) {
-                return true;
+    /** Release the lock of tid on a page; its table and record locks are kept. */
+    public void releaseLock(TransactionId tid, PageId pid) {
+        Held h = held.get(tid);
+        if (h != null) {
+            h.keys(pid.getTableId()).remove(pid);
+        }
+        release(tid, pid);
+    }
+
+    /** Release all locks of a transaction, visiting only what it has locked. */
+    public void releaseAllLock(TransactionId tid) {
+        policies.remove(tid);
+        wounded.remove(tid);
+        Held h = held.remove(tid);
+        if (h == null) {
+            return;
+        }
+        for (Set<Object> keys : h.keys.values()) {
+            for (Object key : keys) {
+                release(tid, key);
+            }
+        }
+        for (int tableId : h.tables.keySet()) {
+            release(tid, new TableKey(tableId));
+        }
+    }
+
+    /** Return true if tid may read the page: it holds a lock on it, or one covering it on its table. */
+    public Boolean holdsLock(TransactionId tid, PageId pid) {
+        if (modeOf(tid, pid) != null) {
+            return true;
+        }
+        LockMode tableMode = tableModeOf(tid, pid.getTableId());
+        return tableMode != null && tableMode.covers(LockMode.S);
+    }
+
+    /** Return the transactions holding a lock on the page itself. */
+    public Set<TransactionId> peekLock(PageId pageId) {
+        Stripe stripe = stripe(pageId);
+        synchronized (stripe) {
+            LockEntry entry = stripe.lockCache.get(pageId);
+            if (entry == null) {
+                return new HashSet<>();
+            }
+            return new HashSet<>(entry.holders.keySet());
+        }
+    }
+
+    /**
+     * Return true if a transaction other than tid may be writing the page:
+     * it holds an exclusive lock on the page or on its table, or an SIX
+     * lock on the page to write records of it.
+     */
+    public boolean isWriteLockedByOther(TransactionId tid, PageId pid) {
+        for (Object key : new Object[] { pid, new TableKey(pid.getTableId()) }) {
+            Stripe stripe = stripe(key);
+            synchronized (stripe) {
+                LockEntry entry = stripe.lockCache.get(key);
+                if (entry == null) {
+                    continue;
+                }
+                for (SimpleDBLock lock : entry.holders.values()) {
+                    LockMode mode = lock.getMode();
+                    boolean writing = mode == LockMode.X || (mode == LockMode.SIX && key == pid);
+                    if (writing && !lock.getTransactionId().equals(tid)) {
+                        return true;
+                    }
+                }
             }
         }
         return false;
     }
 
-    public synchronized Set<TransactionId> peekLock(PageId pageId) {
-        Set<SimpleDBLock> locks = lockCache.get(pageId);
-        Set<TransactionId> res = new HashSet<>();
-        if (locks == null) {
-            return res;
-        } else {
-            for (SimpleDBLock lock: locks) {
-                res.add(lock.getTransactionId());
+    /**
+     * Return the records of a page other transactions hold an exclusive
+     * lock on, i.e. records they are writing.
+     */
+    public Set<RecordId> getRecordsWrittenByOthers(TransactionId tid, PageId pid) {
+        Set<RecordId> res = new HashSet<>();
+        Stripe stripe = stripe(pid);
+        synchronized (stripe) {
+            LockEntry page = stripe.lockCache.get(pid);
+            if (page == null) {
+                return res;
+            }
+            for (RecordId rid : page.records) {
+                LockEntry entry = stripe.lockCache.get(rid);
+                for (SimpleDBLock lock : entry.holders.values()) {
+                    if (lock.getMode() == LockMode.X && !lock.getTransactionId().equals(tid)) {
+                        res.add(rid);
+                    }
+                }
+            }
+        }
+        return res;
+    }
+
+    /** Return the mode of the lock tid holds on a record, or null. */
+    public LockMode getRecordLock(TransactionId tid, RecordId rid) {
+        return modeOf(tid, rid);
+    }
+
+    /** Return the mode of the lock tid holds on a page, or null. */
+    public LockMode getPageLock(TransactionId tid, PageId pid) {
+        return modeOf(tid, pid);
+    }
+
+    /** Return the mode of the lock tid holds on a table, or null. */
+    public LockMode getTableLock(TransactionId tid, int tableId) {
+        return tableModeOf(tid, tableId);
+    }
+
+    /** Return the pages a transaction holds a lock on. */
+    public Set<PageId> getLockedPages(TransactionId tid) {
+        Set<PageId> res = new HashSet<>();
+        Held h = held.get(tid);
+        if (h != null) {
+            for (Set<Object> keys : h.keys.values()) {
+                for (Object key : keys) {
+                    if (key instanceof PageId) {
+                        res.add((PageId) key);
+                    }
+                }
             }
-            return res;
         }
+        return res;
+    }
+
+    /** Return the number of lock requests that had to wait. */
+    public long getWaitCount() {
+        return waits.get();
+    }
+
+    /** Return the total time lock requests spent waiting, in milliseconds. */
+    public double getWaitMillis() {
+        return waitNanos.get() / 1000000.0;
+    }
+
+    /** Return the number of deadlocks broken by aborting a transaction. */
+    public long getDeadlockCount() {
+        return deadlocks.get();
+    }
+
+    /** Return the number of transactions aborted by their lock policy, or wounded. */
+    public long getPolicyAbortCount() {
+        return policyAborts.get();
+    }
+
+    /** Return the number of requests for table locks, each of which went through the table's stripe. */
+    public long getTableRequestCount() {
+        return tableRequests.get();
+    }
+
+    /** Return the number of times page locks were escalated to a table lock. */
+    public long getEscalationCount() {
+        return escalations.get();
     }
 }
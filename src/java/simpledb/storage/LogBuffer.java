@@ -0,0 +1,92 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * LogBuffer is the in-memory tail of the log.  Records are appended to a
+ * direct ByteBuffer, which is written to the log segments (see {@link
+ * LogSegments}) in one sequential write when it fills up and when the
+ * log is forced (see {@link LogFile#forceChannel}), instead of with a
+ * system call for every field of every record.
+ * <p>
+ * Bytes appended to the buffer are not in the segments until the buffer
+ * is drained, so anything that reads the log drains it first.
+ *
+ * @Threadsafe
+ */
+class LogBuffer extends OutputStream {
+    /** Size of the buffer, in bytes. */
+    static final int DEFAULT_SIZE = 1 << 16;
+
+    private final ByteBuffer buffer;
+    /** The log drained to; guarded by this. */
+    private LogSegments segments;
+    /** LSN of the first byte in the buffer; guarded by this. */
+    private long position;
+
+    private long writes; // guarded by this
+    private long bytesWritten; // guarded by this
+
+    LogBuffer(int size) {
+        this.buffer = ByteBuffer.allocateDirect(size);
+        this.segments = null;
+        this.position = 0;
+        this.writes = 0;
+        this.bytesWritten = 0;
+    }
+
+    /**
+     * Append to a new log, or the same one after it was reopened, from the
+     * given LSN.  Anything still buffered is dropped.
+     */
+    synchronized void reset(LogSegments segments, long lsn) {
+        this.segments = segments;
+        this.position = lsn;
+        buffer.clear();
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            drain();
+        }
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /** Write the buffered bytes to the log. */
+    synchronized void drain() throws IOException {
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        int n = buffer.remaining();
+        segments.write(buffer, position);
+        position += n;
+        bytesWritten += n;
+        buffer.clear();
+        writes++;
+    }
+
+    synchronized long getWrites() {
+        return writes;
+    }
+
+    synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+}
@@ -7,6 +7,7 @@ import simpledb.common.Debug;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.lang.reflect.*;
 
 /*
@@ -39,24 +40,27 @@ must not be declared synchronized and must begin with a block like:
 */
 
 /**
-<p> The format of the log file is as follows:
+<p> The log is stored in fixed-size segment files next to a header file
+(see {@link LogSegments}).  Positions in the log are log sequence
+numbers (LSNs): offsets in the stream of records that the segments hold
+one after the other.  The format of the log is as follows:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The header holds the LSN of the last written checkpoint, or -1 if
+there are no checkpoints, and the LSN of the first record still needed.
 
-<li> All additional data in the log consists of log records.  Log
+<li> All data in the segments consists of log records.  Log
 records are variable length.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer LSN representing
+the position in the log where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are seven record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT, DELTA and DIRTY_PAGES
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
@@ -65,18 +69,63 @@ after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
 methods.  See LogFile.print() for an example.
 
+<li>DELTA records are compact update records: the byte ranges of the
+page that changed since it was last logged, with their contents
+before and after, and a small tag for the page id instead of class
+names (see {@link PageDelta}).  Updates of HeapPages and BTree pages
+are logged as DELTA records; UPDATE records are only written for
+other pages, and are still read from logs written before DELTA records
+existed, so such a log can be recovered and appended to.
+
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
+as a long integer transaction id and a long integer first record LSN
 for each active transaction.
 
+<li> A DIRTY_PAGES record follows each CHECKPOINT record.  It lists the
+pages whose logged updates had not all been written to disk at the
+checkpoint, each with the LSN of the end of its first unwritten
+update record: an integer count, then a page id (written as in a DELTA
+record) and a long integer LSN for each page.  It is left out if
+one of the pages cannot be written as a DELTA page id.
+
 </ul>
+
+<p> Records are never moved, so the log is truncated by deleting the
+segments before the first record still needed, without rewriting the
+rest or holding up logging while it is copied.
+
+<p> Records are appended to an in-memory log buffer (see {@link
+LogBuffer}), which is written to the file in large sequential writes,
+and forced to disk by group commit (see {@link GroupCommit}): a thread
+that needs its records on disk waits until the durable LSN passes them,
+and one flusher thread writes out the buffer and forces the log for all
+waiting threads at once.  A record gets its LSN when it is appended,
+under the monitor of the LogFile only; the ABORT and CHECKPOINT records
+are not appended under the BufferPool monitor either.
+
+<p> Recovery runs in the three phases of ARIES.  Analysis reads the log
+from the checkpoint (or the first record of the oldest transaction
+running at it) and sorts the transactions into winners, which
+committed, losers, which neither committed nor aborted, and aborted
+transactions, which were rolled back before their ABORT record.  It
+groups the update records by page.  Redo and undo then run for each
+page on its own, on a pool of worker threads (see {@link
+#setRecoveryThreads}): the updates of losers are undone newest first,
+and those of winners are redone in log order.  An update of a winner
+that ends before the checkpoint is skipped unless its page is listed in
+the DIRTY_PAGES record of the checkpoint with an earlier LSN, since
+the page on disk already contains it.  Page LSNs are not part of the
+page formats on disk, so this is the only way a record is known to be
+on disk.
 */
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private final LogSegments segments;
+    private volatile long segmentSize = LogSegments.DEFAULT_SEGMENT_SIZE;
+    private long truncatedSegments = 0; //protected by this
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -84,17 +133,45 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
+    static final int DIRTY_PAGES_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
-    long currentOffset = -1;//protected by this
+    long currentOffset = -1;// LSN of the end of the log //protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
 
+    private volatile long endLsn = 0; // LSN of the end of the last record
+    /** Held while the log is forced or reopened; acquired after this, never before. */
+    private final Object forceLock = new Object();
+    /** Tail of the log not yet written to segments; locked after this and forceLock. */
+    private final LogBuffer buffer = new LogBuffer(LogBuffer.DEFAULT_SIZE);
+    /** The record being written, appended to buffer as a whole. */ //protected by this
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(recordBytes);
+    private final GroupCommit groupCommit = new GroupCommit(this);
+
+    /** Data of each page as of its last update record, by page object. */ //protected by this
+    private final Map<Page, byte[]> lastLogged = new WeakHashMap<>();
+    private long updateRecords = 0; //protected by this
+    private long updateBytes = 0; //protected by this
+    private volatile long recoveryNanos = 0;
+    private volatile long recoveryPages = 0;
+    private volatile long recoverySkipped = 0;
+    private volatile int recoveryThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * LSN of the end of the first update record of each page that has
+     * been logged but not written since, for the DIRTY_PAGES record of a
+     * checkpoint.  Updated under this; removed from without it.
+     */
+    private final Map<PageId, Long> dirtyPages = new ConcurrentHashMap<>();
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -108,7 +185,7 @@ public class LogFile {
     */
     public LogFile(File f) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -129,14 +206,32 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            segments.create(segmentSize);
+            appendAtEnd();
         }
     }
 
+    // new records go at the end of the segments; the buffer must have been drained
+    private void appendAtEnd() throws IOException {
+        currentOffset = segments.end();
+        endLsn = currentOffset;
+        buffer.reset(segments, currentOffset);
+    }
+
+    // the record in out is complete; append it to the buffer
+    private void appendRecord() throws IOException {
+        out.flush();
+        recordBytes.writeTo(buffer);
+        currentOffset += recordBytes.size();
+        recordBytes.reset();
+        endLsn = currentOffset;
+    }
+
+    // the buffer must be written out before the segments are read
+    private void drainBuffer() throws IOException {
+        buffer.drain();
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
@@ -146,50 +241,57 @@ public class LogFile {
         @param tid The aborting transaction.
     */
     public void logAbort(TransactionId tid) throws IOException {
-        // must have buffer pool lock before proceeding, since this
-        // calls rollback
-
-        synchronized (Database.getBufferPool()) {
-
-            synchronized(this) {
-                preAppend();
-                //Debug.log("ABORT");
-                //should we verify that this is a live transaction?
-
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
-
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
-                tidToFirstLogRecord.remove(tid.getId());
-            }
+        // must do this first, since rollback only works for live
+        // transactions (needs tidToFirstLogRecord); it takes the buffer
+        // pool lock itself, but the ABORT record is appended without it
+        rollback(tid);
+
+        long lsn;
+        synchronized(this) {
+            preAppend();
+            //Debug.log("ABORT");
+            //should we verify that this is a live transaction?
+
+            out.writeInt(ABORT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            appendRecord();
+            tidToFirstLogRecord.remove(tid.getId());
+            lsn = endLsn;
         }
+        groupCommit.forceTo(lsn);
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and wait until the log is forced to disk past it.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long start = System.nanoTime();
+        long lsn;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            out.writeInt(COMMIT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            appendRecord();
+            tidToFirstLogRecord.remove(tid.getId());
+            lsn = endLsn;
+        }
+        // wait outside the monitor, so that other commits join the same force
+        groupCommit.forceTo(lsn);
+        groupCommit.committed(System.nanoTime() - start);
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
         (with provided         before and after images.)
+        The LSN of the end of the record is stored in the after image
+        (see {@link Page#getPageLsn}); the page must not be written
+        before the log is forced up to it.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
@@ -199,7 +301,7 @@ public class LogFile {
     public  synchronized void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
         /* update record conists of
 
@@ -209,18 +311,40 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        // a transaction without a BEGIN record (e.g. one whose pages were
+        // stolen) is rolled back from its first update
+        tidToFirstLogRecord.putIfAbsent(tid.getId(), currentOffset);
+        long start = currentOffset;
+        if (PageDelta.supports(after.getId())) {
+            // the delta from the last logged version of this page, or from
+            // the before image if it has not been logged since it was read
+            byte[] data = after.getPageData();
+            byte[] prev = lastLogged.get(after);
+            if (prev == null) {
+                prev = before.getPageData();
+            }
+            out.writeInt(DELTA_RECORD);
+            out.writeLong(tid.getId());
+            PageDelta.diff(after.getId(), prev, data).write(out);
+            lastLogged.put(after, data);
+        } else {
+            out.writeInt(UPDATE_RECORD);
+            out.writeLong(tid.getId());
+
+            writePageData(out,before);
+            writePageData(out,after);
+        }
+        out.writeLong(currentOffset);
+        appendRecord();
+        after.setPageLsn(endLsn);
+        dirtyPages.putIfAbsent(after.getId(), endLsn);
+        updateRecords++;
+        updateBytes += currentOffset - start;
 
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    void writePageData(DataOutput out, Page p) throws IOException{
         PageId pid = p.getId();
         int[] pageInfo = pid.serialize();
 
@@ -235,43 +359,48 @@ public class LogFile {
         String pageClassName = p.getClass().getName();
         String idClassName = pid.getClass().getName();
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        out.writeUTF(pageClassName);
+        out.writeUTF(idClassName);
 
-        raf.writeInt(pageInfo.length);
+        out.writeInt(pageInfo.length);
         for (int j : pageInfo) {
-            raf.writeInt(j);
+            out.writeInt(j);
         }
         byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
+        out.writeInt(pageData.length);
+        out.write(pageData);
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
+    Page readPageData(DataInput in) throws IOException {
         PageId pid;
         Page newPage = null;
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+        String pageClassName = in.readUTF();
+        String idClassName = in.readUTF();
 
         try {
             Class<?> idClass = Class.forName(idClassName);
             Class<?> pageClass = Class.forName(pageClassName);
 
             Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
+            int numIdArgs = in.readInt();
             Object[] idArgs = new Object[numIdArgs];
             for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = raf.readInt();
+                idArgs[i] = in.readInt();
             }
             pid = (PageId)idConsts[0].newInstance(idArgs);
 
             Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+            int pageSize = in.readInt();
 
             byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+            in.readFully(pageData); //read before image
+
+            if (PageDelta.supports(pid)) {
+                // the reflective constructor below may not be the (id, data) one
+                return PageDelta.newPage(pid, pageData);
+            }
 
             Object[] pageArgs = new Object[2];
             pageArgs[0] = pid;
@@ -300,150 +429,156 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        out.writeInt(BEGIN_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        appendRecord();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
     /** Checkpoint the log and write a checkpoint record. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
-
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
-            }
+        // flushAllPages forces the log up to each page it writes; pages
+        // logged after it are listed in the DIRTY_PAGES record
+        Database.getBufferPool().flushAllPages();
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + currentOffset);
+            preAppend();
+            writeCheckpointRecord();
         }
 
         logTruncate();
     }
 
-    /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
+    /** Write a fuzzy checkpoint record, without writing out the dirty
+        pages of the buffer pool first or blocking it.  Pages of
+        committed transactions are already on disk, since BufferPool
+        writes them at commit; pages of the transactions listed in the
+        checkpoint are undone by recovery from their first log record,
+        which may come before the checkpoint.  The page cleaner (see
+        {@link BufferPool#startPageCleaner}) takes these in the background.
+    */
+    public void logFuzzyCheckpoint() throws IOException {
+        synchronized (this) {
+            preAppend();
+            writeCheckpointRecord();
+        }
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+        logTruncate();
+    }
 
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+    // caller holds this
+    private void writeCheckpointRecord() throws IOException {
+        long startCpOffset;
+        Set<Long> keys = tidToFirstLogRecord.keySet();
+        Iterator<Long> els = keys.iterator();
+        startCpOffset = currentOffset;
+        out.writeInt(CHECKPOINT_RECORD);
+        out.writeLong(-1); //no tid , but leave space for convenience
+
+        //write list of outstanding transactions
+        out.writeInt(keys.size());
+        while (els.hasNext()) {
+            Long key = els.next();
+            Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+            out.writeLong(key);
+            //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
+            out.writeLong(tidToFirstLogRecord.get(key));
+        }
+        out.writeLong(currentOffset);
+        appendRecord();
+        //Debug.log("CP OFFSET = " + currentOffset);
+
+        Map<PageId, Long> dirty = new HashMap<>();
+        for (Map.Entry<PageId, Long> e : dirtyPages.entrySet()) {
+            if (!PageDelta.supports(e.getKey())) {
+                dirty = null;
+                break;
             }
+            dirty.put(e.getKey(), e.getValue());
+        }
+        if (dirty != null) {
+            out.writeInt(DIRTY_PAGES_RECORD);
+            out.writeLong(-1);
+            writeDirtyPages(out, dirty);
+            out.writeLong(currentOffset);
+            appendRecord();
+        }
 
-            int numOutstanding = raf.readInt();
+        //once the CP is written, make sure the CP location in the
+        // header of the log is updated
+        drainBuffer();
+        segments.setCheckpoint(startCpOffset);
+    }
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+    private static void writeDirtyPages(DataOutput out, Map<PageId, Long> dirty) throws IOException {
+        out.writeInt(dirty.size());
+        for (Map.Entry<PageId, Long> e : dirty.entrySet()) {
+            PageDelta.writePageId(out, e.getKey());
+            out.writeLong(e.getValue());
         }
+    }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
+    private static Map<PageId, Long> readDirtyPages(DataInput in) throws IOException {
+        Map<PageId, Long> dirty = new HashMap<>();
+        int n = in.readInt();
+        while (n-- > 0) {
+            PageId pid = PageDelta.readPageId(in);
+            dirty.put(pid, in.readLong());
+        }
+        return dirty;
+    }
 
-        raf.seek(minLogRecord);
+    /** Return true if the transaction has log records and has not committed or aborted. */
+    synchronized boolean isActive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
 
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
+    /** Called after a page has been written to disk. */
+    void pageWritten(PageId pid) {
+        dirtyPages.remove(pid);
+    }
 
-                Debug.log("NEW START = " + newStart);
+    /** Truncate any unneeded portion of the log to reduce its space
+        consumption.  Records are not moved: the segments holding only
+        records before the checkpoint and the first records of the
+        transactions active at it are deleted. */
+    public synchronized void logTruncate() throws IOException {
+        preAppend();
+        drainBuffer();
+        long cpLoc = segments.getCheckpoint();
 
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
+        long minLogRecord = cpLoc;
 
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
+        if (cpLoc == -1L) {
+            return;
+        }
+        LogSegments.Reader in = segments.reader(cpLoc);
+        int cpType = in.readInt();
+        @SuppressWarnings("unused")
+        long cpTid = in.readLong();
 
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
+        if (cpType != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+        int numOutstanding = in.readInt();
 
-            } catch (EOFException e) {
-                break;
+        for (int i = 0; i < numOutstanding; i++) {
+            @SuppressWarnings("unused")
+            long tid = in.readLong();
+            long firstLogRecord = in.readLong();
+            if (firstLogRecord < minLogRecord) {
+                minLogRecord = firstLogRecord;
             }
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
+        // we can truncate everything before minLogRecord
+        int deleted = segments.truncate(minLogRecord);
+        truncatedSegments += deleted;
+        Debug.log("TRUNCATING LOG; NEW START : " + minLogRecord + ", DELETED " + deleted + " SEGMENTS");
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -461,36 +596,49 @@ public class LogFile {
                 preAppend();
                 // some code goes here
                 Long firstLogRecord = tidToFirstLogRecord.get(tid.getId());
-                raf.seek(firstLogRecord);
-                Set<PageId> set = new HashSet<>();
+                if (firstLogRecord == null) {
+                    // nothing logged, or already rolled back
+                    return;
+                }
+                drainBuffer();
+                LogSegments.Reader in = segments.reader(firstLogRecord);
+                List<PageDelta> updates = new ArrayList<>();
                 while (true) {
                     try {
-                        int type = raf.readInt();
-                        long txid = raf.readLong();
+                        int type = in.readInt();
+                        long txid = in.readLong();
                         switch (type) {
                             case UPDATE_RECORD:
-                                Page beforeImage = readPageData(raf);
-                                PageId pageId = beforeImage.getId();
-                                if (txid == tid.getId() && !set.contains(pageId)) {
-                                    set.add(pageId);
-                                    Database.getBufferPool().discardPage(pageId);
-                                    Database.getCatalog().getDatabaseFile(pageId.getTableId()).writePage(beforeImage);
+                            case DELTA_RECORD:
+                                PageDelta update = readUpdate(in, type);
+                                if (txid == tid.getId()) {
+                                    updates.add(update);
                                 }
                                 break;
                             case CHECKPOINT_RECORD:
-                                int txCnt = raf.readInt();
+                                int txCnt = in.readInt();
                                 while (txCnt-- > 0) {
-                                    raf.readLong();
-                                    raf.readLong();
+                                    in.readLong();
+                                    in.readLong();
                                 }
                                 break;
+                            case DIRTY_PAGES_RECORD:
+                                readDirtyPages(in);
+                                break;
                             default:break;
                         }
-                        raf.readLong();
+                        in.readLong();
                     } catch (EOFException e) {
                         break;
                     }
                 }
+                // undo newest first, starting from the pages on disk
+                Map<PageId, byte[]> pages = new HashMap<>();
+                for (int i = updates.size() - 1; i >= 0; i--) {
+                    PageDelta update = updates.get(i);
+                    pages.put(update.pid, update.undo(pageData(pages, update.pid)));
+                }
+                writePages(pages);
             }
         }
     }
@@ -502,7 +650,8 @@ public class LogFile {
     public synchronized void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            force();
+            segments.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -514,122 +663,270 @@ public class LogFile {
         updates of uncommitted transactions are not installed.
     */
     public void recover() throws IOException {
+        long startNanos = System.nanoTime();
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
-                raf = new RandomAccessFile(logFile, "rw");
+                drainBuffer();
+                synchronized (forceLock) {
+                    segments.open(segmentSize);
+                    buffer.reset(segments, segments.end());
+                }
+
+                // analysis
                 Set<Long> committedId = new HashSet<>();
-                Map<Long, List<Page>> beforePages = new HashMap<>();
-                Map<Long, List<Page>> afterPages = new HashMap<>();
-                Long checkpoint = raf.readLong();
+                Set<Long> abortedId = new HashSet<>();
+                Map<PageId, List<UpdateRecord>> updates = new LinkedHashMap<>();
+                // updates ending before redoFrom are on disk, unless their
+                // page is dirty from an earlier offset
+                long redoFrom = 0;
+                Map<PageId, Long> dirty = new HashMap<>();
+                long checkpoint = segments.getCheckpoint();
+                LogSegments.Reader in = segments.reader(segments.getFirst());
                 if (checkpoint != -1) {
-                    raf.seek(checkpoint);
+                    // start at the first record of the oldest transaction
+                    // that was running at the checkpoint, if it is older
+                    long start = checkpoint;
+                    in = segments.reader(checkpoint);
+                    in.readInt();
+                    in.readLong();
+                    int numTxs = in.readInt();
+                    while (numTxs-- > 0) {
+                        in.readLong();
+                        start = Math.min(start, in.readLong());
+                    }
+                    in.readLong();
+                    long checkpointEnd = in.position();
+                    try {
+                        if (in.readInt() == DIRTY_PAGES_RECORD) {
+                            in.readLong();
+                            dirty = readDirtyPages(in);
+                            redoFrom = checkpointEnd;
+                        }
+                    } catch (EOFException e) {
+                        // no dirty page table, so nothing is skipped
+                    }
+                    in = segments.reader(start);
                 }
                 while (true) {
                     try {
-                        int type = raf.readInt();
-                        long txid = raf.readLong();
+                        int type = in.readInt();
+                        long txid = in.readLong();
+                        PageDelta update = null;
                         switch (type) {
                             case UPDATE_RECORD:
-                                Page beforeImage = readPageData(raf);
-                                Page afterImage = readPageData(raf);
-                                List<Page> l1 = beforePages.getOrDefault(txid, new ArrayList<>());
-                                l1.add(beforeImage);
-                                beforePages.put(txid, l1);
-                                List<Page> l2 = afterPages.getOrDefault(txid, new ArrayList<>());
-                                l2.add(afterImage);
-                                afterPages.put(txid, l2);
+                            case DELTA_RECORD:
+                                update = readUpdate(in, type);
                                 break;
                             case COMMIT_RECORD:
                                 committedId.add(txid);
                                 break;
+                            case ABORT_RECORD:
+                                abortedId.add(txid);
+                                break;
                             case CHECKPOINT_RECORD:
-                                int numTxs = raf.readInt();
+                                int numTxs = in.readInt();
                                 while (numTxs-- > 0) {
-                                    raf.readLong();
-                                    raf.readLong();
+                                    in.readLong();
+                                    in.readLong();
                                 }
                                 break;
+                            case DIRTY_PAGES_RECORD:
+                                readDirtyPages(in);
+                                break;
                             default:break;
                         }
-                        raf.readLong();
+                        in.readLong();
+                        if (update != null) {
+                            updates.computeIfAbsent(update.pid, pid -> new ArrayList<>())
+                                    .add(new UpdateRecord(txid, in.position(), update));
+                        }
                     } catch (EOFException e) {
                         break;
                     }
                 }
-                for (long txid: beforePages.keySet()) {
-                    if (!committedId.contains(txid)) {
-                        List<Page> pages = beforePages.get(txid);
-                        for (Page p: pages) {
-                            Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
-                        }
-                    }
+
+                // redo and undo, one page per task
+                List<Callable<Integer>> tasks = new ArrayList<>();
+                for (Map.Entry<PageId, List<UpdateRecord>> e : updates.entrySet()) {
+                    PageId pid = e.getKey();
+                    long recLsn = dirty.containsKey(pid) ? Math.min(dirty.get(pid), redoFrom) : redoFrom;
+                    Database.getBufferPool().discardPage(pid);
+                    tasks.add(() -> recoverPage(pid, e.getValue(), recLsn, committedId, abortedId));
                 }
-                for (long txid: committedId) {
-                    if (afterPages.containsKey(txid)) {
-                        List<Page> pages = afterPages.get(txid);
-                        for (Page p: pages) {
-                            Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
-                        }
+                int skipped = 0;
+                ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, recoveryThreads));
+                try {
+                    for (Future<Integer> f : workers.invokeAll(tasks)) {
+                        skipped += f.get();
                     }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted during recovery");
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                } finally {
+                    workers.shutdown();
                 }
+                lastLogged.clear();
+                dirtyPages.clear();
+                recoveryPages = tasks.size();
+                recoverySkipped = skipped;
+                recoveryNanos = System.nanoTime() - startNanos;
+                // the log read from disk is durable; new records go after it
+                appendAtEnd();
+                groupCommit.forced(endLsn);
             }
          }
     }
 
-    /** Print out a human readable represenation of the log */
-    public void print() throws IOException {
-        long curOffset = raf.getFilePointer();
+    /** An update record read by recovery. */
+    private static final class UpdateRecord {
+        final long tid;
+        /** File offset of the end of the record. */
+        final long end;
+        final PageDelta update;
+
+        UpdateRecord(long tid, long end, PageDelta update) {
+            this.tid = tid;
+            this.end = end;
+            this.update = update;
+        }
+    }
 
-        raf.seek(0);
+    /**
+     * Undo the updates of losers to one page, newest first, then redo
+     * the updates of winners that end at or after recLsn, in log order,
+     * and write the page.  Updates of aborted transactions were rolled
+     * back before their ABORT record, and are neither undone nor redone.
+     *
+     * @return the number of updates of winners skipped
+     */
+    private static int recoverPage(PageId pid, List<UpdateRecord> records, long recLsn,
+                                   Set<Long> winners, Set<Long> aborted) throws IOException {
+        byte[] data = null;
+        for (int i = records.size() - 1; i >= 0; i--) {
+            UpdateRecord r = records.get(i);
+            if (!winners.contains(r.tid) && !aborted.contains(r.tid)) {
+                data = r.update.undo(data == null ? diskPageData(pid) : data);
+            }
+        }
+        int skipped = 0;
+        for (UpdateRecord r : records) {
+            if (!winners.contains(r.tid)) {
+                continue;
+            }
+            if (r.end < recLsn) {
+                skipped++;
+            } else {
+                data = r.update.redo(data == null ? diskPageData(pid) : data);
+            }
+        }
+        if (data != null) {
+            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(PageDelta.newPage(pid, data));
+        }
+        return skipped;
+    }
+
+    /** Read the body of an UPDATE or DELTA record. */
+    private PageDelta readUpdate(DataInput in, int type) throws IOException {
+        if (type == DELTA_RECORD) {
+            return PageDelta.read(in);
+        }
+        Page before = readPageData(in);
+        Page after = readPageData(in);
+        return PageDelta.image(before, after);
+    }
+
+    /** Return the data of a page being rolled back or recovered, reading it from disk the first time. */
+    private static byte[] pageData(Map<PageId, byte[]> pages, PageId pid) {
+        byte[] data = pages.get(pid);
+        return data != null ? data : diskPageData(pid);
+    }
 
-        System.out.println("0: checkpoint record at offset " + raf.readLong());
+    private static byte[] diskPageData(PageId pid) {
+        try {
+            return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid).getPageData();
+        } catch (RuntimeException e) {
+            // the page was never written
+            return new byte[BufferPool.getPageSize()];
+        }
+    }
+
+    /** Write rolled back or recovered pages to disk, dropping them from the buffer pool. */
+    private static void writePages(Map<PageId, byte[]> pages) throws IOException {
+        for (Map.Entry<PageId, byte[]> e : pages.entrySet()) {
+            Database.getBufferPool().discardPage(e.getKey());
+            Database.getCatalog().getDatabaseFile(e.getKey().getTableId())
+                    .writePage(PageDelta.newPage(e.getKey(), e.getValue()));
+        }
+    }
+
+    /** Print out a human readable represenation of the log */
+    public void print() throws IOException {
+        drainBuffer();
+        System.out.println("header: checkpoint record at " + segments.getCheckpoint());
+        LogSegments.Reader in = segments.reader(segments.getFirst());
 
         while (true) {
             try {
-                int cpType = raf.readInt();
-                long cpTid = raf.readLong();
+                int cpType = in.readInt();
+                long cpTid = in.readLong();
 
-                System.out.println((raf.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
-                System.out.println((raf.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
+                System.out.println((in.position() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
+                System.out.println((in.position() - LONG_SIZE) + ": TID " + cpTid);
 
                 switch (cpType) {
                 case BEGIN_RECORD:
                     System.out.println(" (BEGIN)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(in.position() + ": RECORD START OFFSET: " + in.readLong());
                     break;
                 case ABORT_RECORD:
                     System.out.println(" (ABORT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(in.position() + ": RECORD START OFFSET: " + in.readLong());
                     break;
                 case COMMIT_RECORD:
                     System.out.println(" (COMMIT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(in.position() + ": RECORD START OFFSET: " + in.readLong());
                     break;
 
                 case CHECKPOINT_RECORD:
                     System.out.println(" (CHECKPOINT)");
-                    int numTransactions = raf.readInt();
-                    System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
+                    int numTransactions = in.readInt();
+                    System.out.println((in.position() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
 
                     while (numTransactions-- > 0) {
-                        long tid = raf.readLong();
-                        long firstRecord = raf.readLong();
-                        System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
-                        System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
+                        long tid = in.readLong();
+                        long firstRecord = in.readLong();
+                        System.out.println((in.position() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
+                        System.out.println((in.position() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
                     }
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(in.position() + ": RECORD START OFFSET: " + in.readLong());
 
+                    break;
+                case DIRTY_PAGES_RECORD:
+                    System.out.println(" (DIRTY_PAGES)");
+                    for (Map.Entry<PageId, Long> e : readDirtyPages(in).entrySet()) {
+                        System.out.println("   page " + e.getKey() + ", first unwritten record ends at " + e.getValue());
+                    }
+                    System.out.println(in.position() + ": RECORD START OFFSET: " + in.readLong());
+                    break;
+                case DELTA_RECORD:
+                    System.out.println(" (DELTA)");
+                    PageDelta delta = PageDelta.read(in);
+                    System.out.println("   page " + delta.pid + ", " + delta.changedBytes() + " bytes changed");
+                    System.out.println(in.position() + ": RECORD START OFFSET: " + in.readLong());
                     break;
                 case UPDATE_RECORD:
                     System.out.println(" (UPDATE)");
 
-                    long start = raf.getFilePointer();
-                    Page before = readPageData(raf);
+                    long start = in.position();
+                    Page before = readPageData(in);
 
-                    long middle = raf.getFilePointer();
-                    Page after = readPageData(raf);
+                    long middle = in.position();
+                    Page after = readPageData(in);
 
                     System.out.println(start + ": before image table id " + before.getId().getTableId());
                     System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
@@ -637,9 +934,9 @@ public class LogFile {
 
                     System.out.println(middle + ": after image table id " + after.getId().getTableId());
                     System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                    System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
+                    System.out.println((middle + INT_SIZE) + " TO " + (in.position()) + ": page data");
 
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(in.position() + ": RECORD START OFFSET: " + in.readLong());
 
                     break;
                 }
@@ -649,13 +946,129 @@ public class LogFile {
                 break;
             }
         }
+    }
+
+    /** Force the log to disk, and wait until it is. */
+    public void force() throws IOException {
+        groupCommit.forceTo(endLsn);
+    }
+
+    /**
+     * Wait until the log is on disk up to lsn, e.g. the LSN of a page
+     * about to be written (see {@link Page#getPageLsn}).
+     */
+    public void forceTo(long lsn) throws IOException {
+        // a page logged to a log that has since been replaced may carry an
+        // LSN past the end of this one
+        groupCommit.forceTo(Math.min(lsn, endLsn));
+    }
+
+    /** Force the log file; called by the group commit flusher. */
+    void forceChannel() throws IOException {
+        synchronized (forceLock) {
+            buffer.drain();
+            segments.force();
+        }
+    }
+
+    /** Return the LSN of the end of the last record written. */
+    public long getEndLsn() {
+        return endLsn;
+    }
+
+    /** Return the LSN up to which the log is known to be on disk. */
+    public long getDurableLsn() {
+        return groupCommit.getDurableLsn();
+    }
+
+    /**
+     * Set how long the group commit flusher waits for more commits before
+     * forcing the log.  0, the default, forces as soon as the previous
+     * force is done; commits that arrive during a force share the next.
+     *
+     * @param micros the batch window in microseconds
+     */
+    public void setGroupCommitWindow(long micros) {
+        groupCommit.setWindowMicros(micros);
+    }
+
+    /** Return the number of times the log has been forced to disk. */
+    public long getForceCount() {
+        return groupCommit.getForces();
+    }
+
+    /** Return the number of commits that have waited for the log. */
+    public long getCommitCount() {
+        return groupCommit.getCommits();
+    }
+
+    /** Return the number of writes of the log buffer to the log file. */
+    public long getLogWriteCount() {
+        return buffer.getWrites();
+    }
+
+    /**
+     * Set the size of the segment files of the log, in bytes.  It applies
+     * to the next log started from scratch; a log recovered from disk
+     * keeps the size it was written with.
+     */
+    public void setSegmentSize(long bytes) {
+        segmentSize = bytes;
+    }
+
+    /** Return the number of segment files of the log. */
+    public int getSegmentCount() {
+        return segments.getSegmentCount();
+    }
+
+    /** Return the number of segment files deleted by truncation. */
+    public synchronized long getTruncatedSegmentCount() {
+        return truncatedSegments;
+    }
+
+    /** Return the number of update records written. */
+    public synchronized long getUpdateRecordCount() {
+        return updateRecords;
+    }
+
+    /** Return the number of bytes of update records written. */
+    public synchronized long getUpdateLogBytes() {
+        return updateBytes;
+    }
+
+    /** Return how long the last call to recover() took, in milliseconds. */
+    public double getLastRecoveryMillis() {
+        return recoveryNanos / 1000000.0;
+    }
+
+    /** Return the number of pages with updates read by the last call to recover(). */
+    public long getLastRecoveryPageCount() {
+        return recoveryPages;
+    }
+
+    /**
+     * Return the number of committed updates the last call to recover()
+     * skipped because they were on disk before the checkpoint.
+     */
+    public long getLastRecoverySkippedCount() {
+        return recoverySkipped;
+    }
 
-        // Return the file pointer to its original position
-        raf.seek(curOffset);
+    /**
+     * Set the number of threads that redo and undo pages during recovery.
+     * Defaults to the number of processors.
+     */
+    public void setRecoveryThreads(int threads) {
+        recoveryThreads = threads;
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /**
+     * Return the mean time from writing a commit record to the log being
+     * forced past it, in microseconds, or 0 if nothing has committed.
+     */
+    public double getAverageCommitLatency() {
+        long n = groupCommit.getCommits();
+        return n == 0 ? 0.0 : groupCommit.getCommitNanos() / 1000.0 / n;
     }
 
 }
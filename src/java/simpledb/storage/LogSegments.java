@@ -0,0 +1,319 @@
+package simpledb.storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * LogSegments stores the log as a sequence of fixed-size segment files
+ * next to a small header file.
+ * <p>
+ * Log sequence numbers (LSNs) are positions in one continuous stream of
+ * log records, starting at 0.  The bytes of LSNs
+ * <tt>[n * segmentSize, (n + 1) * segmentSize)</tt> are stored in segment
+ * file <tt>n</tt>, which is named after the header file with <tt>.n</tt>
+ * appended; a record may continue from one segment into the next.
+ * Records are never moved, so an LSN stays valid until the segment that
+ * holds it is deleted.
+ * <p>
+ * The header file holds three long integers: the LSN of the last
+ * checkpoint record or -1, the LSN of the first record still needed, and
+ * the segment size.  Truncating the log moves the first LSN forward and
+ * deletes the segments before it.
+ * <p>
+ * A log written before the log was segmented is a single file with the
+ * checkpoint pointer followed by the records.  {@link #open} moves its
+ * records into segments at the LSNs of their old file offsets, so that the
+ * offsets stored in its records stay valid.
+ *
+ * @Threadsafe
+ */
+class LogSegments {
+    /** Default size of a segment file, in bytes. */
+    static final long DEFAULT_SEGMENT_SIZE = 1 << 24;
+
+    static final int HEADER_SIZE = 24;
+    private static final int READ_CHUNK = 1 << 16;
+
+    private final File headerFile;
+    private RandomAccessFile header; // guarded by this
+    private long segmentSize; // guarded by this
+    /** Open segment files by segment number. Guarded by this. */
+    private final TreeMap<Long, RandomAccessFile> segments = new TreeMap<>();
+    /** Segments written since the last force. Guarded by this. */
+    private final Set<Long> unforced = new HashSet<>();
+
+    LogSegments(File headerFile) throws IOException {
+        this.headerFile = headerFile;
+        this.header = new RandomAccessFile(headerFile, "rw");
+        this.segmentSize = DEFAULT_SEGMENT_SIZE;
+    }
+
+    /** Throw away the log and start an empty one with segments of the given size. */
+    synchronized void create(long segmentSize) throws IOException {
+        closeSegments();
+        for (long n : existingSegments()) {
+            segmentFile(n).delete();
+        }
+        this.segmentSize = segmentSize;
+        header.setLength(0);
+        header.seek(0);
+        header.writeLong(LogFile.NO_CHECKPOINT_ID);
+        header.writeLong(0);
+        header.writeLong(segmentSize);
+    }
+
+    /**
+     * Open the log on disk for recovery, moving the records of a log
+     * written before segments into segments of the given size.
+     */
+    synchronized void open(long segmentSize) throws IOException {
+        closeSegments();
+        long length = header.length();
+        if (length == HEADER_SIZE) {
+            header.seek(2 * LogFile.LONG_SIZE);
+            this.segmentSize = header.readLong();
+            for (long n : existingSegments()) {
+                segment(n, false);
+            }
+            return;
+        }
+        long checkpoint = LogFile.NO_CHECKPOINT_ID;
+        byte[] records = new byte[0];
+        if (length >= LogFile.LONG_SIZE) {
+            header.seek(0);
+            checkpoint = header.readLong();
+            records = new byte[(int) (length - LogFile.LONG_SIZE)];
+            header.readFully(records);
+        }
+        create(segmentSize);
+        write(ByteBuffer.wrap(records), LogFile.LONG_SIZE);
+        setFirst(LogFile.LONG_SIZE);
+        setCheckpoint(checkpoint);
+        force();
+    }
+
+    synchronized long getSegmentSize() {
+        return segmentSize;
+    }
+
+    synchronized long getCheckpoint() throws IOException {
+        header.seek(0);
+        return header.readLong();
+    }
+
+    synchronized void setCheckpoint(long lsn) throws IOException {
+        header.seek(0);
+        header.writeLong(lsn);
+    }
+
+    /** Return the LSN of the first record still needed. */
+    synchronized long getFirst() throws IOException {
+        header.seek(LogFile.LONG_SIZE);
+        return header.readLong();
+    }
+
+    private void setFirst(long lsn) throws IOException {
+        header.seek(LogFile.LONG_SIZE);
+        header.writeLong(lsn);
+    }
+
+    /** Return the LSN of the end of the log on disk. */
+    synchronized long end() throws IOException {
+        if (segments.isEmpty()) {
+            return getFirst();
+        }
+        Map.Entry<Long, RandomAccessFile> last = segments.lastEntry();
+        return last.getKey() * segmentSize + last.getValue().length();
+    }
+
+    /** Return the number of segment files. */
+    synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /** Write bytes at the given LSN, across segment boundaries. */
+    synchronized void write(ByteBuffer src, long lsn) throws IOException {
+        while (src.hasRemaining()) {
+            long n = lsn / segmentSize;
+            long offset = lsn % segmentSize;
+            int len = (int) Math.min(src.remaining(), segmentSize - offset);
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + len);
+            FileChannel channel = segment(n, true).getChannel();
+            while (part.hasRemaining()) {
+                channel.write(part, offset + len - part.remaining());
+            }
+            src.position(src.position() + len);
+            lsn += len;
+            unforced.add(n);
+        }
+    }
+
+    /** Force the segments written since the last force and the header to disk. */
+    void force() throws IOException {
+        List<FileChannel> channels = new ArrayList<>();
+        synchronized (this) {
+            for (long n : unforced) {
+                RandomAccessFile f = segments.get(n);
+                if (f != null) {
+                    channels.add(f.getChannel());
+                }
+            }
+            unforced.clear();
+            channels.add(header.getChannel());
+        }
+        // outside the monitor, so that appends are not held up
+        for (FileChannel channel : channels) {
+            if (channel.isOpen()) {
+                channel.force(true);
+            }
+        }
+    }
+
+    /**
+     * Drop the log before lsn: record it as the first LSN, then delete the
+     * segments that end at or before it.
+     *
+     * @return the number of segments deleted
+     */
+    synchronized int truncate(long lsn) throws IOException {
+        setFirst(lsn);
+        header.getChannel().force(true);
+        int deleted = 0;
+        for (long n : new ArrayList<>(segments.headMap(lsn / segmentSize).keySet())) {
+            segments.remove(n).close();
+            unforced.remove(n);
+            segmentFile(n).delete();
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /** Return a reader of the log starting at the given LSN. */
+    Reader reader(long lsn) {
+        return new Reader(new SegmentStream(lsn));
+    }
+
+    private File segmentFile(long n) {
+        return new File(headerFile.getPath() + "." + n);
+    }
+
+    private List<Long> existingSegments() {
+        List<Long> found = new ArrayList<>();
+        File dir = headerFile.getAbsoluteFile().getParentFile();
+        String prefix = headerFile.getName() + ".";
+        String[] names = dir.list();
+        if (names == null) {
+            return found;
+        }
+        for (String name : names) {
+            if (name.startsWith(prefix) && name.length() > prefix.length()) {
+                try {
+                    found.add(Long.parseLong(name.substring(prefix.length())));
+                } catch (NumberFormatException e) {
+                    // not a segment
+                }
+            }
+        }
+        Collections.sort(found);
+        return found;
+    }
+
+    // caller holds this
+    private RandomAccessFile segment(long n, boolean create) throws IOException {
+        RandomAccessFile f = segments.get(n);
+        if (f == null) {
+            File file = segmentFile(n);
+            if (!create && !file.exists()) {
+                return null;
+            }
+            f = new RandomAccessFile(file, "rw");
+            segments.put(n, f);
+        }
+        return f;
+    }
+
+    private synchronized int read(ByteBuffer dst, long lsn) throws IOException {
+        RandomAccessFile f = segment(lsn / segmentSize, false);
+        if (f == null) {
+            return -1;
+        }
+        long offset = lsn % segmentSize;
+        dst.limit((int) Math.min(dst.capacity(), segmentSize - offset));
+        return f.getChannel().read(dst, offset);
+    }
+
+    /** Close the log files. */
+    synchronized void close() throws IOException {
+        closeSegments();
+        header.close();
+    }
+
+    // caller holds this
+    private void closeSegments() throws IOException {
+        for (RandomAccessFile f : segments.values()) {
+            f.close();
+        }
+        segments.clear();
+        unforced.clear();
+    }
+
+    /** Reads the log from consecutive segments, in chunks. */
+    private class SegmentStream extends InputStream {
+        private final ByteBuffer chunk = ByteBuffer.allocate(READ_CHUNK);
+        /** LSN of the first byte of chunk. */
+        private long chunkLsn;
+
+        SegmentStream(long lsn) {
+            this.chunkLsn = lsn;
+            chunk.limit(0);
+        }
+
+        long position() {
+            return chunkLsn + chunk.position();
+        }
+
+        private boolean fill() throws IOException {
+            chunkLsn += chunk.position();
+            chunk.clear();
+            int n = LogSegments.this.read(chunk, chunkLsn);
+            chunk.flip();
+            return n > 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!chunk.hasRemaining() && !fill()) {
+                return -1;
+            }
+            return chunk.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!chunk.hasRemaining() && !fill()) {
+                return -1;
+            }
+            int n = Math.min(len, chunk.remaining());
+            chunk.get(b, off, n);
+            return n;
+        }
+    }
+
+    /** A DataInput over the log that knows the LSN it has read up to. */
+    static class Reader extends DataInputStream {
+        private Reader(SegmentStream in) {
+            super(in);
+        }
+
+        /** Return the LSN of the next byte to be read. */
+        long position() {
+            return ((SegmentStream) in).position();
+        }
+    }
+}
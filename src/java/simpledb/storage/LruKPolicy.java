@@ -0,0 +1,141 @@
+package simpledb.storage;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * The LRU-K replacement policy (O'Neil, O'Neil and Weikum, SIGMOD '93).
+ * <p>
+ * The victim is the page whose K-th most recent reference lies furthest in
+ * the past.  Pages with fewer than K references count as infinitely old and
+ * are evicted first, in LRU order, so pages touched once by a scan go before
+ * pages that are referenced repeatedly.  Reference history is kept for
+ * recently evicted pages as well, so a page that comes back quickly keeps its
+ * standing.
+ * <p>
+ * Resident pages are kept in a tree ordered by K-th reference time, so
+ * accesses and evictions take O(log n) time.  Use {@link TwoQueuePolicy} or
+ * {@link ClockProPolicy} when strict O(1) bookkeeping matters more than an
+ * exact LRU-K ordering.
+ */
+public class LruKPolicy implements ReplacementPolicy {
+
+    public static final int DEFAULT_K = 2;
+
+    private static class History {
+        final PageId pid;
+        /** The last K reference times, most recent first; 0 means no reference. */
+        final long[] refs;
+
+        History(PageId pid, int k) {
+            this.pid = pid;
+            this.refs = new long[k];
+        }
+
+        void reference(long time) {
+            System.arraycopy(refs, 0, refs, 1, refs.length - 1);
+            refs[0] = time;
+        }
+
+        long kth() {
+            return refs[refs.length - 1];
+        }
+
+        long last() {
+            return refs[0];
+        }
+    }
+
+    private static final Comparator<History> VICTIM_ORDER = (a, b) -> {
+        int c = Long.compare(a.kth(), b.kth());
+        if (c != 0) {
+            return c;
+        }
+        // reference times are unique, so this totally orders the entries
+        return Long.compare(a.last(), b.last());
+    };
+
+    private final int k;
+    private final int retainedHistory;
+    private long clock;
+
+    private final Map<PageId, History> resident;
+    private final TreeSet<History> order;
+    private final LinkedHashMap<PageId, History> evicted;
+
+    /**
+     * Creates an LRU-2 policy.
+     *
+     * @param numPages the number of frames in the buffer pool
+     */
+    public LruKPolicy(int numPages) {
+        this(numPages, DEFAULT_K);
+    }
+
+    /**
+     * @param numPages the number of frames in the buffer pool; this many
+     *                 evicted pages keep their reference history
+     * @param k the number of references tracked per page
+     */
+    public LruKPolicy(int numPages, int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be positive");
+        }
+        this.k = k;
+        this.retainedHistory = numPages;
+        this.clock = 0;
+        resident = new HashMap<>();
+        order = new TreeSet<>(VICTIM_ORDER);
+        evicted = new LinkedHashMap<>();
+    }
+
+    public void pageAdmitted(PageId pid) {
+        History h = evicted.remove(pid);
+        if (h == null) {
+            h = resident.get(pid);
+            if (h != null) {
+                order.remove(h);
+            } else {
+                h = new History(pid, k);
+            }
+        }
+        h.reference(++clock);
+        resident.put(pid, h);
+        order.add(h);
+    }
+
+    public void pageAccessed(PageId pid) {
+        History h = resident.get(pid);
+        if (h == null) {
+            pageAdmitted(pid);
+            return;
+        }
+        order.remove(h);
+        h.reference(++clock);
+        order.add(h);
+    }
+
+    public void pageRemoved(PageId pid) {
+        History h = resident.remove(pid);
+        if (h != null) {
+            order.remove(h);
+        }
+    }
+
+    public PageId evict(Predicate<PageId> evictable) {
+        for (History h : order) {
+            if (evictable.test(h.pid)) {
+                order.remove(h);
+                resident.remove(h.pid);
+                evicted.put(h.pid, h);
+                if (evicted.size() > retainedHistory) {
+                    Iterator<PageId> it = evicted.keySet().iterator();
+                    it.next();
+                    it.remove();
+                }
+                return h.pid;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,88 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * MappedHeapFile is a HeapFile that reads pages through a read-only memory
+ * mapping of the file instead of reading them into a fresh buffer.  Pages
+ * are parsed straight from the mapped memory, so a read costs no system
+ * call and no copy out of the OS page cache.  This suits tables that are
+ * scanned much more often than they are written.
+ * <p>
+ * Writes go through the same path as for a HeapFile and are visible through
+ * the mapping.  When a page past the end of the mapping is read (the file
+ * has grown), the file is mapped again.  Files larger than 2GB cannot be
+ * mapped in one piece; pages past that point are read the regular way.
+ * <p>
+ * Sequential scans of a MappedHeapFile are not read ahead by the buffer
+ * pool; the operating system already reads mapped files ahead.
+ *
+ * @see simpledb.common.Catalog#loadSchema
+ */
+public class MappedHeapFile extends HeapFile {
+
+    /** Guarded by this. */
+    private MappedByteBuffer map;
+
+    /**
+     * Constructs a memory-mapped heap file backed by the specified file.
+     *
+     * @param f the file that stores the on-disk backing store for this heap
+     *          file.
+     */
+    public MappedHeapFile(File f, TupleDesc td) {
+        super(f, td);
+        map = null;
+    }
+
+    // see DbFile.java for javadocs
+    @Override
+    public Page readPage(PageId pid) {
+        int pageSize = BufferPool.getPageSize();
+        ByteBuffer data;
+        try {
+            data = slice((long) pid.getPageNumber() * pageSize, pageSize);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (data == null) {
+            return super.readPage(pid);
+        }
+        HeapPage page;
+        try {
+            page = new HeapPage((HeapPageId) pid, data);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        freeSpace.pageRead(page);
+        return page;
+    }
+
+    /**
+     * Return a view of length bytes of the mapping at offset, mapping the
+     * file again if it has grown past the current mapping.  Returns null if
+     * the bytes are not in the file or cannot be mapped.
+     */
+    private synchronized ByteBuffer slice(long offset, int length) throws IOException {
+        long end = offset + length;
+        if (map == null || end > map.capacity()) {
+            long size = Math.min(file.length(), Integer.MAX_VALUE);
+            if (end > size) {
+                return null;
+            }
+            map = handle.map(size);
+        }
+        ByteBuffer view = map.duplicate();
+        view.limit((int) end);
+        view.position((int) offset);
+        return view.slice();
+    }
+
+    @Override
+    boolean readsAhead() {
+        return false;
+    }
+}
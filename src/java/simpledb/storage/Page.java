@@ -48,6 +48,18 @@ public interface Page {
 
   byte[] getPageData();
 
+    /**
+     * Return the LSN of the end of the last log record that holds this page,
+     * or 0 if it has not been logged since it was read.  The page may only
+     * be written to disk once the log is durable up to this LSN.
+     *
+     * @see LogFile#logWrite
+     */
+    long getPageLsn();
+
+    /** Set the LSN of the end of the last log record that holds this page */
+    void setPageLsn(long lsn);
+
     /** Provide a representation of this page before any modifications were made
         to it.  Used by recovery.
     */
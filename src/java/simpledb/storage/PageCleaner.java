@@ -0,0 +1,193 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PageCleaner is a background thread that writes dirty pages out of the
+ * BufferPool ahead of eviction, and takes fuzzy checkpoints of the log.
+ * <p>
+ * Each round the cleaner takes the dirty, unpinned pages in page number
+ * order and hands them to the BufferPool in batches (see
+ * {@link BufferPool#cleanPages}).  The update records of a batch are
+ * forced together, and runs of adjacent HeapFile pages are written with
+ * one write each.  Dirty pages belong to running transactions, so pages
+ * are only cleaned in STEAL mode; under NO STEAL the cleaner only takes
+ * checkpoints.
+ * <p>
+ * A checkpoint cleans every page that can be cleaned and then writes a
+ * fuzzy checkpoint record ({@link LogFile#logFuzzyCheckpoint}), which
+ * neither waits for the remaining dirty pages nor blocks the BufferPool.
+ * <p>
+ * The cleaner can be limited to a number of pages per second, so that it
+ * does not take the disk away from foreground reads and commits.
+ *
+ * @Threadsafe
+ */
+class PageCleaner {
+    /** Most pages handed to the BufferPool at once. */
+    static final int BATCH_PAGES = 32;
+    /** Most pages coalesced into one write. */
+    static final int MAX_RUN = 16;
+
+    private final BufferPool pool;
+
+    /** The running cleaner thread, or null. Guarded by this. */
+    private Thread thread;
+    /** Guarded by this. */
+    private long intervalMillis;
+    /** Guarded by this. */
+    private long checkpointMillis;
+
+    private volatile int pagesPerSecond;
+
+    private final AtomicLong pagesWritten;
+    private final AtomicLong writes;
+    private final AtomicLong checkpoints;
+    private final AtomicLong throttledNanos;
+
+    PageCleaner(BufferPool pool) {
+        this.pool = pool;
+        this.thread = null;
+        this.pagesPerSecond = 0;
+        this.pagesWritten = new AtomicLong(0);
+        this.writes = new AtomicLong(0);
+        this.checkpoints = new AtomicLong(0);
+        this.throttledNanos = new AtomicLong(0);
+    }
+
+    /**
+     * Start the cleaner thread, or change the settings of the running one.
+     *
+     * @param intervalMillis time between cleaning rounds
+     * @param checkpointMillis time between checkpoints, or 0 for none
+     */
+    synchronized void start(long intervalMillis, long checkpointMillis) {
+        this.intervalMillis = Math.max(1, intervalMillis);
+        this.checkpointMillis = checkpointMillis;
+        if (thread == null) {
+            thread = new Thread(this::run, "simpledb-page-cleaner");
+            thread.setDaemon(true);
+            thread.start();
+        } else {
+            notifyAll();
+        }
+    }
+
+    /** Stop the cleaner thread and wait for its current round to finish. */
+    void stop() {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            thread = null;
+            notifyAll();
+        }
+        if (t == null || t == Thread.currentThread()) {
+            return;
+        }
+        boolean interrupted = false;
+        while (t.isAlive()) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Limit the cleaner to a number of pages per second, or 0 for no limit. */
+    void setPagesPerSecond(int pages) {
+        pagesPerSecond = pages;
+    }
+
+    private void run() {
+        long lastCheckpoint = System.nanoTime();
+        while (true) {
+            long checkpointEvery;
+            synchronized (this) {
+                if (thread != Thread.currentThread()) {
+                    return;
+                }
+                try {
+                    wait(intervalMillis);
+                } catch (InterruptedException e) {
+                    // clean now
+                }
+                if (thread != Thread.currentThread()) {
+                    return;
+                }
+                checkpointEvery = checkpointMillis;
+            }
+            try {
+                clean();
+                if (Thread.interrupted()) {
+                    // interrupted while throttled: skip the checkpoint this
+                    // round, since writing the log with the flag set would
+                    // close its channel
+                    continue;
+                }
+                if (checkpointEvery > 0
+                        && System.nanoTime() - lastCheckpoint >= TimeUnit.MILLISECONDS.toNanos(checkpointEvery)) {
+                    Database.getLogFile().logFuzzyCheckpoint();
+                    checkpoints.incrementAndGet();
+                    lastCheckpoint = System.nanoTime();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** Write out the pages that can be cleaned, within the rate limit. */
+    private void clean() throws IOException {
+        List<Page> dirty = pool.cleanablePages();
+        int rate = pagesPerSecond;
+        int batch = rate > 0 ? Math.min(BATCH_PAGES, rate) : BATCH_PAGES;
+        for (int from = 0; from < dirty.size(); from += batch) {
+            long start = System.nanoTime();
+            List<Page> pages = dirty.subList(from, Math.min(dirty.size(), from + batch));
+            pool.cleanPages(pages);
+            if (rate > 0) {
+                long wait = TimeUnit.SECONDS.toNanos(pages.size()) / rate - (System.nanoTime() - start);
+                if (wait > 0) {
+                    throttledNanos.addAndGet(wait);
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /** Record one write of a run of pages. */
+    void wrote(int pages) {
+        pagesWritten.addAndGet(pages);
+        writes.incrementAndGet();
+    }
+
+    long getPagesWritten() {
+        return pagesWritten.get();
+    }
+
+    long getWrites() {
+        return writes.get();
+    }
+
+    long getCheckpoints() {
+        return checkpoints.get();
+    }
+
+    long getThrottledNanos() {
+        return throttledNanos.get();
+    }
+}
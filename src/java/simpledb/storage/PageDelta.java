@@ -0,0 +1,214 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.index.*;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * PageDelta is the body of a compact update record in the log: the byte
+ * ranges of a page that an update changed, with their contents before and
+ * after the update.
+ * <p>
+ * An insert or delete of a tuple changes the header bits and the slot of
+ * the tuple, so its delta is a few dozen bytes instead of two full page
+ * images.  Deltas are chained: the before bytes of a delta are the after
+ * bytes of the previous delta of the same page, so a page is redone by
+ * applying the deltas in log order and undone by applying them in reverse.
+ * <p>
+ * The page is identified by a one byte tag and its id, instead of the
+ * class names written by {@link LogFile#writePageData}:
+ * <pre>
+ *   byte  tag           HEAP_PAGE or BTREE_PAGE
+ *   int   table id
+ *   int   page number
+ *   byte  category      (BTREE_PAGE only; see BTreePageId)
+ *   short number of ranges
+ *   per range:
+ *     short offset
+ *     short length
+ *     bytes before
+ *     bytes after
+ * </pre>
+ * Offsets and lengths are unsigned shorts, so pages larger than 64KB are
+ * logged as full images.
+ */
+class PageDelta {
+    static final byte HEAP_PAGE = 1;
+    static final byte BTREE_PAGE = 2;
+
+    /** Largest page that can be described by a delta. */
+    static final int MAX_PAGE_SIZE = 0xFFFF;
+    /** Unchanged runs shorter than this are folded into the ranges around them. */
+    private static final int MIN_GAP = 4;
+
+    final PageId pid;
+    private final int[] offsets;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageDelta(PageId pid, int[] offsets, byte[][] before, byte[][] after) {
+        this.pid = pid;
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /** Return true if updates of the page with this id can be logged as deltas. */
+    static boolean supports(PageId pid) {
+        return (pid instanceof HeapPageId || pid instanceof BTreePageId)
+                && BufferPool.getPageSize() <= MAX_PAGE_SIZE;
+    }
+
+    /** Return the delta that turns the page data prev into cur. */
+    static PageDelta diff(PageId pid, byte[] prev, byte[] cur) {
+        List<int[]> ranges = new ArrayList<>();
+        int i = 0;
+        while (i < cur.length) {
+            if (prev[i] == cur[i]) {
+                i++;
+                continue;
+            }
+            // extend the range over unchanged runs shorter than MIN_GAP
+            int last = i;
+            for (int j = i + 1; j < cur.length && j - last <= MIN_GAP; j++) {
+                if (prev[j] != cur[j]) {
+                    last = j;
+                }
+            }
+            ranges.add(new int[] { i, last + 1 });
+            i = last + 1;
+        }
+        int[] offsets = new int[ranges.size()];
+        byte[][] before = new byte[ranges.size()][];
+        byte[][] after = new byte[ranges.size()][];
+        for (int r = 0; r < ranges.size(); r++) {
+            int start = ranges.get(r)[0];
+            int end = ranges.get(r)[1];
+            offsets[r] = start;
+            before[r] = Arrays.copyOfRange(prev, start, end);
+            after[r] = Arrays.copyOfRange(cur, start, end);
+        }
+        return new PageDelta(pid, offsets, before, after);
+    }
+
+    /** Return a delta that replaces a whole page, for full images from old logs. */
+    static PageDelta image(Page before, Page after) {
+        return new PageDelta(before.getId(), new int[] { 0 },
+                new byte[][] { before.getPageData() }, new byte[][] { after.getPageData() });
+    }
+
+    /** Apply the update to page data, returning the result. */
+    byte[] redo(byte[] data) {
+        return apply(data, after);
+    }
+
+    /** Undo the update on page data, returning the result. */
+    byte[] undo(byte[] data) {
+        return apply(data, before);
+    }
+
+    private byte[] apply(byte[] data, byte[][] contents) {
+        for (int r = 0; r < offsets.length; r++) {
+            if (offsets[r] == 0 && contents[r].length >= data.length) {
+                data = contents[r].clone();
+            } else {
+                System.arraycopy(contents[r], 0, data, offsets[r], contents[r].length);
+            }
+        }
+        return data;
+    }
+
+    /** Return the number of bytes of page data changed by the update. */
+    int changedBytes() {
+        int n = 0;
+        for (byte[] b : after) {
+            n += b.length;
+        }
+        return n;
+    }
+
+    void write(DataOutput out) throws IOException {
+        writePageId(out, pid);
+        out.writeShort(offsets.length);
+        for (int r = 0; r < offsets.length; r++) {
+            out.writeShort(offsets[r]);
+            out.writeShort(after[r].length);
+            out.write(before[r]);
+            out.write(after[r]);
+        }
+    }
+
+    static PageDelta read(DataInput in) throws IOException {
+        PageId pid = readPageId(in);
+        int n = in.readUnsignedShort();
+        int[] offsets = new int[n];
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        for (int r = 0; r < n; r++) {
+            offsets[r] = in.readUnsignedShort();
+            int length = in.readUnsignedShort();
+            before[r] = new byte[length];
+            in.readFully(before[r]);
+            after[r] = new byte[length];
+            in.readFully(after[r]);
+        }
+        return new PageDelta(pid, offsets, before, after);
+    }
+
+    /** Write the tag and id of a page whose updates can be logged as deltas. */
+    static void writePageId(DataOutput out, PageId pid) throws IOException {
+        int[] ids = pid.serialize();
+        out.writeByte(pid instanceof BTreePageId ? BTREE_PAGE : HEAP_PAGE);
+        out.writeInt(ids[0]);
+        out.writeInt(ids[1]);
+        if (pid instanceof BTreePageId) {
+            out.writeByte(ids[2]);
+        }
+    }
+
+    static PageId readPageId(DataInput in) throws IOException {
+        byte tag = in.readByte();
+        int tableId = in.readInt();
+        int pageNo = in.readInt();
+        switch (tag) {
+        case HEAP_PAGE:
+            return new HeapPageId(tableId, pageNo);
+        case BTREE_PAGE:
+            return new BTreePageId(tableId, pageNo, in.readByte());
+        default:
+            throw new IOException("unknown page tag " + tag);
+        }
+    }
+
+    /**
+     * Create the page with the given id and data, for writing the result
+     * of redo or undo to disk.
+     */
+    static Page newPage(PageId pid, byte[] data) throws IOException {
+        if (pid instanceof HeapPageId) {
+            return new HeapPage((HeapPageId) pid, data);
+        }
+        if (!(pid instanceof BTreePageId)) {
+            throw new IOException("cannot create page " + pid);
+        }
+        BTreePageId id = (BTreePageId) pid;
+        switch (id.pgcateg()) {
+        case BTreePageId.ROOT_PTR:
+            return new BTreeRootPtrPage(id, data);
+        case BTreePageId.HEADER:
+            return new BTreeHeaderPage(id, data);
+        default:
+            int keyField = ((BTreeFile) Database.getCatalog().getDatabaseFile(id.getTableId())).keyField();
+            if (id.pgcateg() == BTreePageId.INTERNAL) {
+                return new BTreeInternalPage(id, data, keyField);
+            }
+            return new BTreeLeafPage(id, data, keyField);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionId;
+
+/**
+ * A PageHandle is a page pinned in the BufferPool.  While the handle is open
+ * the page cannot be evicted, so an access method can keep working on it
+ * without looking it up again.  Handles are closed with {@link #close}
+ * (e.g. in a try-with-resources block); any handle a transaction leaves open
+ * is closed when the transaction completes.  A handle on a page read from
+ * a snapshot has no frame, as the page is a copy outside the pool.
+ *
+ * @see BufferPool#pinPage
+ */
+public class PageHandle implements AutoCloseable {
+    private final BufferPool pool;
+    private final Frame frame;
+    private final Page page;
+    private final TransactionId tid;
+    private boolean closed;
+
+    PageHandle(BufferPool pool, Frame frame, Page page, TransactionId tid) {
+        this.pool = pool;
+        this.frame = frame;
+        this.page = page;
+        this.tid = tid;
+        this.closed = false;
+    }
+
+    /** Return the pinned page */
+    public Page getPage() {
+        return page;
+    }
+
+    /** Return the transaction that pinned the page, or null */
+    TransactionId getTransactionId() {
+        return tid;
+    }
+
+    /** Unpin the page.  Closing a handle more than once has no effect. */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        if (frame != null) {
+            frame.unpin();
+        }
+        if (tid != null) {
+            pool.forgetHandle(this);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ReadAhead reads the pages of HeapFiles that are being scanned sequentially
+ * before the scan asks for them, so that the scan does not wait for one disk
+ * read per page.
+ * <p>
+ * Scans report each page they are about to read.  Once a table has been
+ * read {@link #SEQUENTIAL_THRESHOLD} pages in a row, the next pages are read
+ * in one block by a background thread and their contents are staged here.
+ * {@link HeapFile#readPage} takes a staged page instead of going to disk, so
+ * the BufferPool reads, admits and evicts read-ahead pages like any other
+ * page.  The window is topped up when the scan has used half of it.
+ * <p>
+ * The depth of the window adapts to how useful reading ahead turns out to
+ * be: it grows by one page for every staged page a scan uses, and is halved
+ * whenever a staged page is dropped without being used.  It never exceeds a
+ * quarter of the BufferPool size.
+ * <p>
+ * A page written to disk is removed from the stage, and blocks that were
+ * being read while a page was written are dropped, so a staged page is never
+ * older than the page on disk.
+ *
+ * @Threadsafe
+ */
+class ReadAhead {
+    /** Number of consecutive pages that makes an access pattern sequential. */
+    static final int SEQUENTIAL_THRESHOLD = 2;
+    static final int INITIAL_DEPTH = 4;
+
+    private final int maxDepth;
+    private int depth;
+    /** Per-table state of the scans being followed, keyed by table id. */
+    private final Map<Integer, Stream> streams;
+    /** Pages read ahead and not used yet, oldest first. */
+    private final LinkedHashMap<PageId, byte[]> staged;
+    /** Counts page writes; a block read that overlaps a write is dropped. */
+    private long writes;
+    private ThreadPoolExecutor executor;
+
+    private final AtomicLong pagesRead;
+    private final AtomicLong hits;
+    private final AtomicLong wasted;
+
+    private static class Stream {
+        int lastPage = -1;
+        int run = 0;
+        /** First page not yet requested from the background thread. */
+        int readTo = 0;
+    }
+
+    ReadAhead(int numPages) {
+        this.maxDepth = Math.max(1, numPages / 4);
+        this.depth = Math.min(INITIAL_DEPTH, maxDepth);
+        this.streams = new HashMap<>();
+        this.staged = new LinkedHashMap<>();
+        this.writes = 0;
+        this.pagesRead = new AtomicLong(0);
+        this.hits = new AtomicLong(0);
+        this.wasted = new AtomicLong(0);
+    }
+
+    /**
+     * Called by a scan before it reads page pageNo of file.  Starts a
+     * background read of the following pages if the table is being read
+     * sequentially.
+     */
+    synchronized void pageRequested(HeapFile file, int pageNo) {
+        Stream s = streams.computeIfAbsent(file.getId(), id -> new Stream());
+        if (pageNo == s.lastPage + 1) {
+            s.run++;
+        } else {
+            s.run = 0;
+            s.readTo = pageNo + 1;
+        }
+        s.lastPage = pageNo;
+        if (s.run < SEQUENTIAL_THRESHOLD) {
+            return;
+        }
+        int start = Math.max(s.readTo, pageNo + 1);
+        // wait until the scan has used half of what was read ahead
+        if (start - (pageNo + 1) > depth / 2) {
+            return;
+        }
+        int end = Math.min(file.numPages(), pageNo + 1 + depth);
+        if (start >= end) {
+            return;
+        }
+        s.readTo = end;
+        submit(file, start, end - start);
+    }
+
+    /** Caller holds this object's monitor. */
+    private void submit(HeapFile file, int start, int count) {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), r -> {
+                        Thread t = new Thread(r, "simpledb-read-ahead");
+                        t.setDaemon(true);
+                        return t;
+                    });
+            executor.allowCoreThreadTimeOut(true);
+        }
+        final long writesBefore = writes;
+        executor.execute(() -> {
+            byte[][] pages;
+            try {
+                pages = file.readBlock(start, count);
+            } catch (IOException e) {
+                // reading ahead is only a hint; the scan reads the pages itself
+                return;
+            }
+            stage(file.getId(), start, pages, writesBefore);
+        });
+    }
+
+    private synchronized void stage(int tableId, int start, byte[][] pages, long writesBefore) {
+        if (writes != writesBefore) {
+            return;
+        }
+        for (int i = 0; i < pages.length; i++) {
+            staged.put(new HeapPageId(tableId, start + i), pages[i]);
+        }
+        pagesRead.addAndGet(pages.length);
+        // keep at most two windows; drop the oldest pages, which the scan skipped
+        Iterator<byte[]> it = staged.values().iterator();
+        while (staged.size() > 2 * maxDepth && it.hasNext()) {
+            it.next();
+            it.remove();
+            miss();
+        }
+    }
+
+    /**
+     * Return the contents of a page that was read ahead, or null if it was
+     * not; the page is no longer staged afterwards.
+     */
+    synchronized byte[] take(PageId pid) {
+        if (staged.isEmpty()) {
+            return null;
+        }
+        byte[] data = staged.remove(pid);
+        if (data != null) {
+            hits.incrementAndGet();
+            if (depth < maxDepth) {
+                depth++;
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Called after a page is written to disk: drops its staged contents,
+     * which may have been read before the write.
+     */
+    synchronized void pageWritten(PageId pid) {
+        writes++;
+        if (staged.remove(pid) != null) {
+            miss();
+        }
+    }
+
+    /** Caller holds this object's monitor. */
+    private void miss() {
+        wasted.incrementAndGet();
+        depth = Math.max(1, depth / 2);
+    }
+
+    /** Return the current number of pages read ahead of a sequential scan */
+    synchronized int getDepth() {
+        return depth;
+    }
+
+    long getPagesRead() {
+        return pagesRead.get();
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getWasted() {
+        return wasted.get();
+    }
+}
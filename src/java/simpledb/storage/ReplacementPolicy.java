@@ -0,0 +1,49 @@
+package simpledb.storage;
+
+import java.util.function.Predicate;
+
+/**
+ * ReplacementPolicy decides which resident page the BufferPool gives up
+ * when it needs a free frame.  The BufferPool reports every admission, hit
+ * and removal to the policy, and asks it for a victim when the pool is full.
+ * <p>
+ * Implementations are not thread-safe; the BufferPool serializes calls.
+ *
+ * @see BufferPool#BufferPool(int, ReplacementPolicy)
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Called after a page has been read into the buffer pool.
+     *
+     * @param pid the page that became resident
+     */
+    void pageAdmitted(PageId pid);
+
+    /**
+     * Called on every buffer pool hit.
+     *
+     * @param pid the resident page that was requested
+     */
+    void pageAccessed(PageId pid);
+
+    /**
+     * Called when a page leaves the buffer pool without being chosen by
+     * {@link #evict}, e.g. when it is discarded.
+     *
+     * @param pid the page that is no longer resident
+     */
+    void pageRemoved(PageId pid);
+
+    /**
+     * Choose a resident page to evict and forget it.  Candidates are offered
+     * to <code>evictable</code> in victim order and the first one it accepts
+     * must be returned; the BufferPool claims the frame inside the test.
+     * Rejected pages (e.g. pinned pages, or dirty pages under NO STEAL) are
+     * skipped and stay resident.
+     *
+     * @param evictable tells whether a resident page may be evicted right now
+     * @return the victim, or null if no resident page is evictable
+     */
+    PageId evict(Predicate<PageId> evictable);
+}
@@ -10,7 +10,7 @@ import java.util.stream.Collectors;
  * specified schema specified by a TupleDesc object and contain Field objects
  * with the data for each field.
  */
-public class Tuple implements Serializable {
+public class Tuple implements Serializable, TupleView {
 
     private static final long serialVersionUID = 1L;
 
@@ -83,6 +83,22 @@ public class Tuple implements Serializable {
         return fields[i];
     }
 
+    public int getInt(int i) {
+        return ((IntField) fields[i]).getValue();
+    }
+
+    public int compareString(int i, String s) {
+        return ((StringField) fields[i]).getValue().compareTo(s);
+    }
+
+    public boolean containsString(int i, String s) {
+        return ((StringField) fields[i]).getValue().contains(s);
+    }
+
+    public int hashString(int i) {
+        return ((StringField) fields[i]).getValue().hashCode();
+    }
+
     /**
      * Returns the contents of this Tuple as a string. Note that to pass the
      * system tests, the format needs to be as follows:
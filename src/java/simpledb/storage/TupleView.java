@@ -0,0 +1,63 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+
+/**
+ * TupleView gives read access to the fields of a tuple without requiring
+ * Field objects.  {@link Tuple} is a TupleView over its fields;
+ * {@link HeapPage.Cursor} is a flyweight TupleView that reads the fields of
+ * one slot after another straight from the page bytes, so that predicates
+ * and aggregates can be evaluated on a table without allocating anything
+ * per tuple.
+ * <p>
+ * A view may change when the cursor or page behind it moves on; callers
+ * that need to keep a tuple must copy the fields they need, e.g. with
+ * {@link #getField}.
+ */
+public interface TupleView {
+
+    /**
+     * @return The TupleDesc representing the schema of the tuple.
+     */
+    TupleDesc getTupleDesc();
+
+    /**
+     * @return the value of the ith field, which must be of type INT_TYPE
+     */
+    int getInt(int i);
+
+    /**
+     * Compare the ith field, which must be of type STRING_TYPE, with s.
+     *
+     * @return the result of comparing the value of the field to s with
+     *         {@link String#compareTo}
+     */
+    int compareString(int i, String s);
+
+    /**
+     * @return true if the ith field, which must be of type STRING_TYPE,
+     *         contains s
+     */
+    boolean containsString(int i, String s);
+
+    /**
+     * @return the {@link String#hashCode} of the value of the ith field,
+     *         which must be of type STRING_TYPE
+     */
+    int hashString(int i);
+
+    /**
+     * @return the value of the ith field as a new or existing Field object
+     */
+    Field getField(int i);
+
+    /**
+     * Receives tuple views one at a time.
+     */
+    interface Visitor {
+        /**
+         * Called for each tuple; the view is only valid during the call.
+         */
+        void visit(TupleView tuple) throws DbException;
+    }
+}
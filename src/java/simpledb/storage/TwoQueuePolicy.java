@@ -0,0 +1,108 @@
+package simpledb.storage;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * The full 2Q replacement policy (Johnson and Shasha, VLDB '94).
+ * <p>
+ * Pages referenced once live in a FIFO queue (A1in).  When they fall out of
+ * it only their ids are remembered (A1out); a page that is referenced again
+ * while its id is in A1out is promoted to the main LRU queue (Am).  A long
+ * sequential scan therefore only cycles through A1in and never displaces the
+ * hot pages in Am.  All operations take O(1) time.
+ */
+public class TwoQueuePolicy implements ReplacementPolicy {
+
+    private final int kin;
+    private final int kout;
+
+    private final LinkedHashSet<PageId> a1in;
+    private final LinkedHashSet<PageId> a1out;
+    private final LinkedHashSet<PageId> am;
+
+    /**
+     * Creates a 2Q policy with the tuning recommended by the paper: A1in
+     * holds a quarter of the frames and A1out remembers half as many ids as
+     * there are frames.
+     *
+     * @param numPages the number of frames in the buffer pool
+     */
+    public TwoQueuePolicy(int numPages) {
+        this(Math.max(1, numPages / 4), Math.max(1, numPages / 2));
+    }
+
+    /**
+     * @param kin the target size of the A1in queue
+     * @param kout the number of evicted page ids remembered in A1out
+     */
+    public TwoQueuePolicy(int kin, int kout) {
+        this.kin = kin;
+        this.kout = kout;
+        a1in = new LinkedHashSet<>();
+        a1out = new LinkedHashSet<>();
+        am = new LinkedHashSet<>();
+    }
+
+    public void pageAdmitted(PageId pid) {
+        if (a1out.remove(pid)) {
+            am.add(pid);
+        } else {
+            a1in.add(pid);
+        }
+    }
+
+    public void pageAccessed(PageId pid) {
+        // hits in A1in are deliberately ignored, they are correlated references
+        if (am.remove(pid)) {
+            am.add(pid);
+        }
+    }
+
+    public void pageRemoved(PageId pid) {
+        if (!a1in.remove(pid)) {
+            am.remove(pid);
+        }
+    }
+
+    public PageId evict(Predicate<PageId> evictable) {
+        PageId victim = null;
+        if (a1in.size() > kin || am.isEmpty()) {
+            victim = first(a1in, evictable);
+            if (victim != null) {
+                a1in.remove(victim);
+                remember(victim);
+                return victim;
+            }
+        }
+        victim = first(am, evictable);
+        if (victim != null) {
+            am.remove(victim);
+            return victim;
+        }
+        victim = first(a1in, evictable);
+        if (victim != null) {
+            a1in.remove(victim);
+            remember(victim);
+        }
+        return victim;
+    }
+
+    private void remember(PageId pid) {
+        a1out.add(pid);
+        if (a1out.size() > kout) {
+            Iterator<PageId> it = a1out.iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    private static PageId first(Set<PageId> queue, Predicate<PageId> evictable) {
+        for (PageId pid : queue) {
+            if (evictable.test(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,233 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+import simpledb.transaction.TransactionId;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * VersionStore keeps the prior committed versions of pages, so that
+ * read-only transactions can read a consistent snapshot of the database
+ * without taking page locks (multi-version concurrency control).
+ * <p>
+ * Commits are numbered by a logical clock.  A snapshot sees the database
+ * as of the last commit before it began.  Before a transaction locks a
+ * page for writing, the last committed contents of the page are saved as
+ * its pending version; a snapshot reads the pending version instead of
+ * the page while the writer is active.  When the writer commits with
+ * clock value C, the pending version becomes a version valid for the
+ * snapshots that began before C; when it aborts, the pending version is
+ * dropped, as the page has been rolled back.
+ * <p>
+ * To read a page, a snapshot S takes the oldest version valid for
+ * snapshots before some C &gt; S, or else the pending version, or else
+ * the page itself.  Versions are immutable copies and are shared by the
+ * snapshots that read them.  Versions no active snapshot can read are
+ * garbage collected when a snapshot ends: those valid only before the
+ * oldest active snapshot began.
+ *
+ * @Threadsafe
+ */
+class VersionStore {
+    /** A committed image of a page, for the snapshots that began before {@code until}. */
+    private static class Version {
+        final long until;
+        final Page page;
+
+        Version(long until, Page page) {
+            this.until = until;
+            this.page = page;
+        }
+    }
+
+    /** The versions of one page; guarded by the page table bin (see ConcurrentHashMap.compute). */
+    private static class PageVersions {
+        /** The last committed image while a transaction is writing the page, or null. */
+        Page pending;
+        /** Committed images, oldest first. */
+        final List<Version> chain = new ArrayList<>();
+
+        boolean isEmpty() {
+            return pending == null && chain.isEmpty();
+        }
+    }
+
+    private final Map<PageId, PageVersions> pages = new ConcurrentHashMap<>();
+    /** The pages each active transaction has saved a pending version of. */
+    private final Map<TransactionId, Set<PageId>> writes = new ConcurrentHashMap<>();
+    /** The clock value each active snapshot began at. */
+    private final Map<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+
+    private long clock; // guarded by this
+    private long collected; // guarded by this
+
+    VersionStore() {
+        this.clock = 0;
+        this.collected = 0;
+    }
+
+    /** Return an immutable copy of a page. */
+    static Page copy(Page page) throws DbException {
+        try {
+            return PageDelta.newPage(page.getId(), page.getPageData());
+        } catch (IOException e) {
+            throw new DbException("cannot copy page " + page.getId() + ": " + e.getMessage());
+        }
+    }
+
+    /** Begin a snapshot for a read-only transaction. */
+    synchronized void beginSnapshot(TransactionId tid) {
+        snapshots.put(tid, clock);
+    }
+
+    /** Return true if tid reads a snapshot. */
+    boolean isSnapshot(TransactionId tid) {
+        return tid != null && snapshots.containsKey(tid);
+    }
+
+    /** End the snapshot of tid and collect the versions no snapshot can read any more. */
+    void endSnapshot(TransactionId tid) {
+        if (snapshots.remove(tid) == null) {
+            return;
+        }
+        long oldest = Long.MAX_VALUE;
+        for (long start : snapshots.values()) {
+            oldest = Math.min(oldest, start);
+        }
+        long dropped = 0;
+        for (PageId pid : pages.keySet()) {
+            final long horizon = oldest;
+            final long[] n = new long[1];
+            pages.computeIfPresent(pid, (k, pv) -> {
+                Iterator<Version> it = pv.chain.iterator();
+                while (it.hasNext() && it.next().until <= horizon) {
+                    it.remove();
+                    n[0]++;
+                }
+                return pv.isEmpty() ? null : pv;
+            });
+            dropped += n[0];
+        }
+        synchronized (this) {
+            collected += dropped;
+        }
+    }
+
+    /**
+     * Save the committed contents of a page tid is about to write, unless
+     * a pending version of it is saved already.  Called with the write
+     * lock on the page held, before the page is changed.
+     */
+    void beforeWrite(TransactionId tid, Page page) throws DbException {
+        PageId pid = page.getId();
+        Set<PageId> written = writes.computeIfAbsent(tid, t -> ConcurrentHashMap.newKeySet());
+        if (written.contains(pid)) {
+            return;
+        }
+        Page image = copy(page);
+        pages.compute(pid, (k, pv) -> {
+            if (pv == null) {
+                pv = new PageVersions();
+            }
+            if (pv.pending == null) {
+                pv.pending = image;
+            }
+            return pv;
+        });
+        written.add(pid);
+    }
+
+    /**
+     * The writes of tid are committed: their pending versions become
+     * versions for the active snapshots, if there are any.
+     */
+    synchronized void commit(TransactionId tid) {
+        Set<PageId> written = writes.remove(tid);
+        if (written == null) {
+            return;
+        }
+        final long until = ++clock;
+        final boolean keep = !snapshots.isEmpty();
+        for (PageId pid : written) {
+            pages.computeIfPresent(pid, (k, pv) -> {
+                if (keep && pv.pending != null) {
+                    pv.chain.add(new Version(until, pv.pending));
+                }
+                pv.pending = null;
+                return pv.isEmpty() ? null : pv;
+            });
+        }
+    }
+
+    /** The writes of tid were rolled back: drop their pending versions. */
+    void abort(TransactionId tid) {
+        Set<PageId> written = writes.remove(tid);
+        if (written == null) {
+            return;
+        }
+        for (PageId pid : written) {
+            pages.computeIfPresent(pid, (k, pv) -> {
+                pv.pending = null;
+                return pv.isEmpty() ? null : pv;
+            });
+        }
+    }
+
+    /**
+     * Return the version of a page the snapshot of tid reads.
+     *
+     * @param current the page in the buffer pool
+     */
+    Page read(TransactionId tid, Page current) throws DbException {
+        Long start = snapshots.get(tid);
+        if (start == null) {
+            throw new DbException("transaction " + tid.getId() + " has no snapshot");
+        }
+        final Page[] res = new Page[1];
+        final DbException[] error = new DbException[1];
+        pages.compute(current.getId(), (k, pv) -> {
+            if (pv != null) {
+                for (Version v : pv.chain) {
+                    if (v.until > start) {
+                        res[0] = v.page;
+                        return pv;
+                    }
+                }
+                if (pv.pending != null) {
+                    res[0] = pv.pending;
+                    return pv;
+                }
+            }
+            // no writer is changing the page: copy it while its bin is held
+            try {
+                res[0] = copy(current);
+            } catch (DbException e) {
+                error[0] = e;
+            }
+            return pv;
+        });
+        if (error[0] != null) {
+            throw error[0];
+        }
+        return res[0];
+    }
+
+    /** Return the number of committed versions kept for snapshots. */
+    int getVersionCount() {
+        final int[] n = new int[1];
+        for (PageId pid : pages.keySet()) {
+            pages.computeIfPresent(pid, (k, pv) -> {
+                n[0] += pv.chain.size();
+                return pv;
+            });
+        }
+        return n[0];
+    }
+
+    /** Return the number of versions garbage collected. */
+    synchronized long getCollectedCount() {
+        return collected;
+    }
+}
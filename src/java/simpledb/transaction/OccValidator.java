@@ -0,0 +1,146 @@
+package simpledb.transaction;
+
+import simpledb.storage.Page;
+import simpledb.storage.PageId;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * OccValidator keeps the state of transactions running under optimistic
+ * concurrency control (OCC), which take no locks while they run.
+ * <p>
+ * Every page has a version counter, bumped each time a change to it is
+ * made visible to other transactions or rolled back.  An optimistic
+ * transaction records the version of each page it reads (its read set)
+ * and writes private copies of pages (its write set).  At commit it is
+ * validated: if a page it read has a newer version, or is being written
+ * by a transaction holding a lock on it, the transaction conflicts and
+ * is aborted.  Otherwise its private copies replace the shared pages.
+ * Validation and installing the write set are done in one critical
+ * section, so optimistic transactions commit in a serial order.
+ * <p>
+ * The version of a page must be read before the page, and bumped after
+ * the page is changed, so that a reader never records a version newer
+ * than what it read.
+ *
+ * @Threadsafe
+ */
+public class OccValidator {
+    /** The read and write sets of an optimistic transaction. */
+    private static class ReadWriteSet {
+        final Map<PageId, Long> reads = new ConcurrentHashMap<>();
+        final Map<PageId, Page> writes = new ConcurrentHashMap<>();
+    }
+
+    private final Map<PageId, Long> versions;
+    private final Map<TransactionId, ReadWriteSet> active;
+
+    private final AtomicLong validations;
+    private final AtomicLong conflicts;
+
+    public OccValidator() {
+        this.versions = new ConcurrentHashMap<>();
+        this.active = new ConcurrentHashMap<>();
+        this.validations = new AtomicLong(0);
+        this.conflicts = new AtomicLong(0);
+    }
+
+    /** Start tracking an optimistic transaction. */
+    public void begin(TransactionId tid) {
+        active.put(tid, new ReadWriteSet());
+    }
+
+    /** Return true if tid runs under optimistic concurrency control. */
+    public boolean isOptimistic(TransactionId tid) {
+        return tid != null && active.containsKey(tid);
+    }
+
+    /** Stop tracking a transaction that committed or aborted. */
+    public void end(TransactionId tid) {
+        active.remove(tid);
+    }
+
+    /** Return the version of a page. */
+    public long version(PageId pid) {
+        return versions.getOrDefault(pid, 0L);
+    }
+
+    /** A change to the page became visible or was rolled back. */
+    public void bump(PageId pid) {
+        versions.merge(pid, 1L, Long::sum);
+    }
+
+    /** Record that tid read a page at the given version, unless it read it before. */
+    public void recordRead(TransactionId tid, PageId pid, long version) {
+        ReadWriteSet set = active.get(tid);
+        if (set != null) {
+            set.reads.putIfAbsent(pid, version);
+        }
+    }
+
+    /** Return the private copy of a page tid writes, or null. */
+    public Page getWrite(TransactionId tid, PageId pid) {
+        ReadWriteSet set = active.get(tid);
+        return set == null ? null : set.writes.get(pid);
+    }
+
+    /** Add the private copy of a page to the write set of tid. */
+    public void putWrite(TransactionId tid, Page page) {
+        ReadWriteSet set = active.get(tid);
+        if (set != null) {
+            set.writes.put(page.getId(), page);
+        }
+    }
+
+    /** Drop a page tid did not change from its write set. */
+    public void dropWrite(TransactionId tid, PageId pid) {
+        ReadWriteSet set = active.get(tid);
+        if (set != null) {
+            set.writes.remove(pid);
+        }
+    }
+
+    /** Return the private copies of the pages tid writes. */
+    public List<Page> getWrites(TransactionId tid) {
+        ReadWriteSet set = active.get(tid);
+        return set == null ? new ArrayList<>() : new ArrayList<>(set.writes.values());
+    }
+
+    /**
+     * Validate tid: check that no page it read has changed since, and
+     * that none is being written by another transaction.  The caller holds
+     * this validator's monitor until the write set is installed.
+     *
+     * @param writtenByOther tells whether another transaction may be
+     *        writing a page
+     * @return false if tid conflicts and must abort
+     */
+    public boolean validate(TransactionId tid, Predicate<PageId> writtenByOther) {
+        assert Thread.holdsLock(this);
+        validations.incrementAndGet();
+        ReadWriteSet set = active.get(tid);
+        if (set == null) {
+            return true;
+        }
+        for (Map.Entry<PageId, Long> read : set.reads.entrySet()) {
+            if (version(read.getKey()) != read.getValue() || writtenByOther.test(read.getKey())) {
+                conflicts.incrementAndGet();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Return the number of optimistic transactions validated. */
+    public long getValidationCount() {
+        return validations.get();
+    }
+
+    /** Return the number of optimistic transactions that failed validation. */
+    public long getConflictCount() {
+        return conflicts.get();
+    }
+}
@@ -1,6 +1,7 @@
 package simpledb.transaction;
 
 import simpledb.common.Database;
+import simpledb.storage.LockManager.LockPolicy;
 
 import java.io.*;
 
@@ -11,15 +12,68 @@ import java.io.*;
 
 public class Transaction {
     private final TransactionId tid;
+    private final boolean readOnly;
+    private boolean optimistic = false;
+    private LockPolicy lockPolicy = LockPolicy.DETECT;
     volatile boolean started = false;
 
     public Transaction() {
+        this(false);
+    }
+
+    /**
+     * @param readOnly true if the transaction only reads: it writes no log
+     *        records and has no pages to flush or roll back, and in MVCC
+     *        mode (see {@link simpledb.storage.BufferPool#setMvccMode}) it
+     *        reads a snapshot without taking locks
+     */
+    public Transaction(boolean readOnly) {
         tid = new TransactionId();
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Run the transaction under optimistic concurrency control: it takes
+     * no locks, and is validated when it commits (see {@link OccValidator}).
+     * Call before {@link #start}.
+     */
+    public void setOptimistic(boolean optimistic) {
+        this.optimistic = optimistic;
+    }
+
+    public boolean isOptimistic() {
+        return optimistic;
+    }
+
+    /**
+     * Set how the transaction avoids or breaks deadlocks when it waits for
+     * locks (see {@link LockPolicy}).  Call before {@link #start}.
+     */
+    public void setLockPolicy(LockPolicy lockPolicy) {
+        this.lockPolicy = lockPolicy;
+    }
+
+    public LockPolicy getLockPolicy() {
+        return lockPolicy;
     }
 
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (lockPolicy != LockPolicy.DETECT) {
+            Database.getBufferPool().setLockPolicy(tid, lockPolicy);
+        }
+        if (optimistic) {
+            Database.getBufferPool().beginOptimistic(tid);
+        }
+        if (readOnly) {
+            Database.getBufferPool().beginReadOnly(tid);
+            if (Database.getBufferPool().isMvccMode()) {
+                Database.getBufferPool().beginSnapshot(tid);
+            }
+            // nothing to log: it can't be undone or redone
+            return;
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -31,8 +85,25 @@ public class Transaction {
         return tid;
     }
 
-    /** Finish the transaction */
-    public void commit() throws IOException {
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Finish the transaction.
+     *
+     * @throws TransactionAbortedException if the transaction is optimistic
+     *         and fails validation; it has been aborted
+     */
+    public void commit() throws IOException, TransactionAbortedException {
+        if (started && optimistic) {
+            try {
+                Database.getBufferPool().commitOptimistic(tid);
+            } catch (TransactionAbortedException e) {
+                abort();
+                throw e;
+            }
+        }
         transactionComplete(false);
     }
 
@@ -44,7 +115,10 @@ public class Transaction {
     /** Handle the details of transaction commit / abort */
     public void transactionComplete(boolean abort) throws IOException {
 
-        if (started) {
+        if (started && readOnly) {
+            Database.getBufferPool().transactionComplete(tid, !abort);
+            started = false;
+        } else if (started) {
             //write abort log record and rollback transaction
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
@@ -0,0 +1,84 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Throughput benchmarks.  They print numbers that depend on the machine
+ * instead of checking behaviour, so they are not part of the unit or
+ * system tests.  Run them with {@code ant benchmark}, or a single one with
+ * {@code ant benchmark -Dbenchmark=lookup}.
+ */
+public class Benchmark {
+
+    /**
+     * Resident page lookups per second through BufferPool.getPage as the
+     * number of threads grows.
+     */
+    static void lookupThroughput() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10000, 1 << 16, null, null);
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        int numPages = Math.min(hf.numPages(), BufferPool.DEFAULT_PAGES);
+        TransactionId warm = new TransactionId();
+        for (int p = 0; p < numPages; p++)
+            bp.getPage(warm, new HeapPageId(hf.getId(), p), Permissions.READ_ONLY);
+
+        final int lookups = 200000;
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= Math.max(1, cores); threads *= 2) {
+            long start = System.nanoTime();
+            BufferPoolConcurrencyTest.runConcurrently(threads, i -> {
+                TransactionId tid = new TransactionId();
+                for (int n = 0; n < lookups; n++)
+                    bp.getPage(tid, new HeapPageId(hf.getId(), (i + n) % numPages), Permissions.READ_ONLY);
+            });
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("lookup: %d threads, %.0f lookups/s%n",
+                    threads, threads * lookups / seconds);
+        }
+    }
+
+    /**
+     * Transactions per second and aborts of short read-mostly transactions
+     * under two-phase locking and under OCC.
+     */
+    static void contention() throws Exception {
+        int threads = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+        int perThread = 100;
+        for (boolean optimistic : new boolean[] { false, true }) {
+            Database.reset();
+            HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+            long start = System.nanoTime();
+            long aborts = OccTest.runContended(hf, optimistic, threads, perThread);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("occ: %s, %d threads, %.0f transactions/s, %d aborts%n",
+                    optimistic ? "OCC" : "2PL", threads, threads * perThread / seconds, aborts);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> names = args.length == 0 ? Arrays.asList("lookup", "occ") : Arrays.asList(args);
+        for (String name : names) {
+            Database.reset();
+            switch (name) {
+                case "lookup":
+                    lookupThroughput();
+                    break;
+                case "occ":
+                    contention();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown benchmark " + name);
+            }
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,140 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolConcurrencyTest extends SimpleDbTestBase {
+
+    private static final int THREADS = 8;
+
+    /** HeapFile that counts, and slows down, reads from disk. */
+    static class CountingHeapFile extends HeapFile {
+        final AtomicInteger reads = new AtomicInteger(0);
+
+        CountingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads.incrementAndGet();
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return super.readPage(pid);
+        }
+    }
+
+    private CountingHeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 10000, 1 << 16, null, null);
+        hf = new CountingHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+    }
+
+    /** Run body in threads that start at the same time; rethrow the first failure. */
+    static void runConcurrently(int threads, IndexedBody body) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicReference<Exception> error = new AtomicReference<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final int index = i;
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                    body.run(index);
+                } catch (Exception e) {
+                    error.compareAndSet(null, e);
+                }
+            });
+            t.start();
+            workers.add(t);
+        }
+        start.countDown();
+        for (Thread t : workers)
+            t.join();
+        if (error.get() != null)
+            throw error.get();
+    }
+
+    interface IndexedBody {
+        void run(int index) throws Exception;
+    }
+
+    /**
+     * Many threads missing on the same page at once read it from disk once
+     * and all get the same page.
+     */
+    @Test public void concurrentMissesReadOnce() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        PageId pid = new HeapPageId(hf.getId(), 0);
+        Page[] seen = new Page[THREADS];
+        runConcurrently(THREADS, i -> seen[i] = bp.getPage(new TransactionId(), pid, Permissions.READ_ONLY));
+        assertEquals(1, hf.reads.get());
+        for (Page p : seen)
+            assertSame(seen[0], p);
+    }
+
+    /**
+     * Threads reading different pages through a pool smaller than the table
+     * keep the pool within its bounds and get the right pages back.
+     */
+    @Test public void concurrentReadersWithEviction() throws Exception {
+        BufferPool bp = Database.resetBufferPool(16);
+        int numPages = hf.numPages();
+        runConcurrently(THREADS, i -> {
+            TransactionId tid = new TransactionId();
+            for (int n = 0; n < 200; n++) {
+                PageId pid = new HeapPageId(hf.getId(), (i * 7 + n) % numPages);
+                assertEquals(pid, bp.getPage(tid, pid, Permissions.READ_ONLY).getId());
+            }
+        });
+        assertEquals(THREADS * 200, bp.getHitCount() + bp.getMissCount());
+    }
+
+    /**
+     * Reading a page past the end of the file leaves no frame behind, so
+     * failed reads don't fill up the pool.
+     */
+    @Test public void readsPastEndFreeTheirSlot() throws Exception {
+        BufferPool bp = Database.resetBufferPool(4);
+        TransactionId tid = new TransactionId();
+        int numPages = hf.numPages();
+        for (int n = 0; n < 8; n++)
+            assertNull(bp.getPage(tid, new HeapPageId(hf.getId(), numPages + n), Permissions.READ_ONLY));
+        for (int p = 0; p < 8; p++) {
+            PageId pid = new HeapPageId(hf.getId(), p);
+            assertEquals(pid, bp.getPage(tid, pid, Permissions.READ_ONLY).getId());
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolConcurrencyTest.class);
+    }
+}
@@ -19,6 +19,8 @@ import simpledb.storage.*;
 import simpledb.systemtest.SystemTestUtil;
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
@@ -55,6 +57,27 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	}
     }
     
+    // class that reads the other pages of the file after deleting a tuple,
+    // evicting the page it changed before it is marked dirty
+    static class HeapFileEvicting extends HeapFile {
+
+    	public HeapFileEvicting(File f, TupleDesc td) {
+    		super(f, td);
+    	}
+
+    	@Override
+    	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+    			throws DbException, TransactionAbortedException {
+    		ArrayList<Page> dirtypages = super.deleteTuple(tid, t);
+    		TransactionId reader = new TransactionId();
+    		for (int i = 1; i < numPages(); i++) {
+    			Database.getBufferPool().getPage(reader, new HeapPageId(getId(), i), Permissions.READ_ONLY);
+    		}
+    		Database.getBufferPool().transactionComplete(reader);
+    		return dirtypages;
+    	}
+    }
+    
     /**
      * Set up initial resources for each unit test.
      */
@@ -123,6 +146,23 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
         }
     }
     
+    /**
+     * A delete is not lost if the page it changed is evicted before the
+     * page is marked dirty.
+     */
+    @Test public void deleteSurvivesEviction() throws Exception {
+    	HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504*10, null, null);
+    	HeapFileEvicting hfe = new HeapFileEvicting(hf.getFile(), hf.getTupleDesc());
+    	Database.getCatalog().addTable(hfe, SystemTestUtil.getUUID());
+    	BufferPool bp = Database.resetBufferPool(3);
+
+    	HeapPageId pid = new HeapPageId(hfe.getId(), 0);
+    	Tuple t = ((HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY)).iterator().next();
+    	bp.deleteTuple(tid, t);
+    	HeapPage p = (HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+    	assertEquals(1, p.getNumEmptySlots());
+    }
+
     @Test public void handleManyDirtyPages() throws Exception {
     	HeapFileDuplicates hfd = new HeapFileDuplicates(empty.getFile(), empty.getTupleDesc(), 10);
     	Database.getCatalog().addTable(hfd, SystemTestUtil.getUUID());
@@ -140,6 +180,81 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /** Delete the first tuple of every page of a file, dirtying every page. */
+    private static void deleteFirstTuples(Transaction t, HeapFile hf) throws Exception {
+        List<Tuple> first = new ArrayList<>();
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        while (it.hasNext()) {
+            Tuple tup = it.next();
+            if (tup.getRecordId().getTupleNumber() == 0) {
+                first.add(tup);
+            }
+        }
+        it.close();
+        for (Tuple tup : first) {
+            Database.getBufferPool().deleteTuple(t.getId(), tup);
+        }
+    }
+
+    /**
+     * Under STEAL, a transaction can dirty more pages than the pool holds;
+     * the pages written out early are undone from the log on abort.
+     */
+    @Test public void stealAbort() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 10, null, tuples);
+        BufferPool bp = Database.resetBufferPool(3);
+        bp.setStealMode(true);
+
+        Transaction t = new Transaction();
+        t.start();
+        deleteFirstTuples(t, hf);
+        assertTrue(bp.getStolenPageCount() > 0);
+        // the WAL rule: pages were written only after their records were forced
+        assertTrue(Database.getLogFile().getDurableLsn() > 0);
+        t.abort();
+
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * Under STEAL, the pages of a committed transaction are on disk whether
+     * they were stolen or flushed at commit.
+     */
+    @Test public void stealCommit() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 10, null, null);
+        BufferPool bp = Database.resetBufferPool(3);
+        bp.setStealMode(true);
+
+        Transaction t = new Transaction();
+        t.start();
+        deleteFirstTuples(t, hf);
+        t.commit();
+        assertTrue(bp.getStolenPageCount() > 0);
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        for (int i = 0; i < hf.numPages(); i++) {
+            HeapPage p = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), i));
+            assertEquals(1, p.getNumEmptySlots());
+        }
+    }
+
+    /**
+     * Without STEAL, a transaction cannot dirty more pages than the pool holds.
+     */
+    @Test(expected = DbException.class) public void noStealFillsPool() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 10, null, null);
+        Database.resetBufferPool(3);
+        Transaction t = new Transaction();
+        t.start();
+        try {
+            deleteFirstTuples(t, hf);
+        } finally {
+            t.abort();
+        }
+    }
+
     /**
      * JUnit suite target
      */
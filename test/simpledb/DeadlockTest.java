@@ -7,6 +7,7 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
@@ -219,6 +220,27 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     System.out.println("testUpgradeWriteDeadlock resolved deadlock");
   }
 
+  /**
+   * Unit test that a compatible lock request is not taken for a deadlock.
+   * t1 acquires p0.read; t2 acquires p1.read; t2 attempts p0.write and
+   * waits for t1. t1 then acquires p1.read, which does not wait for t2.
+   */
+  @Test public void testSharedReadNoDeadlock() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid2, p1, Permissions.READ_ONLY);
+
+    LockGrabber lg2Write = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertFalse(lg2Write.acquired());
+
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    bp.transactionComplete(tid1);
+
+    Thread.sleep(POLL_INTERVAL);
+    assertTrue(lg2Write.acquired());
+    bp.transactionComplete(tid2);
+  }
+
   /**
    * JUnit suite target
    */
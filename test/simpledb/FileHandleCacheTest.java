@@ -0,0 +1,145 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.storage.FileHandleCache;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class FileHandleCacheTest extends SimpleDbTestBase {
+
+    private static File tempFile() throws Exception {
+        File f = File.createTempFile("handles", ".dat");
+        f.deleteOnExit();
+        return f;
+    }
+
+    private static ByteBuffer bytes(int value, int length) {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining())
+            buf.put((byte) value);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Writes are visible to reads, and reads past the end of the file
+     * return -1.
+     */
+    @Test public void readWrite() throws Exception {
+        FileHandleCache cache = new FileHandleCache(4);
+        FileHandleCache.Handle handle = cache.open(tempFile());
+        handle.write(bytes(7, 100), 50);
+        assertEquals(150, handle.append(bytes(8, 10)));
+
+        ByteBuffer dst = ByteBuffer.allocate(100);
+        assertEquals(100, handle.read(dst, 50));
+        assertEquals(7, dst.get(99));
+        dst.clear();
+        assertEquals(60, handle.read(dst, 100));
+        assertEquals(8, dst.get(59));
+        dst.clear();
+        assertEquals(-1, handle.read(dst, 160));
+    }
+
+    /**
+     * No more than maxOpen files are open at once; closed files are reopened
+     * when they are used again.
+     */
+    @Test public void boundedOpenFiles() throws Exception {
+        FileHandleCache cache = new FileHandleCache(2);
+        List<FileHandleCache.Handle> handles = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            FileHandleCache.Handle handle = cache.open(tempFile());
+            handle.write(bytes(i, 8), 0);
+            handles.add(handle);
+            assertTrue(cache.openCount() <= 2);
+        }
+        for (int i = 0; i < 5; i++) {
+            ByteBuffer dst = ByteBuffer.allocate(8);
+            assertEquals(8, handles.get(i).read(dst, 0));
+            assertEquals(i, dst.get(0));
+            assertTrue(cache.openCount() <= 2);
+        }
+        cache.closeAll();
+        assertEquals(0, cache.openCount());
+    }
+
+    /**
+     * Threads reading different positions of the same handle at once each
+     * get their own data.
+     */
+    @Test public void concurrentPositionalReads() throws Exception {
+        FileHandleCache cache = new FileHandleCache(1);
+        FileHandleCache.Handle handle = cache.open(tempFile());
+        final int blocks = 64;
+        for (int b = 0; b < blocks; b++)
+            handle.write(bytes(b, 256), b * 256L);
+
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final int offset = t;
+            Thread thread = new Thread(() -> {
+                try {
+                    ByteBuffer dst = ByteBuffer.allocate(256);
+                    for (int n = 0; n < 1000; n++) {
+                        int b = (offset + n) % blocks;
+                        dst.clear();
+                        assertEquals(256, handle.read(dst, b * 256L));
+                        assertEquals(b, dst.get(0));
+                        assertEquals(b, dst.get(255));
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertNull(error.get());
+    }
+
+    /**
+     * A channel closed by the interrupt of a thread using it is reopened
+     * for the next access.
+     */
+    @Test public void reopenAfterInterrupt() throws Exception {
+        FileHandleCache cache = new FileHandleCache(4);
+        FileHandleCache.Handle handle = cache.open(tempFile());
+        handle.write(bytes(7, 100), 0);
+
+        Thread.currentThread().interrupt();
+        try {
+            handle.read(ByteBuffer.allocate(100), 0);
+            fail("expected the interrupt to close the channel");
+        } catch (ClosedByInterruptException e) {
+            // expected
+        } finally {
+            Thread.interrupted();
+        }
+
+        ByteBuffer dst = ByteBuffer.allocate(100);
+        assertEquals(100, handle.read(dst, 0));
+        assertEquals(7, dst.get(99));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FileHandleCacheTest.class);
+    }
+}
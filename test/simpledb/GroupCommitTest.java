@@ -0,0 +1,100 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.HeapFile;
+import simpledb.storage.LogFile;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.Transaction;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class GroupCommitTest extends SimpleDbTestBase {
+
+    private static HeapFile emptyFile() throws Exception {
+        File f = File.createTempFile("groupcommit", ".dat");
+        f.deleteOnExit();
+        return Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+    }
+
+    /**
+     * Committing a transaction that dirtied several pages forces the log
+     * once for the pages and once for the commit record.
+     */
+    @Test public void onePageForcePerCommit() throws Exception {
+        HeapFile hf = emptyFile();
+        LogFile log = Database.getLogFile();
+        Transaction t = new Transaction();
+        t.start();
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < 504 * 3; i++) {
+            tuples.add(Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().insertTuples(t.getId(), hf.getId(), tuples);
+        long forces = log.getForceCount();
+        t.commit();
+        assertEquals(forces + 2, log.getForceCount());
+        assertEquals(1, log.getCommitCount());
+        assertTrue(log.getDurableLsn() >= log.getEndLsn());
+    }
+
+    /**
+     * Concurrent commits share forces of the log.
+     */
+    @Test public void concurrentCommitsShareForces() throws Exception {
+        final int threads = 8;
+        final int commits = 10;
+        LogFile log = Database.getLogFile();
+        log.setGroupCommitWindow(2000);
+        List<HeapFile> files = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            files.add(emptyFile());
+        }
+
+        AtomicReference<Exception> error = new AtomicReference<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final HeapFile hf = files.get(i);
+            Thread worker = new Thread(() -> {
+                try {
+                    for (int n = 0; n < commits; n++) {
+                        Transaction t = new Transaction();
+                        t.start();
+                        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(n, 2));
+                        t.commit();
+                    }
+                } catch (Exception e) {
+                    error.compareAndSet(null, e);
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertNull(error.get());
+        assertEquals(threads * commits, log.getCommitCount());
+        // without grouping, each transaction forces twice
+        assertTrue(log.getForceCount() < threads * commits);
+        assertTrue(log.getAverageCommitLatency() > 0);
+        assertTrue(log.getDurableLsn() >= log.getEndLsn());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
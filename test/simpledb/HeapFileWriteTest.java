@@ -7,12 +7,16 @@ import org.junit.Test;
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
+import simpledb.common.Permissions;
 import simpledb.common.Utility;
 import simpledb.storage.*;
 import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
     private TransactionId tid;
@@ -90,6 +94,71 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         it.close();
     }
 
+    /**
+     * An insert goes straight to the page with room, without reading or
+     * locking the full pages in front of it.
+     */
+    @Test public void insertUsesFreeSpace() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 10, null, null);
+        assertEquals(10, f.numPages());
+        f.writePage(new HeapPage(new HeapPageId(f.getId(), 5), HeapPage.createEmptyPageData()));
+
+        long misses = Database.getBufferPool().getMissCount();
+        Database.getBufferPool().insertTuple(tid, f.getId(), Utility.getHeapTuple(1, 2));
+        assertEquals(10, f.numPages());
+        assertEquals(misses + 1, Database.getBufferPool().getMissCount());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i == 5, Database.getBufferPool().holdsLock(tid, new HeapPageId(f.getId(), i)));
+        }
+    }
+
+    /**
+     * A batch fills one page after another and returns each page once.
+     */
+    @Test public void insertTuples() throws Exception {
+        List<Tuple> batch = new ArrayList<>();
+        for (int i = 0; i < 504 * 3 + 1; ++i) {
+            batch.add(Utility.getHeapTuple(i, 2));
+        }
+        List<Page> pages = empty.insertTuples(tid, batch);
+        assertEquals(4, pages.size());
+        assertEquals(4, empty.numPages());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, pages.get(i).getId().getPageNumber());
+        }
+        assertEquals(503, ((HeapPage) pages.get(3)).getNumEmptySlots());
+        assertEquals(new RecordId(pages.get(1).getId(), 0), batch.get(504).getRecordId());
+    }
+
+    /**
+     * A batch that aborts on the lock of its second page leaves no tuple
+     * on the page it filled first.
+     */
+    @Test public void abortedBatchLeavesNoTuples() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 10, null, null);
+        f.writePage(new HeapPage(new HeapPageId(f.getId(), 5), HeapPage.createEmptyPageData()));
+        f.writePage(new HeapPage(new HeapPageId(f.getId(), 7), HeapPage.createEmptyPageData()));
+        TransactionId other = new TransactionId();
+        Database.getBufferPool().getPage(other, new HeapPageId(f.getId(), 7), Permissions.READ_WRITE);
+
+        TransactionId batch = new TransactionId();
+        Database.getBufferPool().setLockPolicy(batch, LockManager.LockPolicy.NO_WAIT);
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < 600; ++i) {
+            tuples.add(Utility.getHeapTuple(i, 2));
+        }
+        try {
+            Database.getBufferPool().insertTuples(batch, f.getId(), tuples);
+            fail("expected the batch to abort on page 7");
+        } catch (TransactionAbortedException e) {
+            Database.getBufferPool().transactionComplete(batch, false);
+        }
+        Database.getBufferPool().transactionComplete(other);
+
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(f.getId(), 5), Permissions.READ_ONLY);
+        assertEquals(504, page.getNumEmptySlots());
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,279 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Permissions;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LockManager;
+import simpledb.storage.LockManager.LockMode;
+import simpledb.storage.PageId;
+import simpledb.storage.RecordId;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class LockManagerTest extends SimpleDbTestBase {
+    private LockManager lm;
+    private PageId p0, p1;
+
+    @Before public void setUp() {
+        lm = new LockManager();
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(1, 1);
+    }
+
+    /**
+     * A conflicting request parks instead of spinning, and is granted
+     * when the holder releases its lock.
+     */
+    @Test public void waiterParksUntilRelease() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquireLock(t1, p0, Permissions.READ_WRITE);
+
+        AtomicReference<Exception> error = new AtomicReference<>();
+        Thread waiter = TestUtil.acquireInThread(lm, t2, p0, Permissions.READ_ONLY, error);
+        TestUtil.awaitWaiting(waiter);
+        assertFalse(lm.holdsLock(t2, p0));
+
+        lm.releaseAllLock(t1);
+        waiter.join(10000);
+        assertNull(error.get());
+        assertTrue(lm.holdsLock(t2, p0));
+        assertEquals(1, lm.getWaitCount());
+        assertTrue(lm.getWaitMillis() > 0);
+    }
+
+    /**
+     * Two transactions waiting for each other: the younger one is aborted
+     * and the older one gets its lock once the younger releases.
+     */
+    @Test public void youngestVictim() throws Exception {
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.acquireLock(older, p0, Permissions.READ_ONLY);
+        lm.acquireLock(younger, p1, Permissions.READ_ONLY);
+
+        AtomicReference<Exception> olderError = new AtomicReference<>();
+        Thread o = TestUtil.acquireInThread(lm, older, p1, Permissions.READ_WRITE, olderError);
+        TestUtil.awaitWaiting(o);
+        AtomicReference<Exception> youngerError = new AtomicReference<>();
+        Thread y = TestUtil.acquireInThread(lm, younger, p0, Permissions.READ_WRITE, youngerError);
+        y.join(10000);
+        assertTrue(youngerError.get() instanceof TransactionAbortedException);
+        assertEquals(1, lm.getDeadlockCount());
+
+        lm.releaseAllLock(younger);
+        o.join(10000);
+        assertNull(olderError.get());
+        assertTrue(lm.holdsLock(older, p1));
+    }
+
+    /**
+     * A transaction's locks are tracked by page, so releasing them leaves
+     * the locks of other transactions, in any stripe, alone.
+     */
+    @Test public void releaseOnlyHeldPages() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        for (int i = 0; i < 100; i++) {
+            lm.acquireLock(t1, new HeapPageId(2, i), Permissions.READ_ONLY);
+        }
+        for (int i = 0; i < 3; i++) {
+            lm.acquireLock(t2, new HeapPageId(3, i), Permissions.READ_WRITE);
+        }
+        lm.acquireLock(t2, new HeapPageId(2, 0), Permissions.READ_ONLY);
+        assertEquals(100, lm.getLockedPages(t1).size());
+        assertEquals(4, lm.getLockedPages(t2).size());
+
+        lm.releaseLock(t2, new HeapPageId(3, 0));
+        assertEquals(3, lm.getLockedPages(t2).size());
+        lm.releaseAllLock(t2);
+        assertTrue(lm.getLockedPages(t2).isEmpty());
+        for (int i = 0; i < 3; i++) {
+            assertFalse(lm.holdsLock(t2, new HeapPageId(3, i)));
+        }
+        assertFalse(lm.holdsLock(t2, new HeapPageId(2, 0)));
+        for (int i = 0; i < 100; i++) {
+            assertTrue(lm.holdsLock(t1, new HeapPageId(2, i)));
+        }
+    }
+
+    /**
+     * Two threads locking different pages of one table go through the
+     * table's stripe only for their first page, or to upgrade their
+     * intention lock; their other requests take only page monitors.
+     */
+    @Test public void pageLocksSkipHeldIntention() throws Exception {
+        TransactionId reader = new TransactionId();
+        TransactionId writer = new TransactionId();
+        AtomicReference<Exception> error = new AtomicReference<>();
+        Thread r = new Thread(() -> {
+            try {
+                for (int i = 0; i < 200; i += 2) {
+                    lm.acquireLock(reader, new HeapPageId(4, i), Permissions.READ_ONLY);
+                }
+            } catch (TransactionAbortedException e) {
+                error.set(e);
+            }
+        });
+        Thread w = new Thread(() -> {
+            try {
+                for (int i = 1; i < 200; i += 2) {
+                    lm.acquireLock(writer, new HeapPageId(4, i), Permissions.READ_WRITE);
+                }
+            } catch (TransactionAbortedException e) {
+                error.set(e);
+            }
+        });
+        r.start();
+        w.start();
+        r.join(10000);
+        w.join(10000);
+        assertNull(error.get());
+        assertEquals(2, lm.getTableRequestCount());
+        assertEquals(LockMode.IS, lm.getTableLock(reader, 4));
+        assertEquals(LockMode.IX, lm.getTableLock(writer, 4));
+
+        lm.acquireLock(writer, new HeapPageId(4, 201), Permissions.READ_ONLY);
+        assertEquals(2, lm.getTableRequestCount());
+        lm.acquireLock(reader, new HeapPageId(4, 202), Permissions.READ_WRITE);
+        assertEquals(3, lm.getTableRequestCount());
+        assertEquals(LockMode.IX, lm.getTableLock(reader, 4));
+    }
+
+    /**
+     * Page locks take intention locks on their table, which conflict with
+     * a table lock in S or X mode.
+     */
+    @Test public void intentionLocks() throws Exception {
+        assertEquals(LockMode.SIX, LockMode.S.combine(LockMode.IX));
+        assertTrue(LockMode.IS.isCompatible(LockMode.SIX));
+        assertFalse(LockMode.IX.isCompatible(LockMode.S));
+
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquireLock(t1, p0, Permissions.READ_WRITE);
+        assertEquals(LockMode.IX, lm.getTableLock(t1, 1));
+        lm.acquireLock(t2, p1, Permissions.READ_ONLY);
+        assertEquals(LockMode.IS, lm.getTableLock(t2, 1));
+
+        AtomicReference<Exception> error = new AtomicReference<>();
+        Thread t = new Thread(() -> {
+            try {
+                lm.acquireTableLock(t2, 1, LockMode.S);
+            } catch (TransactionAbortedException e) {
+                error.set(e);
+            }
+        });
+        t.start();
+        TestUtil.awaitWaiting(t);
+        lm.releaseAllLock(t1);
+        t.join(10000);
+        assertNull(error.get());
+        assertEquals(LockMode.S, lm.getTableLock(t2, 1));
+        assertNull(lm.getTableLock(t1, 1));
+    }
+
+    /**
+     * Reading more pages of a table than the threshold escalates to a
+     * shared table lock, which covers the remaining pages.
+     */
+    @Test public void escalateToTableLock() throws Exception {
+        lm.setEscalationThreshold(10);
+        TransactionId t1 = new TransactionId();
+        for (int i = 0; i < 20; i++) {
+            lm.acquireLock(t1, new HeapPageId(2, i), Permissions.READ_ONLY);
+        }
+        assertEquals(1, lm.getEscalationCount());
+        assertEquals(LockMode.S, lm.getTableLock(t1, 2));
+        assertTrue(lm.getLockedPages(t1).isEmpty());
+        assertTrue(lm.holdsLock(t1, new HeapPageId(2, 15)));
+        assertTrue(lm.peekLock(new HeapPageId(2, 15)).isEmpty());
+
+        // a writer on the table waits for the table lock
+        TransactionId t2 = new TransactionId();
+        AtomicReference<Exception> error = new AtomicReference<>();
+        Thread w = TestUtil.acquireInThread(lm, t2, new HeapPageId(2, 30), Permissions.READ_WRITE, error);
+        TestUtil.awaitWaiting(w);
+        lm.releaseAllLock(t1);
+        w.join(10000);
+        assertNull(error.get());
+        assertTrue(lm.holdsLock(t2, new HeapPageId(2, 30)));
+    }
+
+    /** Escalation does not wait: with a writer on the table the reader keeps its page locks. */
+    @Test public void escalationDeferredByConflict() throws Exception {
+        lm.setEscalationThreshold(10);
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquireLock(t2, new HeapPageId(2, 100), Permissions.READ_WRITE);
+        for (int i = 0; i < 20; i++) {
+            lm.acquireLock(t1, new HeapPageId(2, i), Permissions.READ_ONLY);
+        }
+        assertEquals(0, lm.getEscalationCount());
+        assertEquals(LockMode.IS, lm.getTableLock(t1, 2));
+        assertEquals(20, lm.getLockedPages(t1).size());
+
+        lm.releaseAllLock(t2);
+        lm.acquireLock(t1, new HeapPageId(2, 20), Permissions.READ_ONLY);
+        assertEquals(1, lm.getEscalationCount());
+        assertEquals(LockMode.S, lm.getTableLock(t1, 2));
+    }
+
+    /**
+     * Record locks: readers and writers of different records of a page
+     * don't wait for each other; a writer of a record waits for its
+     * readers.
+     */
+    @Test public void recordLocks() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        RecordId r0 = new RecordId(p0, 0);
+        RecordId r1 = new RecordId(p0, 1);
+        lm.acquireRecordLock(t1, r0, Permissions.READ_ONLY);
+        assertEquals(LockMode.IS, lm.getPageLock(t1, p0));
+        assertEquals(LockMode.S, lm.getRecordLock(t1, r0));
+
+        lm.acquirePageLock(t2, p0, LockMode.SIX);
+        lm.acquireRecordLock(t2, r1, Permissions.READ_WRITE);
+        assertEquals(LockMode.IX, lm.getTableLock(t2, 1));
+        assertEquals(Collections.singleton(r1), lm.getRecordsWrittenByOthers(t1, p0));
+        assertTrue(lm.getRecordsWrittenByOthers(t2, p0).isEmpty());
+
+        AtomicReference<Exception> error = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            try {
+                lm.acquireRecordLock(t2, r0, Permissions.READ_WRITE);
+            } catch (TransactionAbortedException e) {
+                error.set(e);
+            }
+        });
+        writer.start();
+        TestUtil.awaitWaiting(writer);
+        assertEquals(LockMode.S, lm.getRecordLock(t1, r0));
+
+        lm.releaseAllLock(t1);
+        writer.join(10000);
+        assertNull(error.get());
+        assertEquals(LockMode.X, lm.getRecordLock(t2, r0));
+        lm.releaseAllLock(t2);
+        assertNull(lm.getPageLock(t2, p0));
+        assertNull(lm.getRecordLock(t2, r1));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -0,0 +1,170 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.*;
+import simpledb.storage.LockManager.LockPolicy;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class LockPolicyTest extends SimpleDbTestBase {
+    private LockManager lm;
+    private PageId p0, p1;
+    private TransactionId older, younger;
+
+    @Before public void setUp() {
+        lm = new LockManager();
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(1, 1);
+        older = new TransactionId();
+        younger = new TransactionId();
+    }
+
+    private void assertAborts(TransactionId tid, PageId pid) {
+        try {
+            lm.acquireLock(tid, pid, Permissions.READ_WRITE);
+            fail("expected the lock request to abort");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+    }
+
+    /** A NO_WAIT transaction aborts at once on a conflict. */
+    @Test public void noWait() throws Exception {
+        lm.acquireLock(older, p0, Permissions.READ_ONLY);
+        lm.setPolicy(younger, LockPolicy.NO_WAIT);
+        lm.acquireLock(younger, p0, Permissions.READ_ONLY);
+        assertAborts(younger, p0);
+        assertEquals(0, lm.getWaitCount());
+        assertEquals(1, lm.getPolicyAbortCount());
+    }
+
+    /** With a TIMEOUT policy, a request aborts once it has waited the lock timeout. */
+    @Test public void timeout() throws Exception {
+        lm.setLockTimeout(100);
+        lm.acquireLock(older, p0, Permissions.READ_WRITE);
+        lm.setPolicy(younger, LockPolicy.TIMEOUT);
+        long start = System.currentTimeMillis();
+        assertAborts(younger, p0);
+        assertTrue(System.currentTimeMillis() - start >= 100);
+        assertEquals(1, lm.getWaitCount());
+        assertEquals(1, lm.getPolicyAbortCount());
+    }
+
+    /** Under WAIT_DIE an older transaction waits for a younger one, which dies rather than wait back. */
+    @Test public void waitDie() throws Exception {
+        lm.setPolicy(older, LockPolicy.WAIT_DIE);
+        lm.setPolicy(younger, LockPolicy.WAIT_DIE);
+        lm.acquireLock(older, p0, Permissions.READ_WRITE);
+        lm.acquireLock(younger, p1, Permissions.READ_WRITE);
+
+        AtomicReference<Exception> error = new AtomicReference<>();
+        Thread waiter = TestUtil.acquireInThread(lm, older, p1, Permissions.READ_WRITE, error);
+        TestUtil.awaitWaiting(waiter);
+
+        assertAborts(younger, p0);
+        lm.releaseAllLock(younger);
+        waiter.join(10000);
+        assertNull(error.get());
+        assertTrue(lm.holdsLock(older, p1));
+        assertEquals(0, lm.getDeadlockCount());
+    }
+
+    /**
+     * Under WOUND_WAIT a younger transaction waits for an older one, and
+     * an older one aborts the younger in its way.
+     */
+    @Test public void woundWait() throws Exception {
+        lm.setPolicy(older, LockPolicy.WOUND_WAIT);
+        lm.setPolicy(younger, LockPolicy.WOUND_WAIT);
+        lm.acquireLock(older, p0, Permissions.READ_WRITE);
+        lm.acquireLock(younger, p1, Permissions.READ_WRITE);
+
+        AtomicReference<Exception> youngerError = new AtomicReference<>();
+        Thread y = TestUtil.acquireInThread(lm, younger, p0, Permissions.READ_WRITE, youngerError);
+        TestUtil.awaitWaiting(y);
+
+        AtomicReference<Exception> olderError = new AtomicReference<>();
+        Thread o = TestUtil.acquireInThread(lm, older, p1, Permissions.READ_WRITE, olderError);
+        y.join(10000);
+        o.join(10000);
+        assertTrue(youngerError.get() instanceof TransactionAbortedException);
+        assertNull(olderError.get());
+        assertTrue(lm.holdsLock(older, p1));
+        assertEquals(1, lm.getPolicyAbortCount());
+        assertEquals(0, lm.getDeadlockCount());
+    }
+
+    /**
+     * An interrupted waiter aborts, and its abort still writes to the log:
+     * the interrupt must not be left set to close the log's channel.
+     */
+    @Test public void interruptedWaiterAborts() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, tuples);
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.setStealMode(true);
+        PageId page0 = new HeapPageId(hf.getId(), 0);
+        PageId page1 = new HeapPageId(hf.getId(), 1);
+
+        Transaction holder = new Transaction();
+        holder.start();
+        bp.getPage(holder.getId(), page0, Permissions.READ_WRITE);
+
+        Transaction waiter = new Transaction();
+        waiter.start();
+        AtomicReference<Exception> error = new AtomicReference<>();
+        Thread w = new Thread(() -> {
+            try {
+                HeapPage p = (HeapPage) bp.getPage(waiter.getId(), page1, Permissions.READ_WRITE);
+                bp.deleteTuple(waiter.getId(), p.iterator().next());
+                bp.getPage(waiter.getId(), page0, Permissions.READ_WRITE);
+                error.set(new IllegalStateException("the lock request did not abort"));
+            } catch (TransactionAbortedException e) {
+                try {
+                    waiter.abort();
+                } catch (Exception abortError) {
+                    error.set(abortError);
+                }
+            } catch (Exception e) {
+                error.set(e);
+            }
+        });
+        w.start();
+        TestUtil.awaitWaiting(w);
+        w.interrupt();
+        w.join(10000);
+        assertNull(error.get());
+        holder.commit();
+
+        Transaction t = new Transaction();
+        t.start();
+        HeapPage p = (HeapPage) bp.getPage(t.getId(), page0, Permissions.READ_WRITE);
+        Tuple tup = p.iterator().next();
+        bp.deleteTuple(t.getId(), tup);
+        tuples.remove(SystemTestUtil.tupleToList(tup));
+        t.commit();
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockPolicyTest.class);
+    }
+}
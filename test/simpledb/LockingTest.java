@@ -3,7 +3,9 @@ package simpledb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
@@ -193,6 +195,18 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for BufferPool.holdsLock() and BufferPool.unsafeReleasePage().
+   * A page nobody has locked is not held, and releasing a lock drops it.
+   */
+  @Test public void holdThenRelease() throws Exception {
+    assertFalse(bp.holdsLock(tid1, p0));
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    assertTrue(bp.holdsLock(tid1, p0));
+    bp.unsafeReleasePage(tid1, p0);
+    assertFalse(bp.holdsLock(tid1, p0));
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,193 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.Transaction;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LogRecordTest extends SimpleDbTestBase {
+
+    private static File emptyFile() throws IOException {
+        File f = File.createTempFile("logrecord", ".dat");
+        f.deleteOnExit();
+        Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        return f;
+    }
+
+    /**
+     * Inserting one tuple logs the changed bytes of the page, not two full
+     * page images, and the insert is redone from them.
+     */
+    @Test public void compactUpdateRecord() throws Exception {
+        File f = emptyFile();
+        HeapFile hf = Utility.openHeapFile(2, f);
+        LogFile log = Database.getLogFile();
+
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(7, 2));
+        t.commit();
+        assertEquals(1, log.getUpdateRecordCount());
+        // header byte, tuple and record overhead
+        assertTrue(log.getUpdateLogBytes() < 64);
+
+        // undo the insert behind the log's back, then redo it by recovery
+        hf.writePage(new HeapPage(new HeapPageId(hf.getId(), 0), HeapPage.createEmptyPageData()));
+        Database.reset();
+        hf = Utility.openHeapFile(2, f);
+        Database.getLogFile().recover();
+        HeapPage p = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        assertEquals(503, p.getNumEmptySlots());
+        assertTrue(Database.getLogFile().getLastRecoveryMillis() > 0);
+    }
+
+    /**
+     * Records are buffered and written to the log file when it is forced,
+     * not field by field.
+     */
+    @Test public void bufferedWrites() throws Exception {
+        File f = emptyFile();
+        HeapFile hf = Utility.openHeapFile(2, f);
+        LogFile log = Database.getLogFile();
+
+        for (int i = 0; i < 10; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(i, 2));
+            t.commit();
+        }
+        // 30 records, each written with the force that made it durable
+        assertTrue(log.getTotalRecords() >= 30);
+        assertTrue(log.getLogWriteCount() <= log.getForceCount());
+        assertTrue(log.getDurableLsn() >= log.getEndLsn());
+
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(10, 2));
+        t.abort();
+        assertEquals(494, ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0))).getNumEmptySlots());
+    }
+
+    private static List<Tuple> heapTuples(int from, int count) {
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = from; i < from + count; i++) {
+            tuples.add(Utility.getHeapTuple(i, 2));
+        }
+        return tuples;
+    }
+
+    /**
+     * Records span small log segments, and a checkpoint deletes the
+     * segments before it without moving the records after it.
+     */
+    @Test public void truncateDeletesSegments() throws Exception {
+        LogFile log = Database.getLogFile();
+        log.setSegmentSize(4096);
+        File f = emptyFile();
+        HeapFile hf = Utility.openHeapFile(2, f);
+
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuples(t.getId(), hf.getId(), heapTuples(0, 504 * 3));
+        t.commit();
+
+        // rolled back from records that cross segment boundaries
+        Transaction aborted = new Transaction();
+        aborted.start();
+        Database.getBufferPool().insertTuples(aborted.getId(), hf.getId(), heapTuples(0, 504));
+        Database.getBufferPool().flushPages(aborted.getId());
+        aborted.abort();
+        assertEquals(504, ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), 3))).getNumEmptySlots());
+
+        int segments = log.getSegmentCount();
+        assertTrue(segments > 3);
+        log.logCheckpoint();
+        assertTrue(log.getTruncatedSegmentCount() >= segments - 1);
+        assertEquals(segments - log.getTruncatedSegmentCount(), log.getSegmentCount());
+
+        // crash and recover from the remaining segment
+        Database.reset();
+        hf = Utility.openHeapFile(2, f);
+        Database.getLogFile().recover();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), i))).getNumEmptySlots());
+        }
+    }
+
+    private static void writePage(DataOutputStream out, HeapPage page) throws IOException {
+        out.writeUTF(HeapPage.class.getName());
+        out.writeUTF(HeapPageId.class.getName());
+        int[] id = page.getId().serialize();
+        out.writeInt(id.length);
+        for (int i : id) {
+            out.writeInt(i);
+        }
+        byte[] data = page.getPageData();
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    /**
+     * A log written before update records were compact, with full page
+     * images and class names, is still recovered.
+     */
+    @Test public void recoverOldFormat() throws Exception {
+        File f = emptyFile();
+        HeapFile hf = Utility.openHeapFile(2, f);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage before = new HeapPage(pid, HeapPage.createEmptyPageData());
+        HeapPage after = new HeapPage(pid, HeapPage.createEmptyPageData());
+        after.insertTuple(Utility.getHeapTuple(7, 2));
+
+        // checkpoint pointer, then BEGIN, UPDATE and COMMIT of transaction 1
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream("log"))) {
+            out.writeLong(-1);
+            out.writeInt(4);
+            out.writeLong(1);
+            out.writeLong(8);
+            long update = out.size();
+            out.writeInt(3);
+            out.writeLong(1);
+            writePage(out, before);
+            writePage(out, after);
+            out.writeLong(update);
+            long commit = out.size();
+            out.writeInt(2);
+            out.writeLong(1);
+            out.writeLong(commit);
+        }
+
+        Database.reset();
+        hf = Utility.openHeapFile(2, f);
+        Database.getLogFile().recover();
+        assertArrayEquals(after.getPageData(), hf.readPage(pid).getPageData());
+
+        // new records are appended after the old ones
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(8, 2));
+        t.commit();
+        assertEquals(502, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogRecordTest.class);
+    }
+}
@@ -0,0 +1,100 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MappedHeapFileTest extends SimpleDbTestBase {
+
+    private File f;
+    private List<List<Integer>> tuples;
+    private MappedHeapFile mf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<>();
+        f = SystemTestUtil.createRandomHeapFileUnopened(2, 2000, 1 << 16, null, tuples);
+        mf = new MappedHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(mf, SystemTestUtil.getUUID());
+    }
+
+    /**
+     * Pages read through the mapping are the same as pages read from the
+     * file.
+     */
+    @Test public void readPage() throws Exception {
+        HeapFile hf = new HeapFile(f, Utility.getTupleDesc(2));
+        for (int n = 0; n < mf.numPages(); n++) {
+            HeapPageId pid = new HeapPageId(mf.getId(), n);
+            assertTrue(Arrays.equals(hf.readPage(pid).getPageData(), mf.readPage(pid).getPageData()));
+        }
+        SystemTestUtil.matchTuples(mf, tuples);
+    }
+
+    /**
+     * Pages appended to the file after it was mapped can be read.
+     */
+    @Test public void growth() throws Exception {
+        TransactionId tid = new TransactionId();
+        // map the file
+        mf.readPage(new HeapPageId(mf.getId(), 0));
+        int pages = mf.numPages();
+        while (mf.numPages() == pages) {
+            Tuple t = new Tuple(mf.getTupleDesc());
+            t.setField(0, new IntField(1));
+            t.setField(1, new IntField(2));
+            Database.getBufferPool().insertTuple(tid, mf.getId(), t);
+            tuples.add(Arrays.asList(1, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid, true);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SystemTestUtil.matchTuples(mf, tuples);
+        HeapPage last = (HeapPage) Database.getBufferPool().getPage(new TransactionId(),
+                new HeapPageId(mf.getId(), pages), Permissions.READ_ONLY);
+        assertEquals(new IntField(1), last.iterator().next().getField(0));
+    }
+
+    /**
+     * Tables marked mmap in the catalog file are read through a mapping.
+     */
+    @Test public void catalogOption() throws Exception {
+        File dir = Files.createTempDirectory("catalog").toFile();
+        dir.deleteOnExit();
+        File catalog = new File(dir, "catalog.txt");
+        catalog.deleteOnExit();
+        try (FileWriter w = new FileWriter(catalog)) {
+            w.write("plain (a int, b int)\n");
+            w.write("mapped (a int, b int) mmap\n");
+        }
+        Database.getCatalog().loadSchema(catalog.getAbsolutePath());
+        DbFile plain = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId("plain"));
+        DbFile mapped = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId("mapped"));
+        assertFalse(plain instanceof MappedHeapFile);
+        assertTrue(mapped instanceof MappedHeapFile);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MappedHeapFileTest.class);
+    }
+}
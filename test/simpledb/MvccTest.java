@@ -0,0 +1,111 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MvccTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private List<List<Integer>> tuples;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<>();
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, tuples);
+        Database.getBufferPool().setMvccMode(true);
+    }
+
+    /** Delete the first tuple of every page, returning the tuples left. */
+    private List<List<Integer>> deleteFirstSlots(Transaction t) throws Exception {
+        List<List<Integer>> left = new ArrayList<>(tuples);
+        List<Tuple> deleted = new ArrayList<>();
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        while (it.hasNext()) {
+            Tuple tup = it.next();
+            if (tup.getRecordId().getTupleNumber() == 0) {
+                deleted.add(tup);
+            }
+        }
+        it.close();
+        for (Tuple tup : deleted) {
+            Database.getBufferPool().deleteTuple(t.getId(), tup);
+            left.remove(SystemTestUtil.tupleToList(tup));
+        }
+        return left;
+    }
+
+    /**
+     * A snapshot reads past the locks of an active writer and keeps seeing
+     * the database as of its start after the writer commits; its versions
+     * are collected when it ends.
+     */
+    @Test public void snapshotIsolation() throws Exception {
+        BufferPool pool = Database.getBufferPool();
+        Transaction reader = new Transaction(true);
+        reader.start();
+
+        Transaction writer = new Transaction();
+        writer.start();
+        List<List<Integer>> left = deleteFirstSlots(writer);
+        // the writer holds exclusive locks on every page
+        SystemTestUtil.matchTuples(hf, reader.getId(), tuples);
+
+        writer.commit();
+        assertEquals(4, pool.getPageVersionCount());
+        SystemTestUtil.matchTuples(hf, reader.getId(), tuples);
+
+        Transaction later = new Transaction(true);
+        later.start();
+        SystemTestUtil.matchTuples(hf, later.getId(), left);
+
+        reader.commit();
+        assertEquals(0, pool.getPageVersionCount());
+        assertEquals(4, pool.getCollectedVersionCount());
+        SystemTestUtil.matchTuples(hf, later.getId(), left);
+        later.commit();
+    }
+
+    /** An aborted writer leaves no versions behind, and snapshots never see its changes. */
+    @Test public void abortedWriter() throws Exception {
+        Transaction reader = new Transaction(true);
+        reader.start();
+        Transaction writer = new Transaction();
+        writer.start();
+        deleteFirstSlots(writer);
+        writer.abort();
+        assertEquals(0, Database.getBufferPool().getPageVersionCount());
+        SystemTestUtil.matchTuples(hf, reader.getId(), tuples);
+        reader.commit();
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /** A read-only transaction reading a snapshot cannot write. */
+    @Test(expected = DbException.class) public void snapshotCannotWrite() throws Exception {
+        Transaction reader = new Transaction(true);
+        reader.start();
+        Database.getBufferPool().getPage(reader.getId(), new HeapPageId(hf.getId(), 0),
+                Permissions.READ_WRITE);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MvccTest.class);
+    }
+}
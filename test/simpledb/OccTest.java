@@ -0,0 +1,202 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class OccTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private List<List<Integer>> tuples;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<>();
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, tuples);
+    }
+
+    private Transaction optimistic() {
+        Transaction t = new Transaction();
+        t.setOptimistic(true);
+        t.start();
+        return t;
+    }
+
+    /** Delete the first tuple of a page, returning it. */
+    private Tuple deleteFirst(Transaction t, int pageNo) throws Exception {
+        BufferPool pool = Database.getBufferPool();
+        HeapPage page = (HeapPage) pool.getPage(t.getId(), new HeapPageId(hf.getId(), pageNo), Permissions.READ_WRITE);
+        Tuple tup = page.iterator().next();
+        pool.deleteTuple(t.getId(), tup);
+        return tup;
+    }
+
+    /**
+     * An optimistic transaction writes private copies without locking, so
+     * others see its writes only once it commits.
+     */
+    @Test public void privateWritesUntilCommit() throws Exception {
+        List<List<Integer>> before = new ArrayList<>(tuples);
+        Transaction t = optimistic();
+        for (int p = 0; p < 4; p++) {
+            tuples.remove(SystemTestUtil.tupleToList(deleteFirst(t, p)));
+        }
+        // a locking reader neither waits for it nor sees its writes
+        Transaction reader = new Transaction();
+        reader.start();
+        SystemTestUtil.matchTuples(hf, reader.getId(), before);
+        reader.commit();
+
+        t.commit();
+        assertEquals(1, Database.getBufferPool().getOptimisticValidationCount());
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * A page read by an optimistic transaction changed before it
+     * committed: it fails validation and none of its writes are seen.
+     */
+    @Test public void conflictAborts() throws Exception {
+        Transaction t1 = optimistic();
+        Database.getBufferPool().getPage(t1.getId(), new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        deleteFirst(t1, 1);
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        tuples.remove(SystemTestUtil.tupleToList(deleteFirst(t2, 0)));
+        t2.commit();
+
+        try {
+            t1.commit();
+            fail("expected the optimistic transaction to fail validation");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertEquals(1, Database.getBufferPool().getOptimisticConflictCount());
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /** A page read by an optimistic transaction is write locked by an active transaction. */
+    @Test public void activeWriterConflicts() throws Exception {
+        Transaction t2 = new Transaction();
+        t2.start();
+        deleteFirst(t2, 0);
+
+        Transaction t1 = optimistic();
+        Database.getBufferPool().getPage(t1.getId(), new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        try {
+            t1.commit();
+            fail("expected the optimistic transaction to fail validation");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        t2.abort();
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * Run short transactions, each reading a few pages and moving one
+     * tuple, from several threads; retry them when they abort.
+     *
+     * @return the number of aborts
+     */
+    static long runContended(HeapFile hf, boolean optimistic, int threads, int perThread) throws Exception {
+        AtomicLong aborts = new AtomicLong(0);
+        List<Thread> workers = new ArrayList<>();
+        List<Exception> errors = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final Random rnd = new Random(i);
+            Thread w = new Thread(() -> {
+                try {
+                    for (int n = 0; n < perThread; n++) {
+                        while (true) {
+                            Transaction t = new Transaction();
+                            t.setOptimistic(optimistic);
+                            t.start();
+                            try {
+                                pointTransaction(hf, t, rnd);
+                                t.commit();
+                                break;
+                            } catch (TransactionAbortedException e) {
+                                aborts.incrementAndGet();
+                                if (!optimistic) {
+                                    t.abort();
+                                }
+                            }
+                        }
+                    }
+                } catch (Exception e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            });
+            workers.add(w);
+            w.start();
+        }
+        for (Thread w : workers) {
+            w.join();
+        }
+        if (!errors.isEmpty()) {
+            throw errors.get(0);
+        }
+        return aborts.get();
+    }
+
+    private static void pointTransaction(HeapFile hf, Transaction t, Random rnd) throws Exception {
+        BufferPool pool = Database.getBufferPool();
+        int pages = hf.numPages();
+        for (int i = 0; i < 4; i++) {
+            pool.getPage(t.getId(), new HeapPageId(hf.getId(), rnd.nextInt(pages)), Permissions.READ_ONLY);
+        }
+        if (rnd.nextInt(5) == 0) {
+            HeapPage page = (HeapPage) pool.getPage(t.getId(), new HeapPageId(hf.getId(), rnd.nextInt(pages)),
+                    Permissions.READ_WRITE);
+            Iterator<Tuple> it = page.iterator();
+            if (it.hasNext()) {
+                Tuple tup = it.next();
+                pool.deleteTuple(t.getId(), tup);
+                Tuple moved = new Tuple(tup.getTupleDesc());
+                for (int f = 0; f < tup.getTupleDesc().numFields(); f++) {
+                    moved.setField(f, tup.getField(f));
+                }
+                pool.insertTuple(t.getId(), hf.getId(), moved);
+            }
+        }
+    }
+
+    /**
+     * Short read-mostly optimistic transactions from several threads all
+     * validate in the end, and no tuple is lost or duplicated.
+     */
+    @Test public void contendedTransactions() throws Exception {
+        int threads = 4;
+        int perThread = 50;
+        runContended(hf, true, threads, perThread);
+        assertTrue(Database.getBufferPool().getOptimisticValidationCount() >= threads * perThread);
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OccTest.class);
+    }
+}
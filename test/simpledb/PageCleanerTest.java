@@ -0,0 +1,120 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+public class PageCleanerTest extends SimpleDbTestBase {
+
+    @After public void tearDown() {
+        Database.getBufferPool().stopPageCleaner();
+    }
+
+    /** Delete the first tuple of every page of a file, dirtying every page. */
+    private static void deleteFirstTuples(Transaction t, HeapFile hf) throws Exception {
+        List<Tuple> first = new ArrayList<>();
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        while (it.hasNext()) {
+            Tuple tup = it.next();
+            if (tup.getRecordId().getTupleNumber() == 0) {
+                first.add(tup);
+            }
+        }
+        it.close();
+        for (Tuple tup : first) {
+            Database.getBufferPool().deleteTuple(t.getId(), tup);
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            assertTrue("timed out waiting for the page cleaner", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * The cleaner writes adjacent dirty pages with one write, within its
+     * rate limit, and aborting the transaction undoes them.
+     */
+    @Test public void cleanAdjacentPages() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 10, null, tuples);
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.setStealMode(true);
+
+        Transaction t = new Transaction();
+        t.start();
+        deleteFirstTuples(t, hf);
+        bp.setPageCleanerRate(100);
+        long start = System.nanoTime();
+        bp.startPageCleaner(5, 0);
+        await(() -> bp.getCleanedPageCount() >= 10);
+        // stopping waits for the round to finish, including its throttling
+        bp.stopPageCleaner();
+        long elapsed = System.nanoTime() - start;
+
+        assertEquals(10, bp.getCleanedPageCount());
+        assertEquals(1, bp.getCleanerWriteCount());
+        // 10 pages at 100 pages per second
+        assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(100));
+        for (int i = 0; i < hf.numPages(); i++) {
+            HeapPage p = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), i));
+            assertEquals(1, p.getNumEmptySlots());
+        }
+
+        t.abort();
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * Recovery undoes the cleaned pages of a transaction that was running
+     * at a fuzzy checkpoint, though its updates precede the checkpoint.
+     */
+    @Test public void fuzzyCheckpoint() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 10, null, tuples);
+        File file = hf.getFile();
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.setStealMode(true);
+
+        Transaction t = new Transaction();
+        t.start();
+        deleteFirstTuples(t, hf);
+        bp.startPageCleaner(5, 10);
+        await(() -> bp.getCheckpointCount() >= 1);
+        bp.stopPageCleaner();
+        assertEquals(10, bp.getCleanedPageCount());
+
+        // crash and recover
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageCleanerTest.class);
+    }
+}
@@ -0,0 +1,110 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class PageHandleTest extends SimpleDbTestBase {
+
+    private BufferPoolConcurrencyTest.CountingHeapFile hf;
+    private BufferPool bp;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 3000, 1 << 16, null, null);
+        hf = new BufferPoolConcurrencyTest.CountingHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        bp = Database.resetBufferPool(2);
+        tid = new TransactionId();
+    }
+
+    private PageId page(int n) {
+        return new HeapPageId(hf.getId(), n);
+    }
+
+    /**
+     * A pinned page stays resident however many other pages are read.
+     */
+    @Test public void pinnedPageIsNotEvicted() throws Exception {
+        try (PageHandle handle = bp.pinPage(tid, page(0), Permissions.READ_ONLY)) {
+            assertEquals(page(0), handle.getPage().getId());
+            for (int n = 1; n < hf.numPages(); n++)
+                bp.getPage(tid, page(n), Permissions.READ_ONLY);
+            int reads = hf.reads.get();
+            assertSame(handle.getPage(), bp.getPage(tid, page(0), Permissions.READ_ONLY));
+            assertEquals(reads, hf.reads.get());
+        }
+    }
+
+    /**
+     * When every frame is pinned there is nothing to evict.
+     */
+    @Test public void allFramesPinned() throws Exception {
+        PageHandle h0 = bp.pinPage(tid, page(0), Permissions.READ_ONLY);
+        PageHandle h1 = bp.pinPage(tid, page(1), Permissions.READ_ONLY);
+        try {
+            bp.getPage(tid, page(2), Permissions.READ_ONLY);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        h0.close();
+        h0.close();
+        bp.getPage(tid, page(2), Permissions.READ_ONLY);
+        h1.close();
+    }
+
+    /**
+     * Handles left open by a transaction are closed when it completes.
+     */
+    @Test public void transactionCompleteUnpins() throws Exception {
+        bp.pinPage(tid, page(0), Permissions.READ_ONLY);
+        bp.pinPage(tid, page(1), Permissions.READ_ONLY);
+        bp.transactionComplete(tid, true);
+        TransactionId tid2 = new TransactionId();
+        bp.getPage(tid2, page(2), Permissions.READ_ONLY);
+        bp.getPage(tid2, page(3), Permissions.READ_ONLY);
+    }
+
+    /**
+     * A scan keeps only the page it is reading pinned, and nothing once it
+     * is done.
+     */
+    @Test public void scanReleasesPins() throws Exception {
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        assertEquals(3000, count);
+        // both frames are free again
+        bp.getPage(tid, page(0), Permissions.READ_ONLY);
+        bp.getPage(tid, page(1), Permissions.READ_ONLY);
+        bp.getPage(tid, page(2), Permissions.READ_ONLY);
+        it.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageHandleTest.class);
+    }
+}
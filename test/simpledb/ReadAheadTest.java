@@ -0,0 +1,85 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ReadAheadTest extends SimpleDbTestBase {
+
+    private BufferPoolConcurrencyTest.CountingHeapFile hf;
+    private List<List<Integer>> tuples;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 20000, 1 << 16, null, tuples);
+        hf = new BufferPoolConcurrencyTest.CountingHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+    }
+
+    /**
+     * A sequential scan finds most pages already read ahead, and still sees
+     * every tuple.
+     */
+    @Test public void sequentialScanIsReadAhead() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SystemTestUtil.matchTuples(hf, tuples);
+        assertEquals(hf.numPages(), hf.reads.get());
+        assertTrue(bp.getReadAheadPages() > 0);
+        assertTrue(bp.getReadAheadHits() > 0);
+    }
+
+    /**
+     * Read-ahead into a pool much smaller than the table still returns the
+     * right pages, scan after scan.
+     */
+    @Test public void smallPool() throws Exception {
+        BufferPool bp = Database.resetBufferPool(4);
+        SystemTestUtil.matchTuples(hf, tuples);
+        SystemTestUtil.matchTuples(hf, tuples);
+        assertTrue(bp.getReadAheadHits() > 0);
+    }
+
+    /**
+     * A page written after it was read ahead is read again from disk.
+     */
+    @Test public void writeInvalidates() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        for (int i = 0; i < 3 * 504; i++)
+            it.next();
+        Thread.sleep(100);
+        HeapPageId pid = new HeapPageId(hf.getId(), 4);
+        HeapPage empty = new HeapPage(pid, HeapPage.createEmptyPageData());
+        hf.writePage(empty);
+        while (it.hasNext())
+            it.next();
+        it.close();
+        HeapPage page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+        assertEquals(empty.getNumEmptySlots(), page.getNumEmptySlots());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
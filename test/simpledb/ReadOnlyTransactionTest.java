@@ -0,0 +1,66 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ReadOnlyTransactionTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private List<List<Integer>> tuples;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<>();
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, tuples);
+    }
+
+    /**
+     * A read-only transaction writes nothing to the log, and releases its
+     * locks when it completes.
+     */
+    @Test public void noLogRecords() throws Exception {
+        int records = Database.getLogFile().getTotalRecords();
+        Transaction reader = new Transaction(true);
+        reader.start();
+        SystemTestUtil.matchTuples(hf, reader.getId(), tuples);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        assertTrue(Database.getBufferPool().holdsLock(reader.getId(), pid));
+        reader.commit();
+        assertFalse(Database.getBufferPool().holdsLock(reader.getId(), pid));
+
+        reader = new Transaction(true);
+        reader.start();
+        SystemTestUtil.matchTuples(hf, reader.getId(), tuples);
+        reader.abort();
+        assertEquals(records, Database.getLogFile().getTotalRecords());
+    }
+
+    /** A read-only transaction cannot write, with or without MVCC. */
+    @Test(expected = DbException.class) public void cannotWrite() throws Exception {
+        Transaction reader = new Transaction(true);
+        reader.start();
+        Database.getBufferPool().getPage(reader.getId(), new HeapPageId(hf.getId(), 0),
+                Permissions.READ_WRITE);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadOnlyTransactionTest.class);
+    }
+}
@@ -0,0 +1,119 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class RecordLockingTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private List<List<Integer>> tuples;
+
+    /** A table of 500 tuples on one page, which has room for 504. */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<>();
+        hf = SystemTestUtil.createRandomHeapFile(2, 500, null, tuples);
+        assertEquals(1, hf.numPages());
+        Database.getBufferPool().setRecordLocking(true);
+    }
+
+    /** Count the tuples a transaction sees in the table, in a thread of its own. */
+    private Thread count(TransactionId tid, AtomicInteger n, AtomicReference<Exception> error) {
+        Thread t = new Thread(() -> {
+            try {
+                DbFileIterator it = hf.iterator(tid);
+                it.open();
+                while (it.hasNext()) {
+                    it.next();
+                    n.incrementAndGet();
+                }
+                it.close();
+            } catch (Exception e) {
+                error.set(e);
+            }
+        });
+        t.start();
+        return t;
+    }
+
+    /**
+     * A reader locks the tuples it read rather than their page, so a
+     * writer inserts into a free slot of the page without waiting.
+     */
+    @Test public void writerInsertsBesideReader() throws Exception {
+        Transaction reader = new Transaction();
+        reader.start();
+        SystemTestUtil.matchTuples(hf, reader.getId(), tuples);
+
+        Transaction writer = new Transaction();
+        writer.start();
+        AtomicReference<Exception> error = new AtomicReference<>();
+        Thread w = new Thread(() -> {
+            try {
+                Database.getBufferPool().insertTuple(writer.getId(), hf.getId(), Utility.getHeapTuple(new int[] { 7, 7 }));
+            } catch (Exception e) {
+                error.set(e);
+            }
+        });
+        w.start();
+        w.join(10000);
+        assertFalse("the writer waited for the reader", w.isAlive());
+        assertNull(error.get());
+        writer.commit();
+        reader.commit();
+
+        tuples.add(SystemTestUtil.tupleToList(Utility.getHeapTuple(new int[] { 7, 7 })));
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * A reader waits for a tuple deleted by an active transaction, even
+     * though its slot looks empty, and skips it once the delete commits.
+     */
+    @Test public void readerWaitsForDelete() throws Exception {
+        Transaction writer = new Transaction();
+        writer.start();
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(writer.getId(),
+                new HeapPageId(hf.getId(), 0), Permissions.READ_WRITE);
+        Tuple first = page.iterator().next();
+        Database.getBufferPool().deleteTuple(writer.getId(), first);
+
+        Transaction reader = new Transaction();
+        reader.start();
+        AtomicInteger n = new AtomicInteger(0);
+        AtomicReference<Exception> error = new AtomicReference<>();
+        Thread r = count(reader.getId(), n, error);
+        TestUtil.awaitWaiting(r);
+        assertEquals(0, n.get());
+
+        writer.commit();
+        r.join(10000);
+        assertNull(error.get());
+        assertEquals(499, n.get());
+        reader.commit();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RecordLockingTest.class);
+    }
+}
@@ -0,0 +1,119 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RecoveryTest extends SimpleDbTestBase {
+
+    /**
+     * Delete the tuple with the given slot number from every page of a
+     * file, dropping it from the expected tuples.
+     */
+    private static void deleteSlot(Transaction t, HeapFile hf, int slot, List<List<Integer>> tuples)
+            throws Exception {
+        List<Tuple> deleted = new ArrayList<>();
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        while (it.hasNext()) {
+            Tuple tup = it.next();
+            if (tup.getRecordId().getTupleNumber() == slot) {
+                deleted.add(tup);
+            }
+        }
+        it.close();
+        for (Tuple tup : deleted) {
+            Database.getBufferPool().deleteTuple(t.getId(), tup);
+            if (tuples != null) {
+                tuples.remove(SystemTestUtil.tupleToList(tup));
+            }
+        }
+    }
+
+    /**
+     * Recovery with several threads redoes a committed transaction and
+     * undoes an uncommitted one on every page.
+     */
+    @Test public void parallelRedoUndo() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 10, null, tuples);
+        File file = hf.getFile();
+        List<Page> original = new ArrayList<>();
+        for (int i = 0; i < hf.numPages(); i++) {
+            original.add(hf.readPage(new HeapPageId(hf.getId(), i)));
+        }
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        deleteSlot(t1, hf, 0, tuples);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        deleteSlot(t2, hf, 1, null);
+        Database.getBufferPool().flushPages(t2.getId());
+
+        // lose the committed writes, then crash
+        for (Page p : original) {
+            hf.writePage(p);
+        }
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        LogFile log = Database.getLogFile();
+        log.setRecoveryThreads(4);
+        log.recover();
+        assertEquals(10, log.getLastRecoveryPageCount());
+        assertEquals(0, log.getLastRecoverySkippedCount());
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * Committed updates logged before a checkpoint are not redone, since
+     * their pages were written before it.
+     */
+    @Test public void skipCheckpointedUpdates() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 10, null, tuples);
+        File file = hf.getFile();
+
+        // keeps the log from being truncated past t1 at the checkpoint
+        Transaction t2 = new Transaction();
+        t2.start();
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        deleteSlot(t1, hf, 0, tuples);
+        t1.commit();
+        Database.getLogFile().logCheckpoint();
+
+        deleteSlot(t2, hf, 1, null);
+        Database.getBufferPool().flushPages(t2.getId());
+
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        LogFile log = Database.getLogFile();
+        log.recover();
+        assertEquals(10, log.getLastRecoverySkippedCount());
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RecoveryTest.class);
+    }
+}
@@ -0,0 +1,128 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static final int FRAMES = 16;
+    private static final int HOT_PAGES = 6;
+
+    /**
+     * Drives a policy the way BufferPool does, for a pool of FRAMES pages,
+     * and counts hits.
+     */
+    private static class SimulatedPool {
+        final ReplacementPolicy policy;
+        final Set<PageId> resident = new HashSet<>();
+        int hits = 0;
+
+        SimulatedPool(ReplacementPolicy policy) {
+            this.policy = policy;
+        }
+
+        void access(int pageNo) {
+            PageId pid = new HeapPageId(1, pageNo);
+            if (resident.contains(pid)) {
+                hits++;
+                policy.pageAccessed(pid);
+                return;
+            }
+            if (resident.size() == FRAMES) {
+                PageId victim = policy.evict(p -> true);
+                assertNotNull(victim);
+                assertTrue(resident.remove(victim));
+            }
+            resident.add(pid);
+            policy.pageAdmitted(pid);
+        }
+    }
+
+    /**
+     * A small hot set is used repeatedly among other traffic, then a scan much
+     * larger than the pool runs.  The hot set must still be resident after the
+     * scan.
+     */
+    private void hotSetSurvivesScan(ReplacementPolicy policy) {
+        SimulatedPool pool = new SimulatedPool(policy);
+        int next = 1000;
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < HOT_PAGES; i++)
+                pool.access(i);
+            for (int i = 0; i < 8; i++)
+                pool.access(next++);
+        }
+        for (int i = 0; i < 10 * FRAMES; i++)
+            pool.access(next++);
+
+        pool.hits = 0;
+        for (int i = 0; i < HOT_PAGES; i++)
+            pool.access(i);
+        assertEquals(HOT_PAGES, pool.hits);
+    }
+
+    @Test public void lruKIsScanResistant() {
+        hotSetSurvivesScan(new LruKPolicy(FRAMES));
+    }
+
+    @Test public void twoQueueIsScanResistant() {
+        hotSetSurvivesScan(new TwoQueuePolicy(FRAMES));
+    }
+
+    @Test public void clockProIsScanResistant() {
+        hotSetSurvivesScan(new ClockProPolicy(FRAMES));
+    }
+
+    /**
+     * Pages rejected by the evictable predicate must never be chosen.
+     */
+    @Test public void evictSkipsPinnedDown() {
+        ReplacementPolicy[] policies = {
+                new LruKPolicy(FRAMES), new TwoQueuePolicy(FRAMES), new ClockProPolicy(FRAMES) };
+        for (ReplacementPolicy policy : policies) {
+            for (int i = 0; i < 4; i++)
+                policy.pageAdmitted(new HeapPageId(1, i));
+            PageId keep = new HeapPageId(1, 0);
+            PageId victim = policy.evict(p -> !p.equals(keep));
+            assertNotNull(victim);
+            assertNotEquals(keep, victim);
+            assertNull(policy.evict(p -> false));
+        }
+    }
+
+    /**
+     * BufferPool counts hits and misses.
+     */
+    @Test public void bufferPoolHitRate() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        BufferPool bp = Database.resetBufferPool(FRAMES, new LruKPolicy(FRAMES));
+        TransactionId tid = new TransactionId();
+        PageId pid = new HeapPageId(hf.getId(), 0);
+        bp.getPage(tid, pid, Permissions.READ_ONLY);
+        bp.getPage(tid, pid, Permissions.READ_ONLY);
+        bp.getPage(tid, pid, Permissions.READ_ONLY);
+        assertEquals(1, bp.getMissCount());
+        assertEquals(2, bp.getHitCount());
+        assertEquals(2.0 / 3, bp.getHitRate(), 1e-9);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
@@ -8,6 +8,7 @@ import simpledb.transaction.TransactionId;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.*;
 
@@ -369,6 +370,34 @@ public class TestUtil {
         }
     }
 
+    /**
+     * Start a thread that acquires a lock from a lock manager, recording the
+     * exception it fails with; the transaction releases its locks if it
+     * fails.
+     */
+    public static Thread acquireInThread(LockManager lm, TransactionId tid, PageId pid,
+                                         Permissions perm, AtomicReference<Exception> error) {
+        Thread t = new Thread(() -> {
+            try {
+                lm.acquireLock(tid, pid, perm);
+            } catch (TransactionAbortedException e) {
+                error.set(e);
+                lm.releaseAllLock(tid);
+            }
+        });
+        t.start();
+        return t;
+    }
+
+    /** Wait until a thread is parked, e.g. on a lock request; fail after ten seconds. */
+    public static void awaitWaiting(Thread t) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (t.getState() != Thread.State.WAITING) {
+            assertTrue("timed out waiting for the lock request to park", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
     /** JUnit fixture that creates a heap file and cleans it up afterward. */
     public static abstract class CreateHeapFile {
         protected CreateHeapFile() {
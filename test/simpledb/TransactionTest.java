@@ -3,6 +3,7 @@ package simpledb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
@@ -67,6 +68,18 @@ public class TransactionTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid2, p0, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for BufferPool.transactionComplete(tid).
+   * Completing a transaction without a flag commits it, so its locks are
+   * released.
+   */
+  @Test public void completeWithoutFlag() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    bp.transactionComplete(tid1);
+
+    assertFalse(bp.holdsLock(tid1, p0));
+  }
+
   /**
    * Common unit test code for BufferPool.transactionComplete() covering
    * commit and abort. Verify that commit persists changes to disk, and
@@ -0,0 +1,144 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.Aggregate;
+import simpledb.execution.Aggregator;
+import simpledb.execution.Filter;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.execution.StringAggregator;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class TupleViewTest extends SimpleDbTestBase {
+
+    private static final String[] STRINGS = { "", "a", "abc", "abd", "ab", "b", "zzz", "é", "xabcx" };
+
+    /**
+     * A cursor over page bytes reads the same values as the tuples read from
+     * the page, and compares strings the way String does.
+     */
+    @Test public void cursorMatchesTuples() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        int tableId = -12345;
+        Database.getCatalog().addTable(new SkeletonFile(tableId, td), SystemTestUtil.getUUID());
+        HeapPageId pid = new HeapPageId(tableId, 0);
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        for (int i = 0; i < STRINGS.length; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(i - 3));
+            t.setField(1, new StringField(STRINGS[i], Type.STRING_LEN));
+            page.insertTuple(t);
+        }
+
+        // once from the inserted tuples, once from the bytes
+        for (HeapPage p : Arrays.asList(page, new HeapPage(pid, page.getPageData()))) {
+            HeapPage.Cursor cursor = p.cursor();
+            Iterator<Tuple> it = p.iterator();
+            while (cursor.advance()) {
+                Tuple t = it.next();
+                assertEquals(((IntField) t.getField(0)).getValue(), cursor.getInt(0));
+                assertEquals(t.getField(1), cursor.getField(1));
+                String value = ((StringField) t.getField(1)).getValue();
+                assertEquals(value.hashCode(), cursor.hashString(1));
+                for (String s : STRINGS) {
+                    assertEquals(Integer.signum(value.compareTo(s)), Integer.signum(cursor.compareString(1, s)));
+                    assertEquals(value.contains(s), cursor.containsString(1, s));
+                }
+            }
+            assertFalse(it.hasNext());
+        }
+    }
+
+    /**
+     * Grouping by a string field finds the same group whether the tuple
+     * comes as a Tuple or as a cursor over the page bytes.
+     */
+    @Test public void groupByStringFromViews() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        int tableId = -12346;
+        Database.getCatalog().addTable(new SkeletonFile(tableId, td), SystemTestUtil.getUUID());
+        HeapPageId pid = new HeapPageId(tableId, 0);
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        for (int i = 0; i < STRINGS.length; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(i));
+            t.setField(1, new StringField(STRINGS[i], Type.STRING_LEN));
+            page.insertTuple(t);
+        }
+
+        // both from the bytes, so strings are decoded the same way
+        StringAggregator agg = new StringAggregator(1, Type.STRING_TYPE, 1, Aggregator.Op.COUNT);
+        Iterator<Tuple> it = new HeapPage(pid, page.getPageData()).iterator();
+        while (it.hasNext()) {
+            agg.mergeTupleIntoGroup(it.next());
+        }
+        HeapPage.Cursor cursor = new HeapPage(pid, page.getPageData()).cursor();
+        while (cursor.advance()) {
+            agg.mergeTupleIntoGroup(cursor);
+        }
+
+        OpIterator groups = agg.iterator();
+        groups.open();
+        int n = 0;
+        while (groups.hasNext()) {
+            assertEquals(2, ((IntField) groups.next().getField(1)).getValue());
+            n++;
+        }
+        groups.close();
+        assertEquals(STRINGS.length, n);
+    }
+
+    /**
+     * Aggregating a filtered scan from views gives the same result as
+     * aggregating the tuples.
+     */
+    @Test public void aggregateFilteredScan() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 5000, 100, null, tuples);
+        Map<Integer, Integer> expected = new HashMap<>();
+        for (List<Integer> t : tuples) {
+            if (t.get(1) >= 50) {
+                expected.merge(t.get(0), t.get(1), Integer::sum);
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        Filter filter = new Filter(new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(50)),
+                new SeqScan(tid, f.getId(), ""));
+        filter.open();
+        assertTrue(filter.supportsViews());
+        filter.close();
+
+        Aggregate sum = new Aggregate(filter, 1, 0, Aggregator.Op.SUM);
+        sum.open();
+        Map<Integer, Integer> actual = new HashMap<>();
+        while (sum.hasNext()) {
+            Tuple t = sum.next();
+            actual.put(((IntField) t.getField(0)).getValue(), ((IntField) t.getField(1)).getValue());
+        }
+        sum.close();
+        assertEquals(expected, actual);
+        Database.getBufferPool().transactionComplete(tid, true);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TupleViewTest.class);
+    }
+}
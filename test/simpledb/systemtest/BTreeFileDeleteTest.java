@@ -186,6 +186,35 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		BTreeChecker.checkRep(threeLeafPageFile, tid, new HashMap<>(), true);
 	}
 
+	@Test
+	public void testAbortAfterReusingDeletedPage() throws Exception {
+		// this should create a B+ tree with 3 leaf nodes
+		List<List<Integer>> tuples = new ArrayList<>();
+		BTreeFile threeLeafPageFile = BTreeUtility.createRandomBTreeFile(2, 1005,
+				null, tuples, 0);
+		assertEquals(4, threeLeafPageFile.numPages());
+
+		// delete enough tuples to ensure one page gets deleted, then insert
+		// enough tuples to reuse it, and abort
+		TransactionId aborted = new TransactionId();
+		DbFileIterator it = threeLeafPageFile.iterator(aborted);
+		it.open();
+		for(int i = 0; i < 502; ++i) {
+			Database.getBufferPool().deleteTuple(aborted, it.next());
+			it.rewind();
+		}
+		it.close();
+		for(int i = 0; i < 502; ++i) {
+			Database.getBufferPool().insertTuple(aborted, threeLeafPageFile.getId(),
+					BTreeUtility.getBTreeTuple(i, 2));
+		}
+		Database.getBufferPool().transactionComplete(aborted, false);
+
+		// the deleted page was not overwritten on disk
+		BTreeChecker.checkRep(threeLeafPageFile, tid, new HashMap<>(), true);
+		SystemTestUtil.matchTuples(threeLeafPageFile, tid, tuples);
+	}
+
 	@Test
 	public void testRedistributeInternalPages() throws Exception {
 		// This should create a B+ tree with two nodes in the second tier
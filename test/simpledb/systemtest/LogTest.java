@@ -218,6 +218,30 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestAbortTwoTables()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        doInsert(hf2, 21, 22);
+
+        // *** Test:
+        // insert into both tables, abort: rollback has to restore the
+        // page of the second table as well as the first
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        insertRow(hf2, t1, 23);
+        abort(t1);
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 3, false);
+        look(hf2, t, 21, true);
+        look(hf2, t, 23, false);
+        t.commit();
+    }
+
     @Test public void TestAbortCommitInterleaved()
             throws IOException, DbException, TransactionAbortedException {
         setup();